@@ -31,6 +31,7 @@ import org.glassfish.grizzly.http.ContentEncoding;
 import org.glassfish.grizzly.http.HttpClientFilter;
 import org.glassfish.grizzly.http.server.*;
 import org.glassfish.grizzly.http.util.Parameters;
+import org.glassfish.grizzly.http2.Http2AddOn;
 import org.glassfish.grizzly.nio.transport.TCPNIOConnectorHandler;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
@@ -72,6 +73,7 @@ public final class HttpProxy {
     // - 2 minutes: some complex services can require essential time for first access to the data
     private static final boolean DEFAULT_CORRECT_MOVED_LOCATIONS = true;
     private static final boolean DEFAULT_ADD_X_FORWARDED_FOR = true;
+    private static final boolean DEFAULT_HTTP2 = Boolean.getBoolean("net.algart.http.proxy.http2");
 
     static final Logger LOG = Logger.getLogger(HttpProxy.class.getName());
 
@@ -89,6 +91,7 @@ public final class HttpProxy {
     private boolean correctMovedLocations = DEFAULT_CORRECT_MOVED_LOCATIONS;
     private boolean addingXForwardedFor = DEFAULT_ADD_X_FORWARDED_FOR;
     private int readingFromServerTimeoutInMs = DEFAULT_READING_FROM_SERVER_TIMEOUT_IN_MS;
+    private boolean http2 = DEFAULT_HTTP2;
 
     private volatile boolean firstStart = true;
 
@@ -199,6 +202,29 @@ public final class HttpProxy {
         return this;
     }
 
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Enables or disables HTTP/2 for the clients of this proxy. Without SSL, it is HTTP/2 over plain TCP (h2c),
+     * requested by "Upgrade" header. With SSL, HTTP/2 is negotiated by ALPN,
+     * which requires Grizzly NPN/ALPN bootstrap library (grizzly-npn-bootstrap) in the boot classpath of JVM
+     * (<tt>-Xbootclasspath/p:</tt>); this library is not a dependency of this project and is not added
+     * by the process control, so, without manual configuration, the SSL proxy works via HTTP/1.1 only.
+     * The connections from the proxy to servers always use HTTP/1.1, not h2c.
+     * Note that Grizzly logs every HTTP/2 frame with INFO level; it is better to set the level of
+     * "org.glassfish.grizzly.http2" logger to WARNING in the logging configuration of the application.
+     * Must be called before the first {@link #start()}.
+     *
+     * @param http2 whether HTTP/2 should be supported.
+     * @return a reference to this object.
+     */
+    public HttpProxy setHttp2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
     public final void start() throws IOException {
         synchronized (lock) {
             if (firstStart) {
@@ -213,6 +239,9 @@ public final class HttpProxy {
                     listener.setSecure(true);
                     listener.setSSLEngineConfig(sslEngineConfig);
                 }
+                if (http2) {
+                    listener.registerAddOn(new Http2AddOn());
+                }
                 this.proxyServer.addListener(listener);
                 firstStart = false;
             }
@@ -293,7 +322,7 @@ public final class HttpProxy {
 
     @Override
     public String toString() {
-        return "AlgART HTTP Proxy" + (ssl ? " (SSL)" : " (not SSL)")
+        return "AlgART HTTP Proxy" + (ssl ? " (SSL)" : " (not SSL)") + (http2 ? " (HTTP/2)" : "")
             + " at " + proxyHost + ":" + proxyPort + ", server detector: " + serverResolver;
     }
 
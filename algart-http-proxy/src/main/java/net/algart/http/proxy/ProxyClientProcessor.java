@@ -63,6 +63,8 @@ class ProxyClientProcessor extends BaseFilter {
     // - usually for POST requests
     private final NIOOutputStream outputStreamToClient;
     private final Connection connectionToClient;
+    private final boolean multiplexedConnectionToClient;
+    // - HTTP/2 connection, shared by several simultaneous requests of the client
     private final SuspendContext suspendContext;
     private volatile Connection connectionToServer = null;
     private volatile boolean firstReply = true;
@@ -88,6 +90,7 @@ class ProxyClientProcessor extends BaseFilter {
         this.response = response;
         this.inputStreamFromClient = request.getNIOInputStream();
         this.connectionToClient = request.getRequest().getConnection();
+        this.multiplexedConnectionToClient = request.getRequest().getProtocol() == Protocol.HTTP_2_0;
         this.outputStreamToClient = response.getNIOOutputStream();
         this.serverAddress = serverAddress;
         this.suspendContext = response.getSuspendContext();
@@ -365,9 +368,12 @@ class ProxyClientProcessor extends BaseFilter {
             }
             try {
                 outputStreamToClient.close();
-                connectionToClient.closeSilently();
-                // - closing connection is necessary in a case of some problem like timeout;
-                // in other case, the browser will wait for all Content-Length bytes
+                if (!multiplexedConnectionToClient) {
+                    connectionToClient.closeSilently();
+                    // - closing connection is necessary in a case of some problem like timeout;
+                    // in other case, the browser will wait for all Content-Length bytes;
+                    // for HTTP/2, closing the output stream finishes this request (stream) only
+                }
             } catch (IOException e) {
                 HttpProxy.LOG.log(Level.FINE, "Error while closing output stream", e);
                 // only FINE: this exception can occur if the browser terminates connection;
@@ -27,17 +27,23 @@ package net.algart.pyramid.standard;
 import net.algart.arrays.*;
 import net.algart.external.MatrixToBufferedImageConverter;
 import net.algart.imageio.QuickBMPWriter;
+import net.algart.imageio.QuickJPEGWriter;
+import net.algart.imageio.QuickPNGWriter;
 import net.algart.math.IPoint;
 import net.algart.math.IRectangularArea;
 import net.algart.math.functions.LinearFunc;
 import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.PlanePyramidData;
 import net.algart.pyramid.PlanePyramidImageData;
 import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.PlanePyramidStagedData;
 import net.algart.pyramid.api.common.PyramidApiTools;
+import net.algart.pyramid.api.common.PyramidRawPixels;
 import net.algart.pyramid.api.common.StandardPyramidDataConfiguration;
 import net.algart.pyramid.api.common.UnknownPyramidDataFormatException;
 import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
 import net.algart.pyramid.requests.PlanePyramidReadSpecialImageRequest;
+import net.algart.pyramid.requests.PlanePyramidRequest;
 import net.algart.simagis.pyramid.PlanePyramidSource;
 import net.algart.simagis.pyramid.sources.ScalablePlanePyramidSource;
 
@@ -48,10 +54,13 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 import static net.algart.simagis.pyramid.PlanePyramidSource.DIM_HEIGHT;
@@ -65,8 +74,21 @@ class StandardPlanePyramid implements PlanePyramid {
      */
     public static final long PYRAMID_TIMEOUT = Integer.getInteger(
         "net.algart.pyramid.standard.pyramidTimeout", 30000);
+    /**
+     * Estimated memory (in bytes), occupied by an open pyramid: it depends on the format and is usually
+     * specified in VM options of the corresponding service. Negative value means that it is unknown.
+     */
+    public static final long PYRAMID_MEMORY_ESTIMATE = Long.getLong(
+        "net.algart.pyramid.standard.pyramidMemoryEstimate", -1L);
+    /**
+     * Estimated number of files, kept open by an open pyramid. Negative value means that it is unknown.
+     */
+    public static final int PYRAMID_OPEN_FILES_ESTIMATE = Integer.getInteger(
+        "net.algart.pyramid.standard.pyramidOpenFilesEstimate", 1);
 
     private static final boolean USE_QUICK_BMP_WRITER = true;
+    private static final boolean USE_QUICK_PNG_WRITER = true;
+    private static final boolean USE_QUICK_JPEG_WRITER = true;
 
     private final StandardPlanePyramidFactory factory;
     private final String pyramidConfiguration;
@@ -76,8 +98,18 @@ class StandardPlanePyramid implements PlanePyramid {
     private final Color renderingBackgroundColor;
     private final MatrixToBufferedImageConverter converter;
     private final MatrixToBufferedImageConverter specialImageConverter;
+    private final boolean quickPNGWriterUsed;
+    private final boolean quickJPEGWriterUsed;
+    private final int pngCompressionLevel;
+    private final QuickPNGWriter.Filter pngFilter;
+    private final float jpegQuality;
+    private final boolean jpegChromaSubsampling;
     private final boolean rawBytes;
+    private final boolean rawBytesPlanar;
+    private final boolean rawBytesCompressed;
     private final boolean cacheable;
+    private final Path pyramidDataFile;
+    private volatile long dataLastModifiedTime;
 
     private volatile PlanePyramidInformation information;
     private volatile long lastAccessTime;
@@ -101,11 +133,15 @@ class StandardPlanePyramid implements PlanePyramid {
                 StandardPyramidDataConfiguration.class + " recognized strange format");
         }
         this.subFormat = pyramidDataConfiguration.getSubFormatName();
+        this.pyramidDataFile = pyramidDataFile;
+        this.dataLastModifiedTime = Files.getLastModifiedTime(pyramidDataFile).toMillis();
         JsonObject rendererJson = config.getJsonObject(PlanePyramid.RENDERER_KEY);
         if (rendererJson == null) {
             rendererJson = Json.createObjectBuilder().build();
         }
         this.rawBytes = config.getBoolean("rawBytes", false);
+        this.rawBytesPlanar = config.getBoolean("rawBytesPlanar", false);
+        this.rawBytesCompressed = config.getBoolean("rawBytesCompressed", false);
         this.cacheable = config.getBoolean("cacheable", true);
         final PlanePyramidSource planePyramidSource = factory.getPlanePyramidSourceFactory().newPlanePyramidSource(
             pyramidDataFile.toAbsolutePath().toString(),
@@ -126,6 +162,32 @@ class StandardPlanePyramid implements PlanePyramid {
             transparencySupported);
         // - opacity is not used in DEFAULT renderer
         this.specialImageConverter = new MatrixToBufferedImageConverter.Packed3DToPackedRGB(transparencySupported);
+        final int bandCount = source.bandCount();
+        this.quickPNGWriterUsed = USE_QUICK_PNG_WRITER
+            && returnedDataFormatName.equalsIgnoreCase("png")
+            && rendererType == RendererType.DEFAULT
+            && (bandCount == 1 || bandCount == 3 || bandCount == 4);
+        this.quickJPEGWriterUsed = USE_QUICK_JPEG_WRITER
+            && isJPEG(returnedDataFormatName)
+            && rendererType == RendererType.DEFAULT
+            && (bandCount == 1 || bandCount == 3 || bandCount == 4);
+        // - other renderers use palettes, which are implemented only in the converters;
+        // 2 channels are rendered by the converter in its own way
+        this.pngCompressionLevel = rendererJson.getInt(
+            "pngCompressionLevel", QuickPNGWriter.DEFAULT_COMPRESSION_LEVEL);
+        final String pngFilter = rendererJson.getString("pngFilter", null);
+        this.pngFilter = pngFilter == null ?
+            QuickPNGWriter.DEFAULT_FILTER :
+            QuickPNGWriter.Filter.valueOf(pngFilter.toUpperCase(Locale.US));
+        final JsonNumber jpegQuality = rendererJson.getJsonNumber("jpegQuality");
+        this.jpegQuality = jpegQuality != null ? (float) jpegQuality.doubleValue() : QuickJPEGWriter.DEFAULT_QUALITY;
+        if (!(this.jpegQuality >= 0.0f && this.jpegQuality <= 1.0f)) {
+            throw new IllegalArgumentException("Illegal jpegQuality " + jpegQuality + " (must be in 0.0..1.0 range)");
+        }
+        this.jpegChromaSubsampling = rendererJson.getBoolean(
+            "jpegChromaSubsampling", QuickJPEGWriter.DEFAULT_CHROMA_SUBSAMPLING);
+        // - all these settings are parts of the pyramid configuration, which is the pyramid unique ID
+        // in every request: so, they are automatically parts of the keys in the cache of the service
         this.lastAccessTime = System.currentTimeMillis();
     }
 
@@ -146,6 +208,7 @@ class StandardPlanePyramid implements PlanePyramid {
 
     @Override
     public PlanePyramidInformation readInformation() {
+        this.lastAccessTime = System.currentTimeMillis();
         synchronized (source) {
             if (information == null) {
                 information = new PlanePyramidInformation(
@@ -178,25 +241,17 @@ class StandardPlanePyramid implements PlanePyramid {
 
     @Override
     public PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) throws IOException {
-        Objects.requireNonNull(imageRequest);
-        final double compression = imageRequest.getCompression();
-        final long fromX = imageRequest.getZeroLevelFromX();
-        final long fromY = imageRequest.getZeroLevelFromY();
-        final long toX = imageRequest.getZeroLevelToX();
-        final long toY = imageRequest.getZeroLevelToY();
-        if (rawBytes) {
-            //TODO!! return some form of bytes, maybe Protocol Buffers
-        }
-        if (USE_QUICK_BMP_WRITER && returnedDataFormatName.equalsIgnoreCase("bmp")) {
-            // use more efficient AlgART QuickBMPWriter
-//            System.out.println("QUICK!!!");
-            Matrix<? extends PArray> matrix = source.readImage(compression, fromX, fromY, toX, toY);
-            return matrixToBMPBytes(matrix);
-        } else {
-//            System.out.println("SLOW!!!");
-            BufferedImage bufferedImage = source.readBufferedImage(compression, fromX, fromY, toX, toY, converter);
-            return bufferedImageToBytes(bufferedImage, returnedDataFormatName);
+        final PlanePyramidStagedData stagedData = readImageSource(imageRequest);
+        stagedData.render();
+        return (PlanePyramidImageData) stagedData.encode();
+    }
+
+    @Override
+    public PlanePyramidStagedData readSource(PlanePyramidRequest pyramidRequest) throws IOException {
+        if (pyramidRequest instanceof PlanePyramidReadImageRequest) {
+            return readImageSource((PlanePyramidReadImageRequest) pyramidRequest);
         }
+        return PlanePyramid.super.readSource(pyramidRequest);
     }
 
     @Override
@@ -204,6 +259,7 @@ class StandardPlanePyramid implements PlanePyramid {
         throws IOException
     {
         Objects.requireNonNull(specialImageRequest);
+        this.lastAccessTime = System.currentTimeMillis();
         final String name = specialImageRequest.getSpecialImageName();
         Integer width = specialImageRequest.getDesiredWidth();
         Integer height = specialImageRequest.getDesiredHeight();
@@ -247,35 +303,89 @@ class StandardPlanePyramid implements PlanePyramid {
         return cacheable;
     }
 
+    @Override
+    public long estimatedMemoryUsage() {
+        return PYRAMID_MEMORY_ESTIMATE < 0 ? -1 : PYRAMID_MEMORY_ESTIMATE;
+    }
+
+    @Override
+    public int estimatedNumberOfOpenFiles() {
+        return PYRAMID_OPEN_FILES_ESTIMATE < 0 ? -1 : PYRAMID_OPEN_FILES_ESTIMATE;
+    }
+
+    @Override
+    public long dataLastModifiedTime() {
+        try {
+            dataLastModifiedTime = Files.getLastModifiedTime(pyramidDataFile).toMillis();
+        } catch (IOException e) {
+            // - the file is probably being replaced now; we return the time, known while the previous call
+        }
+        return dataLastModifiedTime;
+    }
+
     @Override
     public String toString() {
         return "Plane pyramid based on " + source + " (" + returnedDataFormatName + " format)";
     }
 
+    private PlanePyramidStagedData readImageSource(PlanePyramidReadImageRequest imageRequest) {
+        Objects.requireNonNull(imageRequest);
+        this.lastAccessTime = System.currentTimeMillis();
+        // - every reading, including BMP and raw bytes, is an access: a busy pyramid must not be timed out
+        final double compression = imageRequest.getCompression();
+        final long fromX = imageRequest.getZeroLevelFromX();
+        final long fromY = imageRequest.getZeroLevelFromY();
+        final long toX = imageRequest.getZeroLevelToX();
+        final long toY = imageRequest.getZeroLevelToY();
+        final Matrix<? extends PArray> matrix = source.readImage(compression, fromX, fromY, toX, toY);
+        if (rawBytes) {
+            // the samples are returned as is, in PyramidRawPixels binary format
+            return new MatrixToRawPixelsStages(matrix);
+        }
+        if (USE_QUICK_BMP_WRITER && returnedDataFormatName.equalsIgnoreCase("bmp")) {
+            // use more efficient AlgART QuickBMPWriter
+            return new MatrixToBMPStages(matrix);
+        } else if (quickPNGWriterUsed) {
+            // use more efficient AlgART QuickPNGWriter
+            return new MatrixToPNGStages(matrix);
+        } else if (quickJPEGWriterUsed) {
+            // the pixels go to JPEG writer directly, without BufferedImage with its own copy of them
+            return new MatrixToJPEGStages(matrix);
+        } else {
+            return new MatrixToImageStages(matrix, converter, returnedDataFormatName);
+        }
+    }
+
     private PlanePyramidImageData bufferedImageToBytes(BufferedImage bufferedImage, String formatName)
         throws IOException
     {
-        if (!transparencySupported(formatName)) {
-            bufferedImage = convertARGBtoBGR(bufferedImage, renderingBackgroundColor);
-        }
-        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        if (!ImageIO.write(bufferedImage, formatName, stream)) {
-            throw new IIOException(formatName + " image format is not supported for " + bufferedImage);
-        }
-        stream.flush();
-        this.lastAccessTime = System.currentTimeMillis();
-        return new PlanePyramidImageData(stream.toByteArray(), this);
+        return encodeBufferedImage(toSupportedImage(bufferedImage, formatName), formatName);
+    }
+
+    private BufferedImage toSupportedImage(BufferedImage bufferedImage, String formatName) {
+        return transparencySupported(formatName) ?
+            bufferedImage :
+            convertARGBtoBGR(bufferedImage, renderingBackgroundColor);
     }
 
-    private PlanePyramidImageData matrixToBMPBytes(Matrix<? extends PArray> matrix) {
-        if (matrix.elementType() != byte.class) {
-            double max = matrix.array().maxPossibleValue(1.0);
-            matrix = Matrices.asFuncMatrix(LinearFunc.getInstance(0.0, 255.0 / max), ByteArray.class, matrix);
+    private PlanePyramidImageData encodeBufferedImage(BufferedImage bufferedImage, String formatName)
+        throws IOException
+    {
+        final byte[] bytes;
+        if (USE_QUICK_JPEG_WRITER && isJPEG(formatName)) {
+            bytes = new QuickJPEGWriter(bufferedImage)
+                .setQuality(jpegQuality)
+                .setChromaSubsampling(jpegChromaSubsampling)
+                .getJpegBytes();
+        } else {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            if (!ImageIO.write(bufferedImage, formatName, stream)) {
+                throw new IIOException(formatName + " image format is not supported for " + bufferedImage);
+            }
+            stream.flush();
+            bytes = stream.toByteArray();
         }
-        final byte[] data = (byte[]) Arrays.toJavaArray(matrix.array());
-        final byte[] bytes = new QuickBMPWriter(
-            (int) matrix.dim(1), (int) matrix.dim(2), (int) matrix.dim(0), data)
-            .getBmpBytes();
+        this.lastAccessTime = System.currentTimeMillis();
         return new PlanePyramidImageData(bytes, this);
     }
 
@@ -317,6 +427,10 @@ class StandardPlanePyramid implements PlanePyramid {
         return builder.build();
     }
 
+    private static boolean isJPEG(String formatName) {
+        return formatName.equalsIgnoreCase("jpeg") || formatName.equalsIgnoreCase("jpg");
+    }
+
     private static boolean transparencySupported(String formatName) {
         return formatName.equalsIgnoreCase("png");
     }
@@ -335,4 +449,144 @@ class StandardPlanePyramid implements PlanePyramid {
             return bufferedImage;
         }
     }
+
+    private class MatrixToImageStages implements PlanePyramidStagedData {
+        private final Matrix<? extends PArray> matrix;
+        private final MatrixToBufferedImageConverter converter;
+        private final String formatName;
+        private BufferedImage bufferedImage = null;
+
+        private MatrixToImageStages(
+            Matrix<? extends PArray> matrix,
+            MatrixToBufferedImageConverter converter,
+            String formatName)
+        {
+            this.matrix = matrix;
+            this.converter = converter;
+            this.formatName = formatName;
+        }
+
+        @Override
+        public void render() {
+            bufferedImage = toSupportedImage(converter.toBufferedImage(matrix), formatName);
+        }
+
+        @Override
+        public PlanePyramidData encode() throws IOException {
+            if (bufferedImage == null) {
+                throw new IllegalStateException("Data are not rendered");
+            }
+            return encodeBufferedImage(bufferedImage, formatName);
+        }
+    }
+
+    private abstract class MatrixToPackedBytesStages implements PlanePyramidStagedData {
+        final Matrix<? extends PArray> matrix;
+        byte[] data = null;
+
+        private MatrixToPackedBytesStages(Matrix<? extends PArray> matrix) {
+            this.matrix = matrix;
+        }
+
+        @Override
+        public void render() {
+            Matrix<? extends PArray> m = matrix;
+            if (m.elementType() != byte.class) {
+                double max = m.array().maxPossibleValue(1.0);
+                m = Matrices.asFuncMatrix(LinearFunc.getInstance(0.0, 255.0 / max), ByteArray.class, m);
+            }
+            data = (byte[]) Arrays.toJavaArray(m.array());
+        }
+
+        @Override
+        public PlanePyramidData encode() throws IOException {
+            if (data == null) {
+                throw new IllegalStateException("Data are not rendered");
+            }
+            final byte[] bytes = encodeData((int) matrix.dim(1), (int) matrix.dim(2), (int) matrix.dim(0));
+            lastAccessTime = System.currentTimeMillis();
+            return new PlanePyramidImageData(bytes, StandardPlanePyramid.this);
+        }
+
+        abstract byte[] encodeData(int width, int height, int bandCount) throws IOException;
+    }
+
+    private class MatrixToBMPStages extends MatrixToPackedBytesStages {
+        private MatrixToBMPStages(Matrix<? extends PArray> matrix) {
+            super(matrix);
+        }
+
+        @Override
+        byte[] encodeData(int width, int height, int bandCount) {
+            return new QuickBMPWriter(width, height, bandCount, data).getBmpBytes();
+        }
+    }
+
+    private class MatrixToPNGStages extends MatrixToPackedBytesStages {
+        private MatrixToPNGStages(Matrix<? extends PArray> matrix) {
+            super(matrix);
+        }
+
+        @Override
+        byte[] encodeData(int width, int height, int bandCount) {
+            return new QuickPNGWriter(width, height, bandCount, data)
+                .setCompressionLevel(pngCompressionLevel)
+                .setFilter(pngFilter)
+                .getPngBytes();
+        }
+    }
+
+    private class MatrixToJPEGStages extends MatrixToPackedBytesStages {
+        private QuickJPEGWriter writer = null;
+
+        private MatrixToJPEGStages(Matrix<? extends PArray> matrix) {
+            super(matrix);
+        }
+
+        @Override
+        public void render() {
+            super.render();
+            writer = new QuickJPEGWriter(
+                (int) matrix.dim(1), (int) matrix.dim(2), (int) matrix.dim(0), data, renderingBackgroundColor)
+                .setQuality(jpegQuality)
+                .setChromaSubsampling(jpegChromaSubsampling);
+            // - blending with the background (if there is alpha) is a part of rendering
+        }
+
+        @Override
+        byte[] encodeData(int width, int height, int bandCount) throws IOException {
+            return writer.getJpegBytes();
+        }
+    }
+
+    private class MatrixToRawPixelsStages implements PlanePyramidStagedData {
+        private final Matrix<? extends PArray> matrix;
+        private PyramidRawPixels pixels = null;
+
+        private MatrixToRawPixelsStages(Matrix<? extends PArray> matrix) {
+            this.matrix = matrix;
+        }
+
+        @Override
+        public void render() {
+            Matrix<? extends PArray> m = matrix;
+            if (m.elementType() == boolean.class) {
+                m = Matrices.asFuncMatrix(LinearFunc.getInstance(0.0, 255.0), ByteArray.class, m);
+            }
+            final PyramidRawPixels interleaved = PyramidRawPixels.newInterleaved(
+                Arrays.toJavaArray(m.array()), (int) m.dim(0), (int) m.dim(1), (int) m.dim(2));
+            pixels = interleaved.toLayout(rawBytesPlanar);
+        }
+
+        @Override
+        public PlanePyramidData encode() {
+            if (pixels == null) {
+                throw new IllegalStateException("Data are not rendered");
+            }
+            final byte[] bytes = pixels.toBytes(rawBytesCompressed, ByteOrder.LITTLE_ENDIAN);
+            // - little-endian: native order of almost all clients
+            lastAccessTime = System.currentTimeMillis();
+            return new PlanePyramidImageData(bytes, StandardPlanePyramid.this);
+        }
+    }
 }
@@ -35,6 +35,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Objects;
+import java.util.regex.Pattern;
 
 public class PyramidApiTools {
     private PyramidApiTools() {
@@ -42,6 +43,7 @@ public class PyramidApiTools {
 
     private static final boolean ENABLE_ALL_CHARACTERS_IN_PYRAMID_ID_FOR_DEBUG = false;
     // - must be false for secure working
+    private static final Pattern ALLOWED_PYRAMID_ID_PATTERN = Pattern.compile("^[A-Za-z0-9_\\-]*$");
 
     public static boolean isAllowedPyramidId(String pyramidId) {
         Objects.requireNonNull(pyramidId, "Null pyramidId");
@@ -49,7 +51,7 @@ public class PyramidApiTools {
             // - dangerous solution: in any case we must disable characters like / \ . ..
             return true;
         }
-        return pyramidId.matches("^[A-Za-z0-9_\\-]*$");
+        return ALLOWED_PYRAMID_ID_PATTERN.matcher(pyramidId).matches();
     }
 
     public static String pyramidIdToConfiguration(String pyramidId, String configRootDir, String configFileName)
@@ -0,0 +1,202 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.api.common;
+
+import javax.json.JsonObject;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the results of {@link PyramidApiTools#pyramidIdToConfiguration(String, String, String)}
+ * and {@link PyramidApiTools#configurationToJson(String)}. These methods are called while processing
+ * every tile request, and without the cache every call accesses the file system and parses the json.
+ *
+ * <p>A cached configuration is checked not more often than once per
+ * {@link PyramidConstants#CONFIGURATION_CACHE_CHECKING_PERIOD} ms: if the last modification time or
+ * the size of the configuration file were changed, or if the file was removed, the configuration is reloaded.
+ * The number of cached configurations is limited by {@link PyramidConstants#CONFIGURATION_CACHE_SIZE};
+ * least recently used ones are removed.</p>
+ *
+ * <p>There is one instance for every pair of configuration root folder and configuration file name,
+ * shared by all services and proxies in this JVM. This class is thread-safe.</p>
+ */
+public final class PyramidConfigurationCache {
+    private static final Map<List<String>, PyramidConfigurationCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String configRootDir;
+    private final String configFileName;
+    private final Map<String, CachedConfiguration> entries =
+        new LinkedHashMap<String, CachedConfiguration>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedConfiguration> eldest) {
+                return size() > PyramidConstants.CONFIGURATION_CACHE_SIZE;
+            }
+        };
+
+    private PyramidConfigurationCache(String configRootDir, String configFileName) {
+        this.configRootDir = Objects.requireNonNull(configRootDir, "Null configRootDir");
+        this.configFileName = Objects.requireNonNull(configFileName, "Null configFileName");
+    }
+
+    public static PyramidConfigurationCache getInstance(String configRootDir, String configFileName) {
+        Objects.requireNonNull(configRootDir, "Null configRootDir");
+        Objects.requireNonNull(configFileName, "Null configFileName");
+        return INSTANCES.computeIfAbsent(
+            Arrays.asList(configRootDir, configFileName),
+            key -> new PyramidConfigurationCache(configRootDir, configFileName));
+    }
+
+    public String getConfigRootDir() {
+        return configRootDir;
+    }
+
+    public String getConfigFileName() {
+        return configFileName;
+    }
+
+    /**
+     * Equivalent of {@link PyramidApiTools#pyramidIdToConfiguration(String, String, String)} with
+     * this configuration root folder and file name. Unlike that method, it returns the same String instance
+     * while the configuration file is not changed.
+     *
+     * @param pyramidId pyramid id.
+     * @return content of the configuration file.
+     * @throws IOException in a case of I/O error, in particular, if the configuration file does not exist.
+     */
+    public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+        return getEntry(pyramidId).configuration;
+    }
+
+    /**
+     * Returns {@link PyramidApiTools#configurationToJson(String) parsed} result of
+     * {@link #pyramidIdToConfiguration(String)}. The json is parsed once while the file is not changed.
+     *
+     * @param pyramidId pyramid id.
+     * @return configuration json.
+     * @throws IOException in a case of I/O error or if the configuration is not a correct json.
+     */
+    public JsonObject pyramidIdToConfigurationJson(String pyramidId) throws IOException {
+        final CachedConfiguration entry = getEntry(pyramidId);
+        JsonObject result = entry.configurationJson;
+        if (result == null) {
+            // - no synchronization: in the worst case, the json will be parsed twice
+            entry.configurationJson = result = PyramidApiTools.configurationToJson(entry.configuration);
+        }
+        return result;
+    }
+
+    public void invalidate(String pyramidId) {
+        synchronized (entries) {
+            entries.remove(pyramidId);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return "pyramid configuration cache for " + configRootDir + "/*/" + configFileName
+                + " (" + entries.size() + " configurations)";
+        }
+    }
+
+    private CachedConfiguration getEntry(String pyramidId) throws IOException {
+        if (!PyramidApiTools.isAllowedPyramidId(pyramidId)) {
+            throw new IllegalArgumentException("Disallowed pyramid id: \"" + pyramidId + "\"");
+        }
+        final long currentTime = System.currentTimeMillis();
+        CachedConfiguration entry;
+        synchronized (entries) {
+            entry = entries.get(pyramidId);
+        }
+        if (entry != null && currentTime - entry.checkingTime < PyramidConstants.CONFIGURATION_CACHE_CHECKING_PERIOD) {
+            return entry;
+        }
+        final Path path = entry != null ? entry.path : Paths.get(configRootDir, pyramidId, configFileName);
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidate(pyramidId);
+            throw new FileNotFoundException("File " + path.toAbsolutePath() + " does not exists");
+        }
+        if (!attributes.isRegularFile()) {
+            invalidate(pyramidId);
+            throw new FileNotFoundException("File " + path.toAbsolutePath() + " does not exists");
+        }
+        final long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+        final long size = attributes.size();
+        if (entry != null && entry.lastModifiedTime == lastModifiedTime && entry.size == size) {
+            entry.checkingTime = currentTime;
+            return entry;
+        }
+        final String configuration = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        entry = new CachedConfiguration(path, configuration, lastModifiedTime, size, currentTime);
+        synchronized (entries) {
+            entries.put(pyramidId, entry);
+        }
+        return entry;
+    }
+
+    private static final class CachedConfiguration {
+        private final Path path;
+        private final String configuration;
+        private final long lastModifiedTime;
+        private final long size;
+        private volatile JsonObject configurationJson = null;
+        private volatile long checkingTime;
+
+        private CachedConfiguration(
+            Path path,
+            String configuration,
+            long lastModifiedTime,
+            long size,
+            long checkingTime)
+        {
+            this.path = path;
+            this.configuration = configuration;
+            this.lastModifiedTime = lastModifiedTime;
+            this.size = size;
+            this.checkingTime = checkingTime;
+        }
+    }
+}
@@ -50,6 +50,8 @@ public class PyramidConstants {
     public static final String PYRAMID_DATA_CONFIG_FILE_NAME = System.getProperty(
         "net.algart.pyramid.api.common.pyramidDataConfigFileName", ".pp.json");
 
+    public static final String SCHEDULING_WEIGHT_NAME_IN_CONFIGURATION_JSON = "schedulingWeight";
+
     public static final String FORMAT_NAME_IN_PYRAMID_DATA_CONFIG_FILE =
         FORMAT_NAME_IN_PYRAMID_FACTORY_CONFIGURATION_JSON;
     public static final String FILE_NAME_IN_PYRAMID_DATA_CONFIG_FILE = "fileName";
@@ -65,6 +67,13 @@ public class PyramidConstants {
     public static final String DEFAULT_IMAGES_ROOT_DIR = System.getProperty(
         "net.algart.pyramid.api.common.imagesRoot", "/pp-images");
 
+    public static final int CONFIGURATION_CACHE_SIZE = Math.max(1, Integer.getInteger(
+        "net.algart.pyramid.api.common.configurationCacheSize", 100000));
+    public static final long CONFIGURATION_CACHE_CHECKING_PERIOD = Math.max(0, Long.getLong(
+        "net.algart.pyramid.api.common.configurationCacheCheckingPeriod", 2000L));
+    // - during this time (ms) a cached configuration is used without checking the configuration file;
+    // see PyramidConfigurationCache
+
     public static String getStringEnv(String envVarName, String defaultValue) {
         try {
             String s = System.getenv(envVarName);
@@ -0,0 +1,403 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.api.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pixels of an image (usually a rectangle of a pyramid) in a compact binary form: the response of
+ * the pyramids with "rawBytes" flag. It is intended for machine clients, which need the pixel values
+ * and not an image file: there is no encoding/decoding of PNG or other formats.
+ *
+ * <p>Binary format. The header has {@link #HEADER_LENGTH} bytes, all integers are big-endian:</p>
+ * <pre>
+ * 4 bytes   {@link #MAGIC} ("PPRP")
+ * 1 byte    version ({@link #VERSION})
+ * 1 byte    element type: 1 byte, 2 short, 3 char, 4 int, 5 long, 6 float, 7 double
+ * 1 byte    flags: {@link #FLAG_PLANAR}, {@link #FLAG_COMPRESSED}, {@link #FLAG_LITTLE_ENDIAN}
+ * 1 byte    reserved (0)
+ * int       number of bands (channels)
+ * int       width
+ * int       height
+ * int       length of the samples in bytes (before compression)
+ * </pre>
+ * <p>Then the samples follow in the byte order, specified by the flags, compressed by deflate (zlib)
+ * if {@link #FLAG_COMPRESSED} is set. Without {@link #FLAG_PLANAR}, the samples are interleaved:
+ * all bands of the 1st pixel, all bands of the 2nd pixel, etc. (pixels are stored row by row);
+ * it is the same order as in AlgART matrix <tt>bandCount x width x height</tt>, used by the pyramids.
+ * With {@link #FLAG_PLANAR}, all pixels of the 1st band are stored, then all pixels of the 2nd band, etc.
+ * Note: byte and short samples are usually unsigned.</p>
+ *
+ * <p>This class is immutable and thread-safe, if the array of samples is not modified.</p>
+ */
+public final class PyramidRawPixels {
+    public static final int MAGIC = ('P' << 24) | ('P' << 16) | ('R' << 8) | 'P';
+    public static final int VERSION = 1;
+    public static final int FLAG_PLANAR = 1;
+    public static final int FLAG_COMPRESSED = 2;
+    public static final int FLAG_LITTLE_ENDIAN = 4;
+    public static final int HEADER_LENGTH = 24;
+
+    private static final Class<?>[] ELEMENT_TYPES = {
+        null, byte.class, short.class, char.class, int.class, long.class, float.class, double.class};
+    private static final int[] ELEMENT_SIZES = {0, 1, 2, 2, 4, 8, 4, 8};
+
+    private final Object samples;
+    private final Class<?> elementType;
+    private final int bandCount;
+    private final int width;
+    private final int height;
+    private final boolean planar;
+
+    private PyramidRawPixels(Object samples, int bandCount, int width, int height, boolean planar) {
+        Objects.requireNonNull(samples, "Null samples array");
+        if (bandCount <= 0 || width < 0 || height < 0) {
+            throw new IllegalArgumentException("Zero or negative number of bands or negative width/height");
+        }
+        this.elementType = samples.getClass().getComponentType();
+        if (elementTypeCode(elementType) < 0) {
+            throw new IllegalArgumentException("Unsupported type of samples array: " + samples.getClass());
+        }
+        if (java.lang.reflect.Array.getLength(samples) != (long) bandCount * (long) width * (long) height) {
+            throw new IllegalArgumentException("Samples array must have length bandCount*width*height");
+        }
+        this.samples = samples;
+        this.bandCount = bandCount;
+        this.width = width;
+        this.height = height;
+        this.planar = planar;
+    }
+
+    /**
+     * Creates the pixels with interleaved samples (in AlgART matrix terms, it is the Java array of the matrix
+     * <tt>bandCount x width x height</tt>).
+     *
+     * @param samples   Java array of samples: byte[], short[], char[], int[], long[], float[] or double[].
+     * @param bandCount number of bands.
+     * @param width     width of the image.
+     * @param height    height of the image.
+     * @return new pixels.
+     */
+    public static PyramidRawPixels newInterleaved(Object samples, int bandCount, int width, int height) {
+        return new PyramidRawPixels(samples, bandCount, width, height, false);
+    }
+
+    public static PyramidRawPixels newPlanar(Object samples, int bandCount, int width, int height) {
+        return new PyramidRawPixels(samples, bandCount, width, height, true);
+    }
+
+    /**
+     * Decodes the result of {@link #toBytes}.
+     *
+     * @param bytes binary form of the pixels.
+     * @return decoded pixels.
+     * @throws IOException if the bytes are not in this format.
+     */
+    public static PyramidRawPixels valueOf(byte[] bytes) throws IOException {
+        Objects.requireNonNull(bytes, "Null bytes");
+        if (bytes.length < HEADER_LENGTH) {
+            throw new IOException("Too short raw pixels data: " + bytes.length + " bytes");
+        }
+        final ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_LENGTH);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not raw pixels data: invalid signature");
+        }
+        final int version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version of raw pixels data: " + version);
+        }
+        final int typeCode = header.get();
+        if (typeCode <= 0 || typeCode >= ELEMENT_TYPES.length) {
+            throw new IOException("Unknown element type code in raw pixels data: " + typeCode);
+        }
+        final int flags = header.get();
+        header.get();
+        final int bandCount = header.getInt();
+        final int width = header.getInt();
+        final int height = header.getInt();
+        final int samplesLength = header.getInt();
+        final long numberOfSamples = (long) bandCount * (long) width * (long) height;
+        if (bandCount <= 0 || width < 0 || height < 0 || numberOfSamples * ELEMENT_SIZES[typeCode] != samplesLength) {
+            throw new IOException("Inconsistent sizes in raw pixels data: " + bandCount + " bands, "
+                + width + "x" + height + ", " + samplesLength + " bytes");
+        }
+        final byte[] sampleBytes;
+        final int sampleOffset;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            sampleBytes = inflate(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, samplesLength);
+            sampleOffset = 0;
+        } else {
+            if (bytes.length - HEADER_LENGTH != samplesLength) {
+                throw new IOException("Invalid length of raw pixels data: " + bytes.length + " bytes");
+            }
+            sampleBytes = bytes;
+            sampleOffset = HEADER_LENGTH;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(sampleBytes, sampleOffset, samplesLength).slice().order(
+            (flags & FLAG_LITTLE_ENDIAN) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        final int n = (int) numberOfSamples;
+        final Object samples;
+        switch (typeCode) {
+            case 1: {
+                final byte[] a = new byte[n];
+                buffer.get(a);
+                samples = a;
+                break;
+            }
+            case 2: {
+                final short[] a = new short[n];
+                buffer.asShortBuffer().get(a);
+                samples = a;
+                break;
+            }
+            case 3: {
+                final char[] a = new char[n];
+                buffer.asCharBuffer().get(a);
+                samples = a;
+                break;
+            }
+            case 4: {
+                final int[] a = new int[n];
+                buffer.asIntBuffer().get(a);
+                samples = a;
+                break;
+            }
+            case 5: {
+                final long[] a = new long[n];
+                buffer.asLongBuffer().get(a);
+                samples = a;
+                break;
+            }
+            case 6: {
+                final float[] a = new float[n];
+                buffer.asFloatBuffer().get(a);
+                samples = a;
+                break;
+            }
+            default: {
+                final double[] a = new double[n];
+                buffer.asDoubleBuffer().get(a);
+                samples = a;
+                break;
+            }
+        }
+        return new PyramidRawPixels(samples, bandCount, width, height, (flags & FLAG_PLANAR) != 0);
+    }
+
+    /**
+     * Returns the Java array of samples: byte[], short[], char[], int[], long[], float[] or double[].
+     * If the pixels are {@link #isPlanar() interleaved}, it can be used as the array of AlgART matrix
+     * <tt>bandCount x width x height</tt>, for example:
+     * <tt>Matrices.matrix(SimpleMemoryModel.asUpdatableArray(samples), bandCount, width, height)</tt>;
+     * if they are planar, it is the array of the matrix <tt>width x height x bandCount</tt>.
+     * The returned array is not cloned.
+     *
+     * @return the samples.
+     */
+    public Object getSamples() {
+        return samples;
+    }
+
+    public Class<?> getElementType() {
+        return elementType;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isPlanar() {
+        return planar;
+    }
+
+    /**
+     * Returns the same pixels with interleaved or planar samples.
+     *
+     * @param planar whether the result should be planar.
+     * @return the pixels with the required layout; this object if it already has this layout.
+     */
+    public PyramidRawPixels toLayout(boolean planar) {
+        if (planar == this.planar || bandCount == 1) {
+            return planar == this.planar ? this : new PyramidRawPixels(samples, bandCount, width, height, planar);
+        }
+        final int numberOfPixels = width * height;
+        final Object result = java.lang.reflect.Array.newInstance(elementType, numberOfPixels * bandCount);
+        final int srcBandStep = planar ? 1 : numberOfPixels;
+        final int srcPixelStep = planar ? bandCount : 1;
+        final int destBandStep = planar ? numberOfPixels : 1;
+        final int destPixelStep = planar ? 1 : bandCount;
+        for (int b = 0; b < bandCount; b++) {
+            int srcIndex = b * srcBandStep;
+            int destIndex = b * destBandStep;
+            if (samples instanceof byte[]) {
+                // - the most typical case: optimized
+                final byte[] src = (byte[]) samples;
+                final byte[] dest = (byte[]) result;
+                for (int p = 0; p < numberOfPixels; p++, srcIndex += srcPixelStep, destIndex += destPixelStep) {
+                    dest[destIndex] = src[srcIndex];
+                }
+            } else if (samples instanceof short[]) {
+                final short[] src = (short[]) samples;
+                final short[] dest = (short[]) result;
+                for (int p = 0; p < numberOfPixels; p++, srcIndex += srcPixelStep, destIndex += destPixelStep) {
+                    dest[destIndex] = src[srcIndex];
+                }
+            } else {
+                for (int p = 0; p < numberOfPixels; p++, srcIndex += srcPixelStep, destIndex += destPixelStep) {
+                    System.arraycopy(samples, srcIndex, result, destIndex, 1);
+                }
+            }
+        }
+        return new PyramidRawPixels(result, bandCount, width, height, planar);
+    }
+
+    /**
+     * Encodes the pixels into the binary format, described in the comments to this class.
+     *
+     * @param compressed whether the samples should be compressed by deflate with the fastest level
+     *                   (usually useful for byte and short samples with large uniform areas).
+     * @param byteOrder  byte order of the samples.
+     * @return binary form of the pixels.
+     */
+    public byte[] toBytes(boolean compressed, ByteOrder byteOrder) {
+        Objects.requireNonNull(byteOrder, "Null byte order");
+        final int typeCode = elementTypeCode(elementType);
+        final long longSamplesLength = (long) java.lang.reflect.Array.getLength(samples) * ELEMENT_SIZES[typeCode];
+        if (longSamplesLength > Integer.MAX_VALUE - HEADER_LENGTH) {
+            throw new IllegalStateException("Too large raw pixels: >=2^31 bytes");
+        }
+        final int samplesLength = (int) longSamplesLength;
+        final byte[] result = new byte[HEADER_LENGTH + samplesLength];
+        final ByteBuffer buffer = ByteBuffer.wrap(result);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) typeCode);
+        buffer.put((byte) ((planar ? FLAG_PLANAR : 0)
+            | (compressed ? FLAG_COMPRESSED : 0)
+            | (byteOrder == ByteOrder.LITTLE_ENDIAN ? FLAG_LITTLE_ENDIAN : 0)));
+        buffer.put((byte) 0);
+        buffer.putInt(bandCount);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(samplesLength);
+        final ByteBuffer data = buffer.slice().order(byteOrder);
+        switch (typeCode) {
+            case 1:
+                data.put((byte[]) samples);
+                break;
+            case 2:
+                data.asShortBuffer().put((short[]) samples);
+                break;
+            case 3:
+                data.asCharBuffer().put((char[]) samples);
+                break;
+            case 4:
+                data.asIntBuffer().put((int[]) samples);
+                break;
+            case 5:
+                data.asLongBuffer().put((long[]) samples);
+                break;
+            case 6:
+                data.asFloatBuffer().put((float[]) samples);
+                break;
+            default:
+                data.asDoubleBuffer().put((double[]) samples);
+                break;
+        }
+        return compressed ? deflate(result, samplesLength) : result;
+    }
+
+    @Override
+    public String toString() {
+        return "raw pixels " + width + "x" + height + ", " + bandCount + " " + elementType
+            + (bandCount == 1 ? " band" : planar ? " planar bands" : " interleaved bands");
+    }
+
+    private static int elementTypeCode(Class<?> elementType) {
+        for (int k = 1; k < ELEMENT_TYPES.length; k++) {
+            if (ELEMENT_TYPES[k] == elementType) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] deflate(byte[] uncompressed, int samplesLength) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(uncompressed, HEADER_LENGTH, samplesLength);
+            deflater.finish();
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream(HEADER_LENGTH + samplesLength / 2 + 64);
+            stream.write(uncompressed, 0, HEADER_LENGTH);
+            final byte[] buffer = new byte[65536];
+            while (!deflater.finished()) {
+                stream.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return stream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int offset, int length, int samplesLength) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            final byte[] result = new byte[samplesLength];
+            int resultLength = 0;
+            while (resultLength < samplesLength) {
+                final int n = inflater.inflate(result, resultLength, samplesLength - resultLength);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                resultLength += n;
+            }
+            if (resultLength != samplesLength || !inflater.finished()) {
+                throw new IOException("Invalid compressed raw pixels data: " + resultLength + " bytes instead of "
+                    + samplesLength);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed raw pixels data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
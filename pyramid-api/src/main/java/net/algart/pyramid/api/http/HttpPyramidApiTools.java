@@ -25,6 +25,7 @@
 package net.algart.pyramid.api.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
@@ -40,6 +41,15 @@ public class HttpPyramidApiTools {
         return systemCommandsFolder.resolve(keyFileFrefix + urlPrefix.substring(1, urlPrefix.length()));
     }
 
+    /**
+     * File, into which the service writes the result of the system command (for example, the JSON status report)
+     * before removing its key file.
+     */
+    public static Path systemCommandResultFile(String urlPrefix, int port, Path systemCommandsFolder) {
+        final Path keyFile = keyFile(urlPrefix, port, systemCommandsFolder);
+        return keyFile.resolveSibling(keyFile.getFileName() + HttpPyramidConstants.SYSTEM_COMMANDS_RESULT_SUFFIX);
+    }
+
     public static Path systemCommandsFolder(Path projectRoot) {
         return projectRoot.resolve(HttpPyramidConstants.SYSTEM_COMMANDS_FOLDER).toAbsolutePath();
     }
@@ -90,6 +100,55 @@ public class HttpPyramidApiTools {
             + "&toY=" + toY;
     }
 
+    public static String tilesPathAndQuery(String pyramidId) {
+        return HttpPyramidConstants.CommandPrefixes.TILES
+            + "?" + HttpPyramidConstants.PYRAMID_ID_PARAMETER_NAME
+            + "=" + encodePyramidId(pyramidId);
+    }
+
+    /**
+     * Returns the form data (POST parameters) for {@link HttpPyramidConstants.CommandPrefixes#TILES} command.
+     *
+     * @param tiles      TMS tiles: every element is {z, x, y}; may be empty.
+     * @param rectangles rectangles: every element is {fromX, fromY, toX, toY}; may be empty.
+     * @param compression the compression of all rectangles.
+     * @return form data for the POST request.
+     */
+    public static String tilesFormData(int[][] tiles, long[][] rectangles, double compression) {
+        final StringBuilder tilesParameter = new StringBuilder();
+        for (int[] tile : tiles) {
+            if (tile.length != 3) {
+                throw new IllegalArgumentException("Tile must be specified by 3 numbers z, x, y");
+            }
+            tilesParameter.append(tilesParameter.length() == 0 ? "" : ",")
+                .append(tile[0]).append('/').append(tile[1]).append('/').append(tile[2]);
+        }
+        final StringBuilder rectanglesParameter = new StringBuilder();
+        for (long[] rectangle : rectangles) {
+            if (rectangle.length != 4) {
+                throw new IllegalArgumentException("Rectangle must be specified by 4 numbers fromX, fromY, toX, toY");
+            }
+            rectanglesParameter.append(rectanglesParameter.length() == 0 ? "" : ",")
+                .append(compression).append('/').append(rectangle[0]).append('/').append(rectangle[1])
+                .append('/').append(rectangle[2]).append('/').append(rectangle[3]);
+        }
+        return "tiles=" + tilesParameter + "&rectangles=" + rectanglesParameter;
+        // - no special characters: URL encoding is not necessary
+    }
+
+    public static HttpURLConnection openPostConnection(URI uri, String formData) throws IOException {
+        final HttpURLConnection result = openConnection(uri, "POST", false);
+        result.setDoOutput(true);
+        result.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+        try (OutputStream outputStream = result.getOutputStream()) {
+            outputStream.write(formData.getBytes(StandardCharsets.UTF_8));
+        }
+        if (result.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Invalid response: code " + result.getResponseCode()
+                + ", message " + result.getResponseMessage());
+        }
+        return result;
+    }
 
     public static HttpURLConnection openConnection(URI uri, String requestMethod, boolean checkStatus)
         throws IOException
@@ -36,15 +36,111 @@ public class HttpPyramidConstants {
 
     public static final String LOCAL_HOST = System.getProperty(
         "net.algart.pyramid.http.localHost", "localhost");
+    public static final boolean HTTP2_ENABLED = Boolean.getBoolean(
+        "net.algart.pyramid.http.http2");
+    // - if true, the service accepts also HTTP/2 without TLS (h2c), requested by "Upgrade" header;
+    // the client can request many tiles via one connection without the limit of ~6 connections per host;
+    // HTTP/1.1 connections are still served as usual; HTTP/2 over TLS (h2 negotiated by ALPN) is not supported:
+    // in Java 8 it requires grizzly-npn-bootstrap library in -Xbootclasspath/p:, which is not configured;
+    // the proxy forwards requests to the services via HTTP/1.1 in any case; Grizzly logs every HTTP/2 frame
+    // with INFO level, so it is better to set "org.glassfish.grizzly.http2" logger to WARNING in logging.properties
     public static final int MAX_NUMBER_OF_PYRAMIDS_IN_POOL = Math.max(16, Integer.getInteger(
         "net.algart.pyramid.http.maxNumberOfPyramidsInPool", 256));
+    public static final long PYRAMID_POOL_MEMORY_BUDGET = Math.max(1, Long.getLong(
+        "net.algart.pyramid.http.pyramidPoolMemoryBudget", Runtime.getRuntime().maxMemory() / 2));
+    public static final long PYRAMID_POOL_OPEN_FILES_BUDGET = Math.max(1, Long.getLong(
+        "net.algart.pyramid.http.pyramidPoolOpenFilesBudget", 4096L));
+    // - limits for the total estimated memory (bytes) and number of open files of the pyramids in the pool;
+    // pyramids, which do not estimate their memory, are not counted in the memory budget
+    public static final long PYRAMID_POOL_FREQUENCY_HALF_LIFE = Math.max(1, Long.getLong(
+        "net.algart.pyramid.http.pyramidPoolFrequencyHalfLife", 60000L));
+    // - when the pool is overflown, the least frequently used pyramid is removed; the access counters
+    // are halved every this number of ms, so that formerly popular pyramids do not stay in the pool forever
 
     public static final long IMAGE_CACHING_MEMORY = Math.max(16, Long.getLong(
         "net.algart.pyramid.http.imageCachingMemory", 256L * 1024L * 1024L));
+    public static final long OFF_HEAP_IMAGE_CACHING_MEMORY = Math.max(0, Long.getLong(
+        "net.algart.pyramid.http.offHeapImageCachingMemory", 0L));
+    // - 0 means that the off-heap cache level is not used;
+    // the direct memory of JVM should be increased by -XX:MaxDirectMemorySize correspondingly
+    public static final String DISK_IMAGE_CACHING_FOLDER = System.getProperty(
+        "net.algart.pyramid.http.diskImageCachingFolder");
+    // - null means that the disk cache level is not used
+    public static final long DISK_IMAGE_CACHING_SPACE = Math.max(0, Long.getLong(
+        "net.algart.pyramid.http.diskImageCachingSpace", 4L * 1024L * 1024L * 1024L));
+    public static final long SAVING_MEMORY_BUDGET = Math.max(1, Long.getLong(
+        "net.algart.pyramid.http.savingMemoryBudget",
+        Math.max(16L * 1024L * 1024L, Runtime.getRuntime().maxMemory() / 4)));
+    // - total estimated memory (bytes) of simultaneously performed requests in saving-memory mode
+    // (like reading special images); a request, requiring more, is performed alone
 
     public static final int SERVER_WAITING_IN_QUEUE_AND_READING_TIMEOUT = 60000;
     // - must be less than HttpProxy.DEFAULT_READING_FROM_SERVER_TIMEOUT_IN_MS
     public static final int SERVER_SENDING_TIMEOUT = 120000;
+    public static final String READ_THREAD_POOL_MODE = System.getProperty(
+        "net.algart.pyramid.http.readThreadPoolMode", "fixed");
+    // - "fixed": one reading thread per processor; "io": READ_THREAD_POOL_SIZE threads, for slow (network)
+    // storage; "virtual": new virtual thread per task, not more than READ_THREAD_POOL_SIZE at the same time
+    // (requires JDK 21+, in other case "io" mode is used)
+    public static final int READ_THREAD_POOL_SIZE = Math.max(1, Integer.getInteger(
+        "net.algart.pyramid.http.readThreadPoolSize", 64));
+    public static final int RENDERING_THREAD_POOL_SIZE = Math.max(0, Integer.getInteger(
+        "net.algart.pyramid.http.renderingThreadPoolSize", Runtime.getRuntime().availableProcessors()));
+    public static final int ENCODING_THREAD_POOL_SIZE = Math.max(0, Integer.getInteger(
+        "net.algart.pyramid.http.encodingThreadPoolSize", Runtime.getRuntime().availableProcessors()));
+    // - threads for CPU-bound stages of reading, after reading source data by the read thread pool;
+    // 0 means that the stage is performed by the thread of the previous stage
+    public static final int PIPELINE_STAGE_QUEUE_CAPACITY = Math.max(1, Integer.getInteger(
+        "net.algart.pyramid.http.pipelineStageQueueCapacity", 64));
+    // - when the queue of rendering or encoding stage is full, the previous stage performs this stage itself
+    public static final int READ_QUEUE_CAPACITY = Math.max(1, Integer.getInteger(
+        "net.algart.pyramid.http.readQueueCapacity", 256));
+    public static final long READ_QUEUE_MAX_WAITING_TIME = Math.max(0, Long.getLong(
+        "net.algart.pyramid.http.readQueueMaxWaitingTime", 20000L));
+    // - the tasks, which will probably wait in the queue longer than this time (ms), are rejected at once;
+    // should be less than SERVER_WAITING_IN_QUEUE_AND_READING_TIMEOUT
+    public static final String READ_SCHEDULING_FAIRNESS = System.getProperty(
+        "net.algart.pyramid.http.readSchedulingFairness", "pyramid");
+    // - "pyramid": every pyramid has its own sub-queue, and sub-queues are served in turn (deficit round-robin);
+    // "client": the same for every client address; "none": one common queue, ordered by priority only
+    public static final double DEFAULT_READ_SCHEDULING_WEIGHT = Math.max(0.01, Double.parseDouble(System.getProperty(
+        "net.algart.pyramid.http.defaultReadSchedulingWeight", "1.0")));
+    // - the weight of pyramids without "schedulingWeight" in the configuration json, and of all clients
+    public static final String TILE_SCHEDULING = System.getProperty(
+        "net.algart.pyramid.http.tileScheduling", "fifo");
+    // - "fifo": tiles are read in the order of requests; "viewport": newer tiles are read first
+    // (inside every sub-queue), because they usually belong to the viewport, which the user looks at now
+    public static final int TILE_LEVEL_SCHEDULING_BONUS = Math.max(0, Integer.getInteger(
+        "net.algart.pyramid.http.tileLevelSchedulingBonus", 64));
+    // - in "viewport" mode, a tile of the coarser level is read as if it was requested after this number
+    // of further requests, so a rough view appears first
+    public static final int TILE_PREFETCH_RADIUS = Math.max(0, Integer.getInteger(
+        "net.algart.pyramid.http.tilePrefetchRadius", 0));
+    // - when a TMS or Zoomify tile is requested, the tiles at this distance around it and its children
+    // (only existing ones) are read into the cache by reading tasks with the lowest priority;
+    // 0 means that prefetching is disabled
+    public static final int TILE_PREFETCH_MAX_LOAD = Math.max(0, Integer.getInteger(
+        "net.algart.pyramid.http.tilePrefetchMaxLoad", 0));
+    // - prefetching is performed only while the reading queue contains not more than this number of other
+    // (not prefetching) tasks; in other case, the queued prefetching tasks are removed from the queue
+    public static final long DATA_MODIFICATION_CHECKING_PERIOD = Math.max(0, Long.getLong(
+        "net.algart.pyramid.http.dataModificationCheckingPeriod", 5000L));
+    // - during this time (ms) the server answers "304 Not modified" without checking pyramid data files
+    public static final int MAX_BATCH_SIZE = Math.max(1, Integer.getInteger(
+        "net.algart.pyramid.http.maxBatchSize", 512));
+    // - maximal number of tiles or rectangles in one request of CommandPrefixes.TILES command
+
+    /**
+     * Content type of the response of {@link CommandPrefixes#TILES} command. The response is a sequence
+     * of parts in the order of their readiness (not in the order of the request); every part is:
+     * <pre>
+     *     int index (of the tile/rectangle in the request), int status (200 or an error code),
+     *     int length of the content type, content type (UTF-8),
+     *     int length of the data, data (image or error message)
+     * </pre>
+     * All integers are 32-bit big-endian. There is exactly one part for every tile/rectangle of the request.
+     */
+    public static final String BATCH_CONTENT_TYPE = "application/x-pyramid-batch";
 
     public static final int CLIENT_CONNECTION_TIMEOUT = 30000;
     public static final int CLIENT_READ_TIMEOUT = 90000;
@@ -71,11 +167,13 @@ public class HttpPyramidConstants {
         public static final String FINISH = PREXIX_START + "finish";
         public static final String GC = PREXIX_START + "gc";
         public static final String ALIVE_STATUS = PREXIX_START + "alive-status";
+        public static final String STATUS = PREXIX_START + "status";
         public static final String INFORMATION = PREXIX_START + "information";
         public static final String READ_SPECIAL_IMAGE = PREXIX_START + "read-special-image";
         public static final String READ_RECTANGLE = PREXIX_START + "read-rectangle";
         public static final String TMS = PREXIX_START + "tms";
         public static final String ZOOMIFY = PREXIX_START + "zoomify";
+        public static final String TILES = PREXIX_START + "tiles";
 
         private CommandPrefixes() {}
     }
@@ -86,6 +184,10 @@ public class HttpPyramidConstants {
      * where %d is replaced with the port number.
      */
     public static final String SYSTEM_COMMANDS_FILE_PREFIX = ".command.%d.";
+    /**
+     * Suffix, added to the name of the key file to get the name of the file with the command result.
+     */
+    public static final String SYSTEM_COMMANDS_RESULT_SUFFIX = ".result";
 
     /**
      * Standard name for pyramid ID parameter in GET/POST requests. Used by pyramid services and proxy,
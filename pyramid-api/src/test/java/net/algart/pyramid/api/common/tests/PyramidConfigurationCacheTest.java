@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.api.common.tests;
+
+import net.algart.pyramid.api.common.PyramidApiTools;
+import net.algart.pyramid.api.common.PyramidConfigurationCache;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+public class PyramidConfigurationCacheTest {
+    private static final String CONFIG_FILE_NAME = "config.json";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.printf("Usage: %s numberOfCalls%n", PyramidConfigurationCacheTest.class.getName());
+            return;
+        }
+        final int numberOfCalls = Integer.parseInt(args[0]);
+        final Path configRoot = Files.createTempDirectory("pp-links");
+        final String pyramidId = "test-pyramid";
+        final Path configFile = Files.createDirectory(configRoot.resolve(pyramidId)).resolve(CONFIG_FILE_NAME);
+        Files.write(configFile, "{\"pyramidPath\":\"/pp-images/1\"}".getBytes(StandardCharsets.UTF_8));
+        final PyramidConfigurationCache cache = PyramidConfigurationCache.getInstance(
+            configRoot.toString(), CONFIG_FILE_NAME);
+        for (int test = 1; test <= 3; test++) {
+            long t1 = System.nanoTime();
+            for (int k = 0; k < numberOfCalls; k++) {
+                PyramidApiTools.configurationToJson(
+                    PyramidApiTools.pyramidIdToConfiguration(pyramidId, configRoot.toString(), CONFIG_FILE_NAME));
+            }
+            long t2 = System.nanoTime();
+            for (int k = 0; k < numberOfCalls; k++) {
+                cache.pyramidIdToConfigurationJson(pyramidId);
+            }
+            long t3 = System.nanoTime();
+            System.out.printf(Locale.US, "Test #%d: %.3f mcs/call without cache, %.3f mcs/call with %s%n",
+                test, (t2 - t1) * 1e-3 / numberOfCalls, (t3 - t2) * 1e-3 / numberOfCalls, cache);
+        }
+        final String oldConfiguration = cache.pyramidIdToConfiguration(pyramidId);
+        Files.write(configFile, "{\"pyramidPath\":\"/pp-images/2-changed\"}".getBytes(StandardCharsets.UTF_8));
+        System.out.printf("Configuration file changed; immediately: %s%n", cache.pyramidIdToConfiguration(pyramidId));
+        Thread.sleep(3000);
+        final String newConfiguration = cache.pyramidIdToConfiguration(pyramidId);
+        System.out.printf("3 seconds later: %s%n", newConfiguration);
+        if (newConfiguration.equals(oldConfiguration)) {
+            throw new AssertionError("Configuration cache was not invalidated");
+        }
+        Files.delete(configFile);
+        Files.delete(configFile.getParent());
+        Files.delete(configRoot);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.api.common.tests;
+
+import net.algart.pyramid.api.common.PyramidRawPixels;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+public class PyramidRawPixelsTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.printf("Usage: %s width height bandCount%n", PyramidRawPixelsTest.class.getName());
+            return;
+        }
+        final int width = Integer.parseInt(args[0]);
+        final int height = Integer.parseInt(args[1]);
+        final int bandCount = Integer.parseInt(args[2]);
+        final Random rnd = new Random(157);
+        final byte[] bytes = new byte[width * height * bandCount];
+        for (int k = 0; k < bytes.length; k++) {
+            bytes[k] = (byte) (k / 1000 % 2 == 0 ? 255 : rnd.nextInt(256));
+            // - half of data is well compressible
+        }
+        final short[] shorts = new short[bytes.length];
+        final double[] doubles = new double[bytes.length];
+        for (int k = 0; k < bytes.length; k++) {
+            shorts[k] = (short) (bytes[k] * 157);
+            doubles[k] = bytes[k] * 0.1;
+        }
+        for (Object samples : new Object[] {bytes, shorts, doubles}) {
+            final PyramidRawPixels pixels = PyramidRawPixels.newInterleaved(samples, bandCount, width, height);
+            for (boolean planar : new boolean[] {false, true}) {
+                for (boolean compressed : new boolean[] {false, true}) {
+                    for (ByteOrder byteOrder : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                        long t1 = System.nanoTime();
+                        final byte[] encoded = pixels.toLayout(planar).toBytes(compressed, byteOrder);
+                        long t2 = System.nanoTime();
+                        final PyramidRawPixels decoded = PyramidRawPixels.valueOf(encoded);
+                        long t3 = System.nanoTime();
+                        final Object result = decoded.toLayout(false).getSamples();
+                        if (!Arrays.deepEquals(new Object[] {samples}, new Object[] {result})
+                            || decoded.isPlanar() != planar
+                            || decoded.getBandCount() != bandCount
+                            || decoded.getWidth() != width
+                            || decoded.getHeight() != height)
+                        {
+                            throw new AssertionError("Bug: decoded " + decoded + " differs from " + pixels);
+                        }
+                        System.out.printf(Locale.US, "%s, %s, %s: %d bytes, encoding %.3f ms, decoding %.3f ms%n",
+                            decoded, compressed ? "compressed" : "uncompressed", byteOrder,
+                            encoded.length, (t2 - t1) * 1e-6, (t3 - t2) * 1e-6);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.imageio;
+
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * JPEG encoder, based on the standard ImageIO JPEG writer, but without its overheads in a server,
+ * encoding many small images: every thread reuses its own <tt>ImageWriter</tt> and output buffer,
+ * which is presized from the previous image, and there is no file cache and no copying
+ * from <tt>ByteArrayOutputStream</tt>. Unlike <tt>ImageIO.write</tt>, allows to specify
+ * the quality and chroma subsampling.
+ *
+ * <p>Like {@link QuickBMPWriter}, it can also encode 8-bit interleaved pixels (grayscale, RGB or RGBA)
+ * without creating <tt>BufferedImage</tt> with its own copy of pixels: the JPEG writer reads the passed array
+ * directly, and alpha channel (not supported by JPEG) is blended with the background color in one pass.</p>
+ *
+ * <p>This class is not thread-safe, but different instances can be used in different threads.</p>
+ */
+public class QuickJPEGWriter {
+    public static final float DEFAULT_QUALITY = 0.75f;
+    // - the same as in ImageIO
+    public static final boolean DEFAULT_CHROMA_SUBSAMPLING = true;
+    // - 4:2:0, as in ImageIO
+
+    static final int MAX_REUSED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final String JPEG_NATIVE_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final ThreadLocal<ThreadWriter> THREAD_WRITERS = ThreadLocal.withInitial(ThreadWriter::new);
+
+    private final BufferedImage image;
+    private float quality = DEFAULT_QUALITY;
+    private boolean chromaSubsampling = DEFAULT_CHROMA_SUBSAMPLING;
+    private byte[] jpegBytes = null;
+
+    public QuickJPEGWriter(BufferedImage image) {
+        if (image == null) {
+            throw new NullPointerException("Null image");
+        }
+        this.image = image;
+    }
+
+    /**
+     * Creates the writer of interleaved pixels: R, G, B, [A] for every pixel or a single intensity byte.
+     * RGBA pixels are blended with the given background color; in other cases, the passed array is used
+     * by the writer without copying and must not be modified until the end of encoding.
+     *
+     * @param width           image width.
+     * @param height          image height.
+     * @param bandCount       number of bands: 1, 3 or 4.
+     * @param data            interleaved pixels.
+     * @param backgroundColor background for semi-transparent pixels (used only if <tt>bandCount=4</tt>).
+     */
+    public QuickJPEGWriter(int width, int height, int bandCount, byte[] data, Color backgroundColor) {
+        if (data == null) {
+            throw new NullPointerException("Null data array");
+        }
+        if (backgroundColor == null) {
+            throw new NullPointerException("Null background color");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Zero or negative width or height");
+        }
+        if (bandCount != 1 && bandCount != 3 && bandCount != 4) {
+            throw new IllegalArgumentException("Unsupported band count = " + bandCount);
+        }
+        if (data.length != (long) width * (long) height * bandCount) {
+            throw new IllegalArgumentException("Data array must have length width*height*bandCount");
+        }
+        if (bandCount == 4) {
+            data = blendWithBackground(data, backgroundColor);
+            bandCount = 3;
+        }
+        this.image = interleavedImage(width, height, bandCount, data);
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Sets the JPEG quality: from 0.0 (smallest, worst quality) to 1.0 (largest, best quality).
+     *
+     * @param quality new quality.
+     * @return a reference to this object.
+     */
+    public QuickJPEGWriter setQuality(float quality) {
+        if (!(quality >= 0.0f && quality <= 1.0f)) {
+            throw new IllegalArgumentException("Quality must be in range 0.0..1.0, but it is " + quality);
+        }
+        this.quality = quality;
+        this.jpegBytes = null;
+        return this;
+    }
+
+    public boolean isChromaSubsampling() {
+        return chromaSubsampling;
+    }
+
+    /**
+     * Sets whether the color components are stored with half resolution (4:2:0, as in ImageIO by default)
+     * or with full resolution (4:4:4: better quality of thin color details, but ~1.5 times larger).
+     * Not used for grayscale images.
+     *
+     * @param chromaSubsampling whether the color components should be subsampled.
+     * @return a reference to this object.
+     */
+    public QuickJPEGWriter setChromaSubsampling(boolean chromaSubsampling) {
+        this.chromaSubsampling = chromaSubsampling;
+        this.jpegBytes = null;
+        return this;
+    }
+
+    public byte[] getJpegBytes() throws IOException {
+        if (jpegBytes == null) {
+            jpegBytes = THREAD_WRITERS.get().write(image, quality, chromaSubsampling);
+        }
+        return jpegBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "QuickJPEGWriter: " +
+            "width=" + image.getWidth() +
+            ", height=" + image.getHeight() +
+            ", quality=" + quality +
+            (chromaSubsampling ? "" : ", no chroma subsampling");
+    }
+
+    private static byte[] blendWithBackground(byte[] rgba, Color backgroundColor) {
+        final int backgroundR = backgroundColor.getRed();
+        final int backgroundG = backgroundColor.getGreen();
+        final int backgroundB = backgroundColor.getBlue();
+        final byte[] result = new byte[rgba.length / 4 * 3];
+        for (int i = 0, j = 0; i < rgba.length; i += 4, j += 3) {
+            final int alpha = rgba[i + 3] & 0xFF;
+            final int backgroundAlpha = 255 - alpha;
+            result[j] = (byte) (((rgba[i] & 0xFF) * alpha + backgroundR * backgroundAlpha + 127) / 255);
+            result[j + 1] = (byte) (((rgba[i + 1] & 0xFF) * alpha + backgroundG * backgroundAlpha + 127) / 255);
+            result[j + 2] = (byte) (((rgba[i + 2] & 0xFF) * alpha + backgroundB * backgroundAlpha + 127) / 255);
+        }
+        return result;
+    }
+
+    private static BufferedImage interleavedImage(int width, int height, int bandCount, byte[] data) {
+        final ColorSpace colorSpace = ColorSpace.getInstance(bandCount == 1 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        final ComponentColorModel colorModel = new ComponentColorModel(
+            colorSpace, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        final WritableRaster raster = Raster.createInterleavedRaster(
+            new DataBufferByte(data, data.length), width, height, width * bandCount, bandCount,
+            bandCount == 1 ? new int[] {0} : new int[] {0, 1, 2}, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private static class ThreadWriter {
+        private final ImageWriter writer;
+        private final ByteArrayImageOutputStream stream = new ByteArrayImageOutputStream();
+        private int previousLength = 0;
+        private ImageTypeSpecifier noSubsamplingImageType = null;
+        private IIOMetadata noSubsamplingMetadata = null;
+        // - building metadata is not too quick, and usually all images in a thread have the same type
+
+        ThreadWriter() {
+            final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            this.writer = writers.hasNext() ? writers.next() : null;
+        }
+
+        byte[] write(BufferedImage image, float quality, boolean chromaSubsampling) throws IOException {
+            if (writer == null) {
+                throw new IIOException("JPEG image format is not supported");
+            }
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            // - quantization tables are calculated from this quality, not from the metadata
+            final IIOMetadata metadata = chromaSubsampling ? null : noSubsamplingMetadata(image, param);
+            stream.reset(previousLength + (previousLength >> 2));
+            // - some reserve: the next image is usually similar
+            try {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            } catch (RuntimeException e) {
+                writer.reset();
+                // - the writer may be in inconsistent state: for example, if the image has unsupported type
+                throw new IIOException("Cannot write " + image + " in JPEG format", e);
+            } finally {
+                writer.setOutput(null);
+            }
+            previousLength = stream.length;
+            final byte[] result = Arrays.copyOf(stream.buffer, stream.length);
+            stream.trim();
+            return result;
+        }
+
+        private IIOMetadata noSubsamplingMetadata(BufferedImage image, ImageWriteParam param)
+            throws IOException
+        {
+            final ImageTypeSpecifier imageType = ImageTypeSpecifier.createFromRenderedImage(image);
+            if (imageType.equals(noSubsamplingImageType)) {
+                return noSubsamplingMetadata;
+            }
+            final IIOMetadata metadata = writer.getDefaultImageMetadata(imageType, param);
+            final IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_NATIVE_METADATA_FORMAT);
+            final NodeList components = root.getElementsByTagName("componentSpec");
+            for (int k = 0; k < components.getLength(); k++) {
+                final IIOMetadataNode component = (IIOMetadataNode) components.item(k);
+                component.setAttribute("HsamplingFactor", "1");
+                component.setAttribute("VsamplingFactor", "1");
+            }
+            metadata.setFromTree(JPEG_NATIVE_METADATA_FORMAT, root);
+            noSubsamplingImageType = imageType;
+            noSubsamplingMetadata = metadata;
+            return metadata;
+        }
+    }
+
+    private static class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+        private static final int MIN_CAPACITY = 16 * 1024;
+
+        private byte[] buffer = new byte[0];
+        private int length = 0;
+
+        void reset(int expectedLength) {
+            if (buffer.length < expectedLength) {
+                buffer = new byte[Math.max(expectedLength, MIN_CAPACITY)];
+            }
+            length = 0;
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+        }
+
+        void trim() {
+            if (buffer.length > MAX_REUSED_BUFFER_SIZE) {
+                buffer = new byte[0];
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            buffer[(int) streamPos++] = (byte) b;
+            length = Math.max(length, (int) streamPos);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, buffer, (int) streamPos, len);
+            streamPos += len;
+            length = Math.max(length, (int) streamPos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            bitOffset = 0;
+            return streamPos < length ? buffer[(int) streamPos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            bitOffset = 0;
+            if (streamPos >= length) {
+                return -1;
+            }
+            final int n = (int) Math.min(len, length - streamPos);
+            System.arraycopy(buffer, (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        private void ensureCapacity(long newLength) throws IOException {
+            if (newLength > Integer.MAX_VALUE - 1024) {
+                throw new IIOException("Too large JPEG: >=2^31 bytes");
+            }
+            if (newLength > buffer.length) {
+                final long newCapacity = Math.max(newLength, Math.max(MIN_CAPACITY, 2L * buffer.length));
+                buffer = Arrays.copyOf(buffer, (int) Math.min(newCapacity, Integer.MAX_VALUE - 1024));
+            }
+        }
+    }
+}
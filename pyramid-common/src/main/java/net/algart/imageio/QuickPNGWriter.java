@@ -0,0 +1,468 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.imageio;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Quick PNG encoder for 8-bit interleaved pixels (the same layout as in {@link QuickBMPWriter}):
+ * grayscale, grayscale+alpha, RGB or RGBA. Unlike <tt>ImageIO</tt>, it does not need <tt>BufferedImage</tt>,
+ * reuses deflaters and buffers of the current thread and compresses large images by several threads
+ * (in the common fork/join pool), like <tt>pigz</tt> utility: the image is split into blocks of rows,
+ * which are deflated independently and joined into one zlib stream.
+ *
+ * <p>This class is not thread-safe, but different instances can be used in different threads.</p>
+ */
+public class QuickPNGWriter {
+    public enum Filter {
+        NONE(0),
+        SUB(1),
+        UP(2),
+        AVERAGE(3),
+        PAETH(4),
+        /**
+         * For every row, the filter with minimal sum of absolute values of the filtered bytes
+         * (the standard heuristic, also used by libpng and ImageIO). Usually gives the smallest result,
+         * but is 1.5-3 times slower than a fixed filter.
+         */
+        ADAPTIVE(-1);
+
+        final int code;
+
+        Filter(int code) {
+            this.code = code;
+        }
+    }
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+    // - ImageIO in Java 9+ uses the same level; Java 8 uses 9, which is several times slower
+    // and usually only few percents better
+    public static final Filter DEFAULT_FILTER = Filter.UP;
+    // - good compromise for rendered images: almost as small as ADAPTIVE, but much faster
+
+    static final int PARALLEL_BLOCK_SIZE = 256 * 1024;
+    // - blocks are deflated independently: the dictionary is lost at their boundaries,
+    // so they should not be too small
+    static final int MAX_REUSED_BUFFER_SIZE = 4 * 1024 * 1024;
+    // - larger buffers are not stored in thread-local caches
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_OVERHEAD = 12;
+    // - length, type and CRC
+    private static final int IHDR_LENGTH = 13;
+    private static final int ZLIB_HEADER_LENGTH = 2;
+    private static final int ZLIB_TRAILER_LENGTH = 4;
+
+    private static final ThreadLocal<ThreadBuffers> THREAD_BUFFERS = ThreadLocal.withInitial(ThreadBuffers::new);
+
+    private final int width;
+    private final int height;
+    private final int bandCount;
+    private final int rowLength;
+    private final int filteredLength;
+    private final byte[] data;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private Filter filter = DEFAULT_FILTER;
+    private boolean parallel = true;
+    private byte[] pngBytes = null;
+
+    public QuickPNGWriter(int width, int height, int bandCount, byte[] data) {
+        if (data == null) {
+            throw new NullPointerException("Null data array");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Zero or negative width or height");
+        }
+        if (bandCount < 1 || bandCount > 4) {
+            throw new IllegalArgumentException("Unsupported band count = " + bandCount);
+        }
+        if (data.length != (long) width * (long) height * bandCount) {
+            throw new IllegalArgumentException("Data array must have length width*height*bandCount");
+        }
+        final long longFilteredLength = (long) height * ((long) width * bandCount + 1);
+        if (longFilteredLength > Integer.MAX_VALUE - 1024) {
+            throw new IllegalArgumentException("Too large PNG: >=2^31 bytes");
+        }
+        this.width = width;
+        this.height = height;
+        this.bandCount = bandCount;
+        this.rowLength = width * bandCount;
+        this.filteredLength = (int) longFilteredLength;
+        this.data = data;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the deflate level: from 0 (no compression, fastest) to 9 (best compression, slowest).
+     *
+     * @param compressionLevel new deflate level.
+     * @return a reference to this object.
+     */
+    public QuickPNGWriter setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be in range 0..9, but it is "
+                + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        this.pngBytes = null;
+        return this;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public QuickPNGWriter setFilter(Filter filter) {
+        if (filter == null) {
+            throw new NullPointerException("Null filter");
+        }
+        this.filter = filter;
+        this.pngBytes = null;
+        return this;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Allows or disables parallel compression of large images. Note that the result of parallel compression
+     * is a little larger (usually &lt;1%).
+     *
+     * @param parallel whether large images may be compressed by several threads.
+     * @return a reference to this object.
+     */
+    public QuickPNGWriter setParallel(boolean parallel) {
+        this.parallel = parallel;
+        this.pngBytes = null;
+        return this;
+    }
+
+    public byte[] getPngBytes() {
+        if (pngBytes == null) {
+            pngBytes = encodePNG();
+        }
+        return pngBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "QuickPNGWriter: " +
+            "width=" + width +
+            ", height=" + height +
+            ", bandCount=" + bandCount +
+            ", compressionLevel=" + compressionLevel +
+            ", filter=" + filter +
+            (parallel ? ", parallel" : "");
+    }
+
+    private byte[] encodePNG() {
+        final ThreadBuffers buffers = THREAD_BUFFERS.get();
+        final byte[] zeroRow = new byte[rowLength];
+        // - "previous" row for the first row
+        final int rowsPerBlock = Math.max(1, PARALLEL_BLOCK_SIZE / (rowLength + 1));
+        final int numberOfBlocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+        final boolean useParallel = parallel && numberOfBlocks >= 4
+            && Runtime.getRuntime().availableProcessors() > 1;
+        final byte[] filtered = useParallel ? new byte[filteredLength] : buffers.filtered(filteredLength);
+        // - while waiting for parallel tasks, this thread can execute other tasks, which can use
+        // the same thread-local buffers (if they also encode PNG): we must not use them here
+        final byte[][] blocks;
+        final int[] blockLengths;
+        if (useParallel) {
+            blocks = new byte[numberOfBlocks][];
+            blockLengths = new int[numberOfBlocks];
+            IntStream.range(0, numberOfBlocks).parallel().forEach(k -> {
+                final int fromY = k * rowsPerBlock;
+                final int toY = Math.min(height, fromY + rowsPerBlock);
+                filterRows(filtered, zeroRow, fromY, toY);
+                final ThreadBuffers blockBuffers = THREAD_BUFFERS.get();
+                final int length = blockBuffers.deflate(
+                    filtered, fromY * (rowLength + 1), (toY - fromY) * (rowLength + 1),
+                    compressionLevel, filter, k == numberOfBlocks - 1);
+                blocks[k] = Arrays.copyOf(blockBuffers.deflated, length);
+                blockLengths[k] = length;
+                blockBuffers.trim();
+            });
+        } else {
+            filterRows(filtered, zeroRow, 0, height);
+            blockLengths = new int[] {buffers.deflate(filtered, 0, filteredLength, compressionLevel, filter, true)};
+            blocks = new byte[][] {buffers.deflated};
+        }
+        long idatLength = ZLIB_HEADER_LENGTH + ZLIB_TRAILER_LENGTH;
+        for (int length : blockLengths) {
+            idatLength += length;
+        }
+        final long pngLength = PNG_SIGNATURE.length + 3 * CHUNK_OVERHEAD + IHDR_LENGTH + idatLength;
+        if (pngLength > Integer.MAX_VALUE) {
+            // very improbable
+            throw new IllegalArgumentException("Too large PNG: >=2^31 bytes");
+        }
+        final byte[] result = new byte[(int) pngLength];
+        final CRC32 crc32 = new CRC32();
+        System.arraycopy(PNG_SIGNATURE, 0, result, 0, PNG_SIGNATURE.length);
+        int ofs = PNG_SIGNATURE.length;
+
+        int chunkOfs = ofs;
+        ofs = startChunk(result, ofs, IHDR_LENGTH, "IHDR");
+        writeIntBE(result, ofs, width);
+        writeIntBE(result, ofs + 4, height);
+        result[ofs + 8] = 8; // bit depth
+        result[ofs + 9] = colorType();
+        result[ofs + 10] = 0; // compression method: deflate
+        result[ofs + 11] = 0; // filter method: adaptive (5 filter types)
+        result[ofs + 12] = 0; // no interlace
+        ofs = finishChunk(result, chunkOfs, ofs + IHDR_LENGTH, crc32);
+
+        chunkOfs = ofs;
+        ofs = startChunk(result, ofs, (int) idatLength, "IDAT");
+        result[ofs++] = 0x78;
+        // - deflate, 32K window
+        result[ofs++] = zlibFlags(compressionLevel);
+        for (int k = 0; k < blocks.length; k++) {
+            System.arraycopy(blocks[k], 0, result, ofs, blockLengths[k]);
+            ofs += blockLengths[k];
+        }
+        final Adler32 adler32 = new Adler32();
+        adler32.update(filtered, 0, filteredLength);
+        writeIntBE(result, ofs, (int) adler32.getValue());
+        ofs = finishChunk(result, chunkOfs, ofs + ZLIB_TRAILER_LENGTH, crc32);
+
+        chunkOfs = ofs;
+        ofs = startChunk(result, ofs, 0, "IEND");
+        ofs = finishChunk(result, chunkOfs, ofs, crc32);
+        assert ofs == result.length;
+        buffers.trim();
+        return result;
+    }
+
+    private byte colorType() {
+        switch (bandCount) {
+            case 1:
+                return 0; // grayscale
+            case 2:
+                return 4; // grayscale with alpha
+            case 3:
+                return 2; // RGB
+            default:
+                return 6; // RGBA
+        }
+    }
+
+    private void filterRows(byte[] filtered, byte[] zeroRow, int fromY, int toY) {
+        for (int y = fromY; y < toY; y++) {
+            final int rowOfs = y * rowLength;
+            final byte[] prev = y == 0 ? zeroRow : data;
+            final int prevOfs = y == 0 ? 0 : rowOfs - rowLength;
+            final int filteredOfs = y * (rowLength + 1);
+            final int type = filter == Filter.ADAPTIVE ? bestFilterType(rowOfs, prev, prevOfs) : filter.code;
+            filtered[filteredOfs] = (byte) type;
+            filterRow(type, rowOfs, prev, prevOfs, filtered, filteredOfs + 1);
+        }
+    }
+
+    private int bestFilterType(int rowOfs, byte[] prev, int prevOfs) {
+        final int bpp = bandCount;
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+        for (int i = 0; i < rowLength; i++) {
+            final int x = data[rowOfs + i] & 0xFF;
+            final int a = i >= bpp ? data[rowOfs + i - bpp] & 0xFF : 0;
+            final int b = prev[prevOfs + i] & 0xFF;
+            final int c = i >= bpp ? prev[prevOfs + i - bpp] & 0xFF : 0;
+            sumNone += Math.abs((byte) x);
+            sumSub += Math.abs((byte) (x - a));
+            sumUp += Math.abs((byte) (x - b));
+            sumAverage += Math.abs((byte) (x - ((a + b) >> 1)));
+            sumPaeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int best = 0;
+        long bestSum = sumNone;
+        if (sumSub < bestSum) {
+            best = 1;
+            bestSum = sumSub;
+        }
+        if (sumUp < bestSum) {
+            best = 2;
+            bestSum = sumUp;
+        }
+        if (sumAverage < bestSum) {
+            best = 3;
+            bestSum = sumAverage;
+        }
+        if (sumPaeth < bestSum) {
+            best = 4;
+        }
+        return best;
+    }
+
+    private void filterRow(int type, int rowOfs, byte[] prev, int prevOfs, byte[] result, int resultOfs) {
+        final int bpp = bandCount;
+        switch (type) {
+            case 0: {
+                System.arraycopy(data, rowOfs, result, resultOfs, rowLength);
+                break;
+            }
+            case 1: {
+                System.arraycopy(data, rowOfs, result, resultOfs, bpp);
+                for (int i = bpp; i < rowLength; i++) {
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - data[rowOfs + i - bpp]);
+                }
+                break;
+            }
+            case 2: {
+                for (int i = 0; i < rowLength; i++) {
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - prev[prevOfs + i]);
+                }
+                break;
+            }
+            case 3: {
+                for (int i = 0; i < bpp; i++) {
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - ((prev[prevOfs + i] & 0xFF) >> 1));
+                }
+                for (int i = bpp; i < rowLength; i++) {
+                    final int a = data[rowOfs + i - bpp] & 0xFF;
+                    final int b = prev[prevOfs + i] & 0xFF;
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - ((a + b) >> 1));
+                }
+                break;
+            }
+            case 4: {
+                for (int i = 0; i < bpp; i++) {
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - prev[prevOfs + i]);
+                    // - Paeth predictor is equal to the upper byte here
+                }
+                for (int i = bpp; i < rowLength; i++) {
+                    final int a = data[rowOfs + i - bpp] & 0xFF;
+                    final int b = prev[prevOfs + i] & 0xFF;
+                    final int c = prev[prevOfs + i - bpp] & 0xFF;
+                    result[resultOfs + i] = (byte) (data[rowOfs + i] - paeth(a, b, c));
+                }
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown filter type " + type);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    private static byte zlibFlags(int compressionLevel) {
+        final int level = compressionLevel <= 1 ? 0 : compressionLevel <= 5 ? 1 : compressionLevel == 6 ? 2 : 3;
+        final int flags = level << 6;
+        return (byte) (flags + 31 - (0x78 * 256 + flags) % 31);
+        // - FCHECK bits: (CMF * 256 + FLG) must be a multiple of 31
+    }
+
+    private static int startChunk(byte[] result, int ofs, int length, String type) {
+        writeIntBE(result, ofs, length);
+        for (int k = 0; k < 4; k++) {
+            result[ofs + 4 + k] = (byte) type.charAt(k);
+        }
+        return ofs + 8;
+    }
+
+    private static int finishChunk(byte[] result, int chunkOfs, int ofs, CRC32 crc32) {
+        crc32.reset();
+        crc32.update(result, chunkOfs + 4, ofs - chunkOfs - 4);
+        // - CRC of type and data
+        writeIntBE(result, ofs, (int) crc32.getValue());
+        return ofs + 4;
+    }
+
+    private static void writeIntBE(byte[] result, int offset, int value) {
+        result[offset] = (byte) (value >>> 24);
+        result[offset + 1] = (byte) (value >>> 16);
+        result[offset + 2] = (byte) (value >>> 8);
+        result[offset + 3] = (byte) value;
+    }
+
+    private static class ThreadBuffers {
+        private final Deflater deflater = new Deflater(DEFAULT_COMPRESSION_LEVEL, true);
+        // - raw deflate: zlib header and trailer are added by encodePNG
+        private byte[] filtered = new byte[0];
+        private byte[] deflated = new byte[0];
+
+        byte[] filtered(int length) {
+            if (filtered.length < length) {
+                filtered = new byte[length];
+            }
+            return filtered;
+        }
+
+        void trim() {
+            if (filtered.length > MAX_REUSED_BUFFER_SIZE) {
+                filtered = new byte[0];
+            }
+            if (deflated.length > MAX_REUSED_BUFFER_SIZE) {
+                deflated = new byte[0];
+            }
+        }
+
+        int deflate(byte[] input, int inputOfs, int inputLength, int level, Filter filter, boolean last) {
+            final int estimatedLength = inputLength + (inputLength >> 12) + (inputLength >> 14) + 64;
+            // - zlib deflateBound for the worst case (stored blocks)
+            if (deflated.length < estimatedLength) {
+                deflated = new byte[estimatedLength];
+            }
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setStrategy(filter == Filter.NONE ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED);
+            // - recommended by zlib for PNG-filtered data
+            deflater.setInput(input, inputOfs, inputLength);
+            if (last) {
+                deflater.finish();
+            }
+            int length = 0;
+            for (; ; ) {
+                final int space = deflated.length - length;
+                length += last ?
+                    deflater.deflate(deflated, length, space) :
+                    deflater.deflate(deflated, length, space, Deflater.SYNC_FLUSH);
+                // - SYNC_FLUSH finishes the block at byte boundary, so that the next block can be appended
+                if (last ? deflater.finished() : deflater.needsInput() && length < deflated.length) {
+                    // - note: the first call after changing the level can return before processing all input
+                    break;
+                }
+                if (length == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+                }
+            }
+            return length;
+        }
+    }
+}
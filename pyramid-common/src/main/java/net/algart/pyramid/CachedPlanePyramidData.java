@@ -0,0 +1,57 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import java.util.Objects;
+
+/**
+ * Copy of some data in the Java heap, restored from a cache level, storing only bytes
+ * (for example, outside the heap or on the disk).
+ */
+final class CachedPlanePyramidData extends PlanePyramidData {
+    private final byte[] bytes;
+    private final String contentMIMEType;
+
+    CachedPlanePyramidData(byte[] bytes, String contentMIMEType, long creationTime, long dataLastModifiedTime) {
+        super(creationTime, dataLastModifiedTime);
+        this.bytes = Objects.requireNonNull(bytes, "Null bytes");
+        this.contentMIMEType = Objects.requireNonNull(contentMIMEType, "Null contentMIMEType");
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String getContentMIMEType() {
+        return contentMIMEType;
+    }
+
+    @Override
+    long estimatedMemoryInBytes() {
+        return bytes.length;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class ConcurrentPlanePyramidDataCache extends PlanePyramidDataCache {
+    static final int NUMBER_OF_SEGMENTS = 16;
+    // - must be a power of 2
+
+    private final Segment[] segments;
+    private final Segment largeDataSegment;
+    // - for the data, which are larger than the memory limit of one segment; it may use the memory,
+    // which is not occupied by other segments
+
+    ConcurrentPlanePyramidDataCache(long maxMemory, int numberOfSegments) {
+        super(maxMemory, null);
+        if (numberOfSegments <= 0 || (numberOfSegments & (numberOfSegments - 1)) != 0) {
+            throw new IllegalArgumentException("Number of segments must be a positive power of 2");
+        }
+        this.segments = new Segment[numberOfSegments];
+        final long segmentMaxMemory = maxMemory / numberOfSegments;
+        for (int k = 0; k < segments.length; k++) {
+            segments[k] = new Segment(segmentMaxMemory);
+        }
+        this.largeDataSegment = new Segment(maxMemory);
+    }
+
+    @Override
+    PlanePyramidData getFromThisLevel(PlanePyramidRequest request) {
+        final PlanePyramidData result = segment(request).get(request);
+        return result != null || largeDataSegment.map.isEmpty() ? result : largeDataSegment.get(request);
+    }
+
+    @Override
+    void putToThisLevel(PlanePyramidRequest request, PlanePyramidData data) {
+        final Entry entry = new Entry(request, data);
+        final Segment segment = segment(request);
+        final List<Entry> removed = new ArrayList<>();
+        if (entry.memory <= segment.maxMemory) {
+            largeDataSegment.remove(request);
+            segment.put(entry, segment.maxMemory, removed);
+            if (!largeDataSegment.map.isEmpty()) {
+                largeDataSegment.clean(maxMemory - segmentsMemory(), removed);
+                // - the summary memory of all segments must not exceed the limit of the whole cache
+            }
+        } else {
+            segment.remove(request);
+            if (entry.memory <= maxMemory) {
+                largeDataSegment.put(entry, maxMemory - segmentsMemory(), removed);
+            } else {
+                removed.add(entry);
+                // - too large data would displace all other data and then itself;
+                // instead, they are passed directly to the next level (if exists)
+            }
+        }
+        for (Entry removedEntry : removed) {
+            evicted(removedEntry.request, removedEntry.data);
+        }
+    }
+
+    @Override
+    public long memory() {
+        return segmentsMemory() + largeDataSegment.memory;
+    }
+
+    @Override
+    public int size() {
+        int result = largeDataSegment.map.size();
+        for (Segment segment : segments) {
+            result += segment.map.size();
+        }
+        return result;
+    }
+
+    private long segmentsMemory() {
+        long result = 0;
+        for (Segment segment : segments) {
+            result += segment.memory;
+        }
+        return result;
+    }
+
+    private Segment segment(PlanePyramidRequest request) {
+        final int h = request.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private static final class Entry {
+        final PlanePyramidRequest request;
+        final PlanePyramidData data;
+        final long memory;
+        volatile boolean referenced = false;
+
+        Entry(PlanePyramidRequest request, PlanePyramidData data) {
+            this.request = request;
+            this.data = data;
+            this.memory = data.estimatedMemoryInBytes();
+        }
+    }
+
+    private static final class Segment {
+        private final long maxMemory;
+        private final ConcurrentHashMap<PlanePyramidRequest, Entry> map = new ConcurrentHashMap<>();
+        private final Queue<Entry> clock = new ArrayDeque<>();
+        // - "clock" of all entries in order of adding; it may also contain entries, already replaced in the map
+        private final Lock lock = new ReentrantLock();
+        private volatile long memory = 0;
+        // - includes the replaced entries, which are still referenced by the clock: they are removed from it
+        // only when the "clock hand" reaches them, and their data cannot be garbage-collected until this moment
+
+        Segment(long maxMemory) {
+            this.maxMemory = maxMemory;
+        }
+
+        PlanePyramidData get(PlanePyramidRequest request) {
+            final Entry entry = map.get(request);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.referenced) {
+                entry.referenced = true;
+                // - checking before writing allows to avoid writing into the shared memory for "hot" data
+            }
+            return entry.data;
+        }
+
+        void put(Entry entry, long memoryLimit, List<Entry> removed) {
+            lock.lock();
+            try {
+                map.put(entry.request, entry);
+                // - the previous entry (if exists) stays in the clock and is still counted in the memory
+                clock.add(entry);
+                memory = clean(memory + entry.memory, memoryLimit, removed);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(PlanePyramidRequest request) {
+            if (!map.containsKey(request)) {
+                return;
+                // - quick check: usually the data of the same request have similar sizes
+            }
+            lock.lock();
+            try {
+                map.remove(request);
+                // - the previous data are obsolete; they are still counted while in the clock
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clean(long memoryLimit, List<Entry> removed) {
+            lock.lock();
+            try {
+                memory = clean(memory, memoryLimit, removed);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long clean(long memory, long memoryLimit, List<Entry> removed) {
+            int secondChances = clock.size();
+            // - limits the number of second chances: other threads can mark entries as referenced again
+            while (memory > memoryLimit) {
+                final Entry entry = clock.poll();
+                if (entry == null) {
+                    throw new AssertionError("Non-balanced adding and removing: " + memory);
+                }
+                if (map.get(entry.request) != entry) {
+                    memory -= entry.memory;
+                    continue;
+                    // - this entry was already replaced by newer data
+                }
+                if (entry.referenced && secondChances-- > 0) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    // - second chance: the data were accessed since the previous pass of the "clock hand"
+                    continue;
+                }
+                map.remove(entry.request, entry);
+                memory -= entry.memory;
+                removed.add(entry);
+            }
+            return memory;
+        }
+    }
+}
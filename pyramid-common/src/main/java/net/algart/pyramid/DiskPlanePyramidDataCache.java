@@ -0,0 +1,532 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache, storing the data in append-only segment files. Every added data are also described
+ * by a record, appended to the index file; the index file is rewritten in a compact form while loading
+ * and when it contains too many obsolete records. The data from the completed segments are returned
+ * as mapped byte buffers.
+ */
+final class DiskPlanePyramidDataCache extends PlanePyramidDataCache {
+    static final long SEGMENT_SIZE = 64L * 1024L * 1024L;
+    static final long MAX_PENDING_MEMORY = 64L * 1024L * 1024L;
+    // - data, waiting for writing to the disk; new data are not cached while this memory is exceeded
+    static final int MAX_NUMBER_OF_SLOTS = 256;
+
+    private static final String SLOT_FOLDER_PREFIX = "slot-";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".data";
+    private static final String INDEX_FILE_NAME = "index.dat";
+    private static final String LOCK_FILE_NAME = "lock";
+    private static final int INDEX_SIGNATURE = 0x50504443;
+    private static final int INDEX_VERSION = 2;
+    // - version 2: the modification time of the pyramid data is stored
+
+    private static final Logger LOG = Logger.getLogger(DiskPlanePyramidDataCache.class.getName());
+
+    private final Path folder;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Entry> map = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final List<Path> undeletedFiles = new ArrayList<>();
+    private final BlockingQueue<PendingData> pendingQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingMemory = new AtomicLong(0);
+    private Segment currentSegment = null;
+    private int nextSegmentId = 0;
+    private DataOutputStream index = null;
+    private int numberOfIndexRecords = 0;
+    private volatile long diskSpace = 0;
+    private volatile int size = 0;
+
+    DiskPlanePyramidDataCache(Path rootFolder, long maxDiskSpace) throws IOException {
+        super(maxDiskSpace, null);
+        Objects.requireNonNull(rootFolder, "Null rootFolder");
+        Path folder = null;
+        FileChannel lockChannel = null;
+        FileLock lock = null;
+        for (int slot = 0; slot < MAX_NUMBER_OF_SLOTS && lock == null; slot++) {
+            folder = rootFolder.resolve(SLOT_FOLDER_PREFIX + slot);
+            Files.createDirectories(folder);
+            lockChannel = FileChannel.open(folder.resolve(LOCK_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // - this slot is used by another cache in this JVM
+            }
+            if (lock == null) {
+                lockChannel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("Cannot create disk cache: all " + MAX_NUMBER_OF_SLOTS
+                + " slots in " + rootFolder + " are used by other processes");
+        }
+        this.folder = folder;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        synchronized (this) {
+            loadSegments();
+            loadIndex();
+            removeOldSegments();
+            rewriteIndex();
+        }
+        LOG.info("Disk cache is loaded: " + this);
+        final Thread writingThread = new Thread(this::writePendingData, "DiskPlanePyramidDataCache writer");
+        writingThread.setDaemon(true);
+        writingThread.start();
+    }
+
+    @Override
+    public long memory() {
+        return diskSpace;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " in " + folder;
+    }
+
+    @Override
+    boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    PlanePyramidData getFromThisLevel(PlanePyramidRequest request) {
+        final String key = request.persistentKey();
+        if (key == null) {
+            return null;
+        }
+        final Entry entry;
+        final ByteBuffer mapped;
+        synchronized (this) {
+            entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            mapped = entry.segment.mapped();
+        }
+        try {
+            final ByteBuffer buffer;
+            if (mapped != null) {
+                final ByteBuffer duplicate = mapped.duplicate();
+                duplicate.limit((int) (entry.offset + entry.length)).position((int) entry.offset);
+                buffer = duplicate.slice();
+            } else {
+                buffer = ByteBuffer.allocate(entry.length);
+                while (buffer.hasRemaining()) {
+                    if (entry.segment.channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + entry.segment.file);
+                    }
+                }
+                buffer.flip();
+            }
+            return new DiskData(buffer.asReadOnlyBuffer(), entry.contentMIMEType,
+                entry.creationTime, entry.dataLastModifiedTime);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot read data from disk cache", e);
+            // - possible, for example, if the segment was removed by a parallel thread
+            return null;
+        }
+    }
+
+    @Override
+    void putToThisLevel(PlanePyramidRequest request, PlanePyramidData data) {
+        if (data.isShortString()) {
+            return;
+        }
+        final String key = request.persistentKey();
+        if (key == null) {
+            return;
+        }
+        synchronized (this) {
+            if (isAlreadyStored(key, data.getDataLastModifiedTime())) {
+                return;
+            }
+        }
+        final ByteBuffer buffer = data.getByteBuffer();
+        final int length = buffer.remaining();
+        if (length == 0 || length > SEGMENT_SIZE) {
+            return;
+        }
+        if (pendingMemory.addAndGet(length) > MAX_PENDING_MEMORY) {
+            pendingMemory.addAndGet(-length);
+            LOG.fine("Too many data are waiting for writing into disk cache; " + request + " is not cached");
+            return;
+        }
+        pendingQueue.add(new PendingData(key, buffer, data.getContentMIMEType(),
+            data.getCreationTime(), data.getDataLastModifiedTime()));
+    }
+
+    private void writePendingData() {
+        for (; ; ) {
+            final PendingData pendingData;
+            try {
+                pendingData = pendingQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            pendingMemory.addAndGet(-pendingData.buffer.remaining());
+            try {
+                write(pendingData);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot write data into disk cache " + folder, e);
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "Unexpected error while writing into disk cache!", t);
+            }
+        }
+    }
+
+    private synchronized void write(PendingData pendingData) throws IOException {
+        if (isAlreadyStored(pendingData.key, pendingData.dataLastModifiedTime)) {
+            return;
+        }
+        final ByteBuffer buffer = pendingData.buffer;
+        final int length = buffer.remaining();
+        if (currentSegment == null || currentSegment.length + length > SEGMENT_SIZE) {
+            startNewSegment();
+        }
+        final Segment segment = currentSegment;
+        final long offset = segment.length;
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, offset + length - buffer.remaining());
+        }
+        segment.length += length;
+        diskSpace += length;
+        final Entry entry = new Entry(pendingData.key, segment, offset, length,
+            pendingData.contentMIMEType, pendingData.creationTime, pendingData.dataLastModifiedTime);
+        addEntry(entry);
+        // - if there is an obsolete entry for the same key, it is replaced; its record in the index file
+        // and its bytes in the segment will be removed later
+        writeIndexRecord(index, entry);
+        index.flush();
+        numberOfIndexRecords++;
+        removeOldSegments();
+        if (numberOfIndexRecords > 2 * map.size() + 1024) {
+            rewriteIndex();
+        }
+    }
+
+    private void startNewSegment() throws IOException {
+        if (currentSegment != null) {
+            currentSegment.completed = true;
+        }
+        final int id = nextSegmentId++;
+        final Path file = folder.resolve(SEGMENT_FILE_PREFIX + id + SEGMENT_FILE_SUFFIX);
+        currentSegment = new Segment(id, file, FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE), 0);
+        segments.put(id, currentSegment);
+    }
+
+    // Returns true if we already have the same data; the data for another modification time are obsolete.
+    private boolean isAlreadyStored(String key, long dataLastModifiedTime) {
+        final Entry entry = map.get(key);
+        return entry != null && entry.dataLastModifiedTime == dataLastModifiedTime;
+    }
+
+    private void addEntry(Entry entry) {
+        final Entry previous = map.put(entry.key, entry);
+        if (previous == null || previous.segment != entry.segment) {
+            entry.segment.keys.add(entry.key);
+        }
+        size = map.size();
+    }
+
+    private void removeOldSegments() {
+        while (diskSpace > maxMemory && !segments.isEmpty()) {
+            final Segment segment = segments.pollFirstEntry().getValue();
+            for (String key : segment.keys) {
+                final Entry entry = map.get(key);
+                if (entry != null && entry.segment == segment) {
+                    map.remove(key);
+                }
+            }
+            size = map.size();
+            diskSpace -= segment.length;
+            if (segment == currentSegment) {
+                currentSegment = null;
+            }
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Cannot close " + segment.file, e);
+            }
+            undeletedFiles.add(segment.file);
+        }
+        for (Iterator<Path> iterator = undeletedFiles.iterator(); iterator.hasNext(); ) {
+            final Path file = iterator.next();
+            try {
+                Files.deleteIfExists(file);
+                iterator.remove();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Cannot delete " + file + " now, it will be deleted later", e);
+                // - possible in Windows, while the file is mapped
+            }
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+            folder, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX))
+        {
+            for (Path file : files) {
+                final String fileName = file.getFileName().toString();
+                final int id;
+                try {
+                    id = Integer.parseInt(fileName.substring(
+                        SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                final Segment segment = new Segment(id, file,
+                    FileChannel.open(file, StandardOpenOption.READ), Files.size(file));
+                segment.completed = true;
+                segments.put(id, segment);
+                diskSpace += segment.length;
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+        }
+    }
+
+    private void loadIndex() {
+        final Path indexFile = folder.resolve(INDEX_FILE_NAME);
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (input.readInt() != INDEX_SIGNATURE || input.readInt() != INDEX_VERSION) {
+                LOG.warning("Unknown format of the index " + indexFile + "; disk cache is cleared");
+                return;
+            }
+            for (; ; ) {
+                final int segmentId;
+                try {
+                    segmentId = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final long offset = input.readLong();
+                final int length = input.readInt();
+                final long creationTime = input.readLong();
+                final long dataLastModifiedTime = input.readLong();
+                final String contentMIMEType = input.readUTF();
+                final byte[] keyBytes = new byte[input.readInt()];
+                input.readFully(keyBytes);
+                final Segment segment = segments.get(segmentId);
+                if (segment != null && offset >= 0 && length >= 0 && offset + length <= segment.length) {
+                    addEntry(new Entry(new String(keyBytes, StandardCharsets.UTF_8),
+                        segment, offset, length, contentMIMEType, creationTime, dataLastModifiedTime));
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Index " + indexFile + " is damaged, some cached data are lost", e);
+            // - for example, the process was killed while writing the last record
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        if (index != null) {
+            index.close();
+        }
+        final Path indexFile = folder.resolve(INDEX_FILE_NAME);
+        final Path tempFile = folder.resolve(INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            output.writeInt(INDEX_SIGNATURE);
+            output.writeInt(INDEX_VERSION);
+            for (Segment segment : segments.values()) {
+                for (String key : segment.keys) {
+                    final Entry entry = map.get(key);
+                    if (entry != null && entry.segment == segment) {
+                        writeIndexRecord(output, entry);
+                    }
+                }
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Segment segment : segments.values()) {
+            segment.keys.removeIf(key -> {
+                final Entry entry = map.get(key);
+                return entry == null || entry.segment != segment;
+            });
+        }
+        numberOfIndexRecords = map.size();
+        index = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(indexFile, StandardOpenOption.APPEND)));
+    }
+
+    private static void writeIndexRecord(DataOutputStream output, Entry entry) throws IOException {
+        output.writeInt(entry.segment.id);
+        output.writeLong(entry.offset);
+        output.writeInt(entry.length);
+        output.writeLong(entry.creationTime);
+        output.writeLong(entry.dataLastModifiedTime);
+        output.writeUTF(entry.contentMIMEType);
+        final byte[] keyBytes = entry.key.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(keyBytes.length);
+        output.write(keyBytes);
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        final List<String> keys = new ArrayList<>();
+        long length;
+        boolean completed = false;
+        // - completed segments are not modified and can be mapped into memory
+        MappedByteBuffer mapped = null;
+
+        Segment(int id, Path file, FileChannel channel, long length) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.length = length;
+        }
+
+        MappedByteBuffer mapped() {
+            if (completed && mapped == null) {
+                try {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Cannot map " + file, e);
+                    completed = false;
+                    // - we will read this segment without mapping
+                }
+            }
+            return mapped;
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final Segment segment;
+        final long offset;
+        final int length;
+        final String contentMIMEType;
+        final long creationTime;
+        final long dataLastModifiedTime;
+
+        Entry(
+            String key,
+            Segment segment,
+            long offset,
+            int length,
+            String contentMIMEType,
+            long creationTime,
+            long dataLastModifiedTime)
+        {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.contentMIMEType = contentMIMEType;
+            this.creationTime = creationTime;
+            this.dataLastModifiedTime = dataLastModifiedTime;
+        }
+    }
+
+    private static final class PendingData {
+        final String key;
+        final ByteBuffer buffer;
+        final String contentMIMEType;
+        final long creationTime;
+        final long dataLastModifiedTime;
+
+        PendingData(
+            String key,
+            ByteBuffer buffer,
+            String contentMIMEType,
+            long creationTime,
+            long dataLastModifiedTime)
+        {
+            this.key = key;
+            this.buffer = buffer;
+            this.contentMIMEType = contentMIMEType;
+            this.creationTime = creationTime;
+            this.dataLastModifiedTime = dataLastModifiedTime;
+        }
+    }
+
+    private static final class DiskData extends PlanePyramidData {
+        private final ByteBuffer buffer;
+        private final String contentMIMEType;
+
+        DiskData(ByteBuffer buffer, String contentMIMEType, long creationTime, long dataLastModifiedTime) {
+            super(creationTime, dataLastModifiedTime);
+            this.buffer = buffer;
+            this.contentMIMEType = contentMIMEType;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            final byte[] result = new byte[buffer.remaining()];
+            buffer.duplicate().get(result);
+            return result;
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public String getContentMIMEType() {
+            return contentMIMEType;
+        }
+
+        @Override
+        long estimatedMemoryInBytes() {
+            return buffer.remaining();
+        }
+    }
+}
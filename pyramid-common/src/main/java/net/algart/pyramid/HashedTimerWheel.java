@@ -0,0 +1,325 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Hashed timing wheel for expiration of many objects (tasks, pyramids etc.): an alternative to
+ * threads, which periodically scan all objects. Scheduling, cancelling and re-arming a timeout are O(1)
+ * and do not block; one background thread moves along the wheel and performs the actions of the expired
+ * timeouts.</p>
+ *
+ * <p>Re-arming ({@link Timeout#setDeadline(long)}) only changes the deadline: when the wheel reaches
+ * the old position of the timeout, it sees the new deadline and moves the timeout to the corresponding
+ * position. So, frequent re-arming on every access costs almost nothing.</p>
+ *
+ * <p>The precision of deadlines is one tick of the wheel. Actions should work quickly:
+ * they are performed in the thread of the wheel.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public final class HashedTimerWheel {
+    public static final long DEFAULT_TICK_DURATION = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final Logger LOG = Logger.getLogger(HashedTimerWheel.class.getName());
+    private static final int ACTIVE = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    private static volatile HashedTimerWheel sharedInstance = null;
+
+    private final long tickDuration;
+    private final int mask;
+    private final List<List<Timeout>> buckets;
+    // - accessed from the wheel thread only
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numberOfNewTimeouts = new AtomicInteger();
+    private final AtomicInteger numberOfActiveTimeouts = new AtomicInteger();
+    private final AtomicLong numberOfExpiredTimeouts = new AtomicLong();
+    private final AtomicLong numberOfCancelledTimeouts = new AtomicLong();
+    private final AtomicLong numberOfRearmedTimeouts = new AtomicLong();
+    private final long startTime;
+    private volatile long tick = 0;
+    private volatile long lag = 0;
+
+    private HashedTimerWheel(String name, long tickDuration, int wheelSize) {
+        Objects.requireNonNull(name, "Null name");
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Zero or negative tick duration");
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size " + wheelSize + " is not a positive power of two");
+        }
+        this.tickDuration = tickDuration;
+        this.mask = wheelSize - 1;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int k = 0; k < wheelSize; k++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.startTime = System.currentTimeMillis();
+        final Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static HashedTimerWheel newInstance(String name, long tickDuration, int wheelSize) {
+        return new HashedTimerWheel(name, tickDuration, wheelSize);
+    }
+
+    /**
+     * Returns the wheel, shared by all users in this JVM, with {@link #DEFAULT_TICK_DURATION} and
+     * {@link #DEFAULT_WHEEL_SIZE}.
+     *
+     * @return shared instance.
+     */
+    public static HashedTimerWheel getSharedInstance() {
+        HashedTimerWheel result = sharedInstance;
+        if (result == null) {
+            synchronized (HashedTimerWheel.class) {
+                result = sharedInstance;
+                if (result == null) {
+                    sharedInstance = result = new HashedTimerWheel(
+                        "Shared timer wheel", DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Schedules the action, which will be performed once after the given deadline, if the returned timeout
+     * will not be {@link Timeout#cancel() cancelled} before this.
+     *
+     * @param deadline time (as returned by <tt>System.currentTimeMillis()</tt>) of the expiration.
+     * @param action   action on expiration.
+     * @return the timeout.
+     */
+    public Timeout schedule(long deadline, Runnable action) {
+        Objects.requireNonNull(action, "Null action");
+        final Timeout timeout = new Timeout(deadline, action);
+        numberOfActiveTimeouts.incrementAndGet();
+        numberOfNewTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public long tickDuration() {
+        return tickDuration;
+    }
+
+    public int wheelSize() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of timeouts, which are scheduled, but not expired or cancelled yet.
+     *
+     * @return number of active timeouts.
+     */
+    public int numberOfActiveTimeouts() {
+        return numberOfActiveTimeouts.get();
+    }
+
+    /**
+     * Returns the number of newly scheduled timeouts, which are not placed into the wheel yet
+     * (it is performed every tick).
+     *
+     * @return number of new timeouts.
+     */
+    public int numberOfNewTimeouts() {
+        return numberOfNewTimeouts.get();
+    }
+
+    public long numberOfExpiredTimeouts() {
+        return numberOfExpiredTimeouts.get();
+    }
+
+    public long numberOfCancelledTimeouts() {
+        return numberOfCancelledTimeouts.get();
+    }
+
+    /**
+     * Returns the number of timeouts, which were moved to another position of the wheel,
+     * because their deadline was changed.
+     *
+     * @return number of re-armings, detected by the wheel.
+     */
+    public long numberOfRearmedTimeouts() {
+        return numberOfRearmedTimeouts.get();
+    }
+
+    /**
+     * Returns how much the wheel thread was late (in milliseconds) while processing the last tick;
+     * large values mean that the actions are too slow.
+     *
+     * @return lag of the wheel.
+     */
+    public long lagInMilliseconds() {
+        return lag;
+    }
+
+    @Override
+    public String toString() {
+        return "timer wheel (" + wheelSize() + " x " + tickDuration + " ms): "
+            + numberOfActiveTimeouts() + " active timeouts (" + numberOfNewTimeouts() + " new), "
+            + numberOfExpiredTimeouts() + " expired, " + numberOfCancelledTimeouts() + " cancelled, "
+            + numberOfRearmedTimeouts() + " re-armed, lag " + lagInMilliseconds() + " ms";
+    }
+
+    public final class Timeout {
+        private final Runnable action;
+        private volatile long deadline;
+        private long bucketDeadline;
+        // - deadline, corresponding to the current position in the wheel; accessed from the wheel thread only
+        private final AtomicInteger state = new AtomicInteger(ACTIVE);
+
+        private Timeout(long deadline, Runnable action) {
+            this.deadline = deadline;
+            this.action = action;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Changes the deadline of this timeout. Has no effect if it is already expired or cancelled.
+         *
+         * @param deadline new time of the expiration.
+         */
+        public void setDeadline(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout: its action will not be performed.
+         *
+         * @return <tt>true</tt> if the timeout was active (not expired or cancelled before).
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(ACTIVE, CANCELLED)) {
+                numberOfActiveTimeouts.decrementAndGet();
+                numberOfCancelledTimeouts.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(ACTIVE, EXPIRED)) {
+                numberOfActiveTimeouts.decrementAndGet();
+                numberOfExpiredTimeouts.incrementAndGet();
+                try {
+                    action.run();
+                } catch (Throwable e) {
+                    // - we must keep the wheel thread
+                    LOG.log(Level.SEVERE, "Unexpected error in timeout action " + action, e);
+                }
+            }
+        }
+    }
+
+    private void run() {
+        for (; ; ) {
+            try {
+                final long tickDeadline = startTime + (tick + 1) * tickDuration;
+                long sleepTime = tickDeadline - System.currentTimeMillis();
+                while (sleepTime > 0) {
+                    try {
+                        Thread.sleep(sleepTime);
+                    } catch (InterruptedException e) {
+                        // nothing to do
+                    }
+                    sleepTime = tickDeadline - System.currentTimeMillis();
+                }
+                lag = -sleepTime;
+                transferNewTimeouts();
+                processBucket(buckets.get((int) (tick & mask)));
+                tick++;
+            } catch (Throwable e) {
+                // In this very improbable case we keep this thread
+                LOG.log(Level.SEVERE, "Unexpected error in logic of the timer wheel!", e);
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        for (Timeout timeout; (timeout = newTimeouts.poll()) != null; ) {
+            numberOfNewTimeouts.decrementAndGet();
+            if (!timeout.isCancelled()) {
+                place(timeout, tick);
+            }
+        }
+    }
+
+    private void processBucket(List<Timeout> bucket) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        final long currentTime = System.currentTimeMillis();
+        final Timeout[] timeouts = bucket.toArray(new Timeout[0]);
+        bucket.clear();
+        for (Timeout timeout : timeouts) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            final long deadline = timeout.deadline;
+            if (deadline <= currentTime) {
+                timeout.expire();
+            } else {
+                // - re-armed or not reached yet (must wait for more rounds)
+                if (deadline != timeout.bucketDeadline) {
+                    numberOfRearmedTimeouts.incrementAndGet();
+                }
+                place(timeout, tick + 1);
+            }
+        }
+    }
+
+    private void place(Timeout timeout, long minTick) {
+        final long deadline = timeout.deadline;
+        timeout.bucketDeadline = deadline;
+        final long deadlineTick = Math.max(minTick, (deadline - startTime + tickDuration - 1) / tickDuration - 1);
+        // - the bucket of tick T is processed at the time startTime + (T + 1) * tickDuration
+        buckets.get((int) (deadlineTick & mask)).add(timeout);
+    }
+}
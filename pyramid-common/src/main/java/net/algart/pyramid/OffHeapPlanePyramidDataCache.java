@@ -0,0 +1,435 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Cache, storing bytes of the data outside the Java heap. The memory is allocated by large slabs;
+ * every slab is divided into chunks of equal size, corresponding to some size class (as in memcached),
+ * so the cache does not suffer from fragmentation. Every size class has its own LRU list.
+ * When a size class has no free chunks and its least recently used data are newer than the least recently
+ * used data of another size class, a whole slab of that other class is freed and reassigned
+ * (like slab rebalancing in memcached): so the distribution of memory follows the changing sizes of the data.
+ *
+ * <p>The returned data are "pinned": the chunk cannot be reused until the data are released.</p>
+ */
+final class OffHeapPlanePyramidDataCache extends PlanePyramidDataCache {
+    static final int SLAB_SIZE = 1024 * 1024;
+    static final int MIN_CHUNK_SIZE = 4096;
+    static final double CHUNK_SIZE_FACTOR = 1.25;
+    static final long PINNING_TIMEOUT = 600000;
+    // - the data, pinned longer than this time (ms), are supposed to be lost without releasing;
+    // it must be much greater than any timeout of sending data to the client
+
+    private static final Logger LOG = Logger.getLogger(OffHeapPlanePyramidDataCache.class.getName());
+
+    private final Object lock = new Object();
+    private final SizeClass[] sizeClasses;
+    private final Map<PlanePyramidRequest, Entry> map = new HashMap<>();
+    private final Queue<Slab> freeSlabs = new ArrayDeque<>();
+    private int maxNumberOfSlabs;
+    private int numberOfSlabs = 0;
+    private long accessCounter = 0;
+    private volatile int size = 0;
+
+    OffHeapPlanePyramidDataCache(long maxMemory) {
+        super(maxMemory, null);
+        this.maxNumberOfSlabs = (int) Math.min(Integer.MAX_VALUE, maxMemory / SLAB_SIZE);
+        final List<SizeClass> sizeClasses = new ArrayList<>();
+        for (int chunkSize = MIN_CHUNK_SIZE; ; ) {
+            sizeClasses.add(new SizeClass(chunkSize));
+            if (chunkSize == SLAB_SIZE) {
+                break;
+            }
+            chunkSize = Math.min(SLAB_SIZE, ((int) (chunkSize * CHUNK_SIZE_FACTOR) + 63) & ~63);
+        }
+        this.sizeClasses = sizeClasses.toArray(new SizeClass[sizeClasses.size()]);
+    }
+
+    @Override
+    public long memory() {
+        synchronized (lock) {
+            return (long) numberOfSlabs * (long) SLAB_SIZE;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    PlanePyramidData getFromThisLevel(PlanePyramidRequest request) {
+        synchronized (lock) {
+            final Entry entry = map.get(request);
+            if (entry == null) {
+                return null;
+            }
+            entry.sizeClass.lru.get(request);
+            // - moving to the end of LRU list
+            entry.lastAccess = ++accessCounter;
+            entry.pin();
+            return new OffHeapData(entry);
+        }
+    }
+
+    @Override
+    void putToThisLevel(PlanePyramidRequest request, PlanePyramidData data) {
+        if (data.isShortString()) {
+            return;
+            // - short strings are cached in the Java heap only
+        }
+        final ByteBuffer source = data.getByteBuffer();
+        final int length = source.remaining();
+        if (length == 0 || length > SLAB_SIZE) {
+            return;
+        }
+        final List<Entry> removed = new ArrayList<>();
+        final List<PlanePyramidData> removedData = new ArrayList<>();
+        synchronized (lock) {
+            final Entry previous = map.get(request);
+            if (previous != null) {
+                if (previous.dataLastModifiedTime == data.getDataLastModifiedTime()
+                    || previous.isPinned(System.currentTimeMillis()))
+                {
+                    return;
+                    // - we already have the same data (or obsolete data, which are used now)
+                }
+                // - obsolete data, read before modification of the pyramid data: not passed to the next level
+                previous.sizeClass.lru.remove(request);
+                map.remove(request);
+                size = map.size();
+                freeChunk(previous);
+            }
+            final SizeClass sizeClass = sizeClass(length);
+            final Chunk chunk = allocateChunk(sizeClass, removed, removedData);
+            if (chunk != null) {
+                final ByteBuffer destination = chunk.slab.buffer.duplicate();
+                destination.position(chunk.offset);
+                destination.put(source);
+                final Entry entry = new Entry(request, sizeClass, chunk, length, data);
+                entry.lastAccess = ++accessCounter;
+                map.put(request, entry);
+                sizeClass.lru.put(request, entry);
+                size = map.size();
+            }
+        }
+        for (int k = 0; k < removed.size(); k++) {
+            evicted(removed.get(k).request, removedData.get(k));
+        }
+    }
+
+    private SizeClass sizeClass(int length) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (length <= sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        throw new AssertionError("Too large data: " + length);
+    }
+
+    private Chunk allocateChunk(SizeClass sizeClass, List<Entry> removed, List<PlanePyramidData> removedData) {
+        Chunk chunk = takeFreeChunk(sizeClass);
+        if (chunk != null) {
+            return chunk;
+        }
+        final long currentTime = System.currentTimeMillis();
+        final Entry eldest = eldestUnpinnedEntry(sizeClass, currentTime);
+        Entry otherEldest = null;
+        for (SizeClass other : sizeClasses) {
+            if (other != sizeClass) {
+                final Entry entry = eldestUnpinnedEntry(other, currentTime);
+                if (entry != null && (otherEldest == null || entry.lastAccess < otherEldest.lastAccess)) {
+                    otherEldest = entry;
+                }
+            }
+        }
+        if (otherEldest != null && (eldest == null || otherEldest.lastAccess < eldest.lastAccess)) {
+            // - the data of another size class are "colder": we take its slab
+            if (freeSlab(otherEldest, currentTime, removed, removedData)) {
+                chunk = takeFreeChunk(sizeClass);
+                if (chunk != null) {
+                    return chunk;
+                }
+            }
+        }
+        for (Iterator<Entry> iterator = sizeClass.lru.values().iterator(); iterator.hasNext(); ) {
+            final Entry entry = iterator.next();
+            if (entry.isPinned(currentTime)) {
+                continue;
+            }
+            iterator.remove();
+            removeEntry(entry, removed, removedData);
+            chunk = takeFreeChunk(sizeClass);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return null;
+        // - all chunks of this size class are pinned or all slabs are used by other size classes
+    }
+
+    private Entry eldestUnpinnedEntry(SizeClass sizeClass, long currentTime) {
+        for (Entry entry : sizeClass.lru.values()) {
+            if (!entry.isPinned(currentTime)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Removes all data from the slab, containing the given entry, if none of them are pinned.
+    // Returns true if the slab was returned to the common pool.
+    private boolean freeSlab(Entry entry, long currentTime, List<Entry> removed, List<PlanePyramidData> removedData) {
+        final Slab slab = entry.chunk.slab;
+        final List<Entry> slabEntries = new ArrayList<>();
+        for (Entry e : entry.sizeClass.lru.values()) {
+            if (e.chunk.slab == slab) {
+                if (e.isPinned(currentTime)) {
+                    return false;
+                }
+                slabEntries.add(e);
+            }
+        }
+        for (Entry e : slabEntries) {
+            e.sizeClass.lru.remove(e.request);
+            removeEntry(e, removed, removedData);
+        }
+        return slab.usedChunks == 0;
+    }
+
+    // Must be called after removing the entry from its LRU list.
+    private void removeEntry(Entry entry, List<Entry> removed, List<PlanePyramidData> removedData) {
+        if (entry.pinCount > 0) {
+            LOG.warning("Off-heap data were not released during " + PINNING_TIMEOUT
+                + " ms; freeing " + entry.request);
+        }
+        map.remove(entry.request);
+        size = map.size();
+        if (getNextLevel() != null) {
+            removed.add(entry);
+            removedData.add(new CachedPlanePyramidData(entry.getBytes(), entry.contentMIMEType,
+                entry.creationTime, entry.dataLastModifiedTime));
+        }
+        freeChunk(entry);
+    }
+
+    private Chunk takeFreeChunk(SizeClass sizeClass) {
+        if (sizeClass.freeChunks.isEmpty()) {
+            final Slab slab = takeFreeSlab();
+            if (slab == null) {
+                return null;
+            }
+            sizeClass.addSlab(slab);
+        }
+        final Chunk chunk = sizeClass.freeChunks.remove();
+        chunk.slab.usedChunks++;
+        return chunk;
+    }
+
+    private Slab takeFreeSlab() {
+        final Slab slab = freeSlabs.poll();
+        if (slab != null) {
+            return slab;
+        }
+        if (numberOfSlabs >= maxNumberOfSlabs) {
+            return null;
+        }
+        final ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        } catch (OutOfMemoryError e) {
+            LOG.warning("Cannot allocate direct memory for off-heap cache, the number of slabs is limited by "
+                + numberOfSlabs + " (" + e.getMessage() + ")");
+            maxNumberOfSlabs = numberOfSlabs;
+            return null;
+        }
+        numberOfSlabs++;
+        return new Slab(buffer);
+    }
+
+    private void freeChunk(Entry entry) {
+        final Chunk chunk = entry.chunk;
+        final Slab slab = chunk.slab;
+        final SizeClass sizeClass = entry.sizeClass;
+        sizeClass.freeChunks.add(chunk);
+        slab.usedChunks--;
+        if (slab.usedChunks == 0) {
+            sizeClass.freeChunks.removeIf(c -> c.slab == slab);
+            freeSlabs.add(slab);
+            // - returning the slab to the common pool: it may be used by another size class
+        }
+    }
+
+    private void unpin(Entry entry) {
+        synchronized (lock) {
+            entry.pinCount--;
+            // - pinned data are never evicted (excepting lost data, pinned longer than PINNING_TIMEOUT),
+            // so we need not to free the chunk here
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer buffer;
+        int usedChunks = 0;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Chunk {
+        final Slab slab;
+        final int offset;
+
+        Chunk(Slab slab, int offset) {
+            this.slab = slab;
+            this.offset = offset;
+        }
+    }
+
+    private static final class SizeClass {
+        final int chunkSize;
+        final int chunksPerSlab;
+        final Queue<Chunk> freeChunks = new ArrayDeque<>();
+        final Map<PlanePyramidRequest, Entry> lru = new LinkedHashMap<>(16, 0.75f, true);
+        // - accessOrder = true
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = SLAB_SIZE / chunkSize;
+        }
+
+        void addSlab(Slab slab) {
+            for (int k = 0; k < chunksPerSlab; k++) {
+                freeChunks.add(new Chunk(slab, k * chunkSize));
+            }
+        }
+    }
+
+    private static final class Entry {
+        final PlanePyramidRequest request;
+        final SizeClass sizeClass;
+        final Chunk chunk;
+        final int length;
+        final String contentMIMEType;
+        final long creationTime;
+        final long dataLastModifiedTime;
+        int pinCount = 0;
+        long lastPinningTime = 0;
+        long lastAccess = 0;
+
+        Entry(PlanePyramidRequest request, SizeClass sizeClass, Chunk chunk, int length, PlanePyramidData data) {
+            this.request = request;
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+            this.contentMIMEType = data.getContentMIMEType();
+            this.creationTime = data.getCreationTime();
+            this.dataLastModifiedTime = data.getDataLastModifiedTime();
+        }
+
+        void pin() {
+            pinCount++;
+            lastPinningTime = System.currentTimeMillis();
+        }
+
+        boolean isPinned(long currentTime) {
+            return pinCount > 0 && currentTime - lastPinningTime < PINNING_TIMEOUT;
+        }
+
+        ByteBuffer buffer() {
+            final ByteBuffer result = chunk.slab.buffer.duplicate();
+            result.limit(chunk.offset + length).position(chunk.offset);
+            return result.slice().asReadOnlyBuffer();
+        }
+
+        byte[] getBytes() {
+            final byte[] result = new byte[length];
+            buffer().get(result);
+            return result;
+        }
+    }
+
+    private final class OffHeapData extends PlanePyramidData {
+        private final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        OffHeapData(Entry entry) {
+            super(entry.creationTime, entry.dataLastModifiedTime);
+            this.entry = entry;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            checkReleased();
+            return entry.getBytes();
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            checkReleased();
+            return entry.buffer();
+        }
+
+        @Override
+        public PlanePyramidData retain() {
+            synchronized (lock) {
+                checkReleased();
+                entry.pin();
+            }
+            return new OffHeapData(entry);
+        }
+
+        @Override
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                unpin(entry);
+            }
+        }
+
+        @Override
+        public String getContentMIMEType() {
+            return entry.contentMIMEType;
+        }
+
+        @Override
+        long estimatedMemoryInBytes() {
+            return entry.sizeClass.chunkSize;
+        }
+
+        private void checkReleased() {
+            if (released.get()) {
+                throw new IllegalStateException("Off-heap data are already released");
+            }
+        }
+    }
+}
@@ -60,6 +60,20 @@ public interface PlanePyramid {
         return pyramidRequest.readData(this);
     }
 
+    /**
+     * Performs the first stage of {@link #read(PlanePyramidRequest) reading} data: usually, reading from
+     * the storage only. The further conversions (rendering and encoding) are performed by the methods of the
+     * returned object, maybe in other threads.
+     * The default implementation performs all reading here.
+     *
+     * @param pyramidRequest request to this pyramid.
+     * @return data, which should be rendered and encoded.
+     * @throws IOException in a case of some problems while reading.
+     */
+    default PlanePyramidStagedData readSource(PlanePyramidRequest pyramidRequest) throws IOException {
+        return PlanePyramidStagedData.of(read(pyramidRequest));
+    }
+
     PlanePyramidInformation readInformation();
 
     PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) throws IOException;
@@ -93,4 +107,46 @@ public interface PlanePyramid {
      * @return is this pyramid cacheable.
      */
     boolean isCacheable();
+
+    /**
+     * <p>Returns the time of the last modification of the pyramid data (usually the modification time
+     * of the pyramid data file) in milliseconds since the epoch, or -1 if it is unknown.
+     * It is used to build HTTP validators (Last-Modified, ETag), which do not depend on the server cache.
+     * The default implementation returns -1.</p>
+     *
+     * <p>This method should work quickly.</p>
+     *
+     * @return time of the last modification of the pyramid data or -1.
+     */
+    default long dataLastModifiedTime() {
+        return -1;
+    }
+
+    /**
+     * <p>Returns an estimate of the memory (in bytes), occupied by this pyramid while it is open
+     * (caches, buffers, structures of the opened files etc.), or -1 if it is unknown.
+     * It is used by the pool of pyramids to limit the total memory of open pyramids.
+     * The result may change while the pyramid is used, for example, when its caches grow.
+     * The default implementation returns -1.</p>
+     *
+     * <p>This method should work quickly.</p>
+     *
+     * @return estimated memory used by this pyramid or -1.
+     */
+    default long estimatedMemoryUsage() {
+        return -1;
+    }
+
+    /**
+     * <p>Returns an estimate of the number of file handles, kept open by this pyramid, or -1 if it is unknown.
+     * It is used by the pool of pyramids to limit the total number of open files.
+     * The default implementation returns -1.</p>
+     *
+     * <p>This method should work quickly.</p>
+     *
+     * @return estimated number of open files or -1.
+     */
+    default int estimatedNumberOfOpenFiles() {
+        return -1;
+    }
 }
@@ -24,17 +24,42 @@
 
 package net.algart.pyramid;
 
+import java.nio.ByteBuffer;
+
 public abstract class PlanePyramidData {
-    private final long creationTime = System.currentTimeMillis();
+    private final long creationTime;
+    private final long dataLastModifiedTime;
 
     // Disable subclassing outside this package:
     PlanePyramidData() {
+        this(System.currentTimeMillis(), -1);
+    }
+
+    PlanePyramidData(long creationTime) {
+        this(creationTime, -1);
+    }
+
+    PlanePyramidData(long creationTime, long dataLastModifiedTime) {
+        this.creationTime = creationTime;
+        this.dataLastModifiedTime = dataLastModifiedTime;
     }
 
     public long getCreationTime() {
         return creationTime;
     }
 
+    /**
+     * Returns the {@link PlanePyramid#dataLastModifiedTime() time of the last modification} of the pyramid data,
+     * from which this data were read, or -1 if it is unknown. It is stored by all cache levels together with
+     * the data and allows to detect that the cached data are obsolete (for example, the pyramid data file
+     * was replaced, maybe while the process was not working).
+     *
+     * @return time of the last modification of the pyramid data or -1.
+     */
+    public long getDataLastModifiedTime() {
+        return dataLastModifiedTime;
+    }
+
     /**
      * Returns <tt>true</tt>, if this data is really a short string (maximum kilobytes, not megabytes).
      * If this method returns <tt>null</tt>, {@link #getShortString()} method returns non-<tt>null</tt> value;
@@ -63,6 +88,37 @@ public abstract class PlanePyramidData {
      */
     public abstract byte[] getBytes();
 
+    /**
+     * Returns this data in a form of read-only byte buffer, containing the same bytes as {@link #getBytes()}
+     * between its position and limit. The buffer may be shared with other threads and may be <i>direct</i>:
+     * for example, it is so for the data, stored by the cache outside the Java heap.
+     * The default implementation wraps the result of {@link #getBytes()}.
+     *
+     * @return this data in a form of byte buffer; never <tt>null</tt>.
+     */
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns an object, providing access to the same data, which must be {@link #release() released}
+     * independently from this one. Usually returns this object.
+     *
+     * @return this data for another owner.
+     */
+    public PlanePyramidData retain() {
+        return this;
+    }
+
+    /**
+     * Informs that the owner of this object, which has received it from {@link PlanePyramidDataCache#get},
+     * will not access its bytes anymore. It is important for the data, stored outside the Java heap:
+     * their memory cannot be reused until they are released. Usually this method does nothing.
+     * Calling this method several times has the same effect as one call.
+     */
+    public void release() {
+    }
+
     public abstract String getContentMIMEType();
 
     abstract long estimatedMemoryInBytes();
@@ -26,59 +26,206 @@ package net.algart.pyramid;
 
 import net.algart.pyramid.requests.PlanePyramidRequest;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
 
-public final class PlanePyramidDataCache {
+/**
+ * <p>Cache of the data, returned by {@link PlanePyramid#read(PlanePyramidRequest)} method.
+ * The total estimated memory, occupied by all cached data,
+ * does not exceed the limit, specified while creating the cache; when it is reached,
+ * the least recently used data are removed.</p>
+ *
+ * <p>The cache may have the {@link #setNextLevel(PlanePyramidDataCache) next level}: another cache,
+ * which receives the data removed from this one and is used when the data are not found in this cache.
+ * For example, the main cache in the Java heap may be followed by a larger cache outside the heap.
+ * The <i>persistent</i> levels (on the disk) receive all data immediately while {@link #put put} call,
+ * because they must survive restarting the process.</p>
+ *
+ * <p>The cache, created by the constructor, is the same as {@link #newConcurrentCache(long)};
+ * other implementations are created by the static methods of this class.</p>
+ *
+ * <p>This class is thread-safe: it may be shared between all services of the process.</p>
+ */
+public class PlanePyramidDataCache {
     //In future: maybe it makes sense to use https://cloud.google.com/appengine/docs/java/memcache/
 
-    private final long maxMemory;
-    private volatile long memory = 0;
-    private final Map<PlanePyramidRequest, PlanePyramidData> map = new LinkedHashMap<>(16, 0.75f, true);
-    // - accessOrder = true
+    final long maxMemory;
+
+    private final PlanePyramidDataCache implementation;
+    // - null for the caches, created by static methods: they implement all abstract operations themselves
+    private volatile PlanePyramidDataCache nextLevel = null;
 
     public PlanePyramidDataCache(long maxMemory) {
+        this(maxMemory, new ConcurrentPlanePyramidDataCache(maxMemory,
+            ConcurrentPlanePyramidDataCache.NUMBER_OF_SEGMENTS));
+    }
+
+    // Used by the implementations in this package:
+    PlanePyramidDataCache(long maxMemory, PlanePyramidDataCache implementation) {
         if (maxMemory < 0) {
             throw new IllegalArgumentException("Negative maxMemory");
         }
         this.maxMemory = maxMemory;
+        this.implementation = implementation;
+    }
+
+    /**
+     * Creates new cache, optimized for access from many threads: it is split into independent segments,
+     * and the data are found without any synchronization. Eviction uses the "clock" (second chance)
+     * algorithm, that is a good approximation of LRU.
+     *
+     * <p>Every segment may use only 1/{@value ConcurrentPlanePyramidDataCache#NUMBER_OF_SEGMENTS} part
+     * of <tt>maxMemory</tt>. Larger data are stored in a special segment, which may use the memory,
+     * not occupied by other segments; the data, larger than <tt>maxMemory</tt>, are passed directly
+     * to the {@link #setNextLevel(PlanePyramidDataCache) next level}, if it exists.</p>
+     *
+     * @param maxMemory maximal summary memory of all cached data.
+     * @return new cache.
+     */
+    public static PlanePyramidDataCache newConcurrentCache(long maxMemory) {
+        return new ConcurrentPlanePyramidDataCache(maxMemory, ConcurrentPlanePyramidDataCache.NUMBER_OF_SEGMENTS);
+    }
+
+    /**
+     * Creates new cache, based on a single <tt>LinkedHashMap</tt> in access order with synchronized access.
+     * It implements exact LRU, but all threads accessing the cache are serialized.
+     *
+     * @param maxMemory maximal summary memory of all cached data.
+     * @return new cache.
+     */
+    public static PlanePyramidDataCache newSynchronizedCache(long maxMemory) {
+        return new SynchronizedPlanePyramidDataCache(maxMemory);
+    }
+
+    /**
+     * Creates new cache, storing the bytes of the data outside the Java heap in direct byte buffers.
+     * The memory is allocated by slabs of {@value OffHeapPlanePyramidDataCache#SLAB_SIZE} bytes;
+     * larger data and data, which are {@link PlanePyramidData#isShortString() short strings}, are not stored.
+     * The data, returned by {@link #get} method of this cache, must be {@link PlanePyramidData#release() released}
+     * after usage.
+     *
+     * <p>Note that the maximal amount of direct memory in JVM is limited by <tt>-XX:MaxDirectMemorySize</tt>
+     * option.</p>
+     *
+     * @param maxMemory maximal summary memory of all slabs.
+     * @return new cache.
+     */
+    public static PlanePyramidDataCache newOffHeapCache(long maxMemory) {
+        return new OffHeapPlanePyramidDataCache(maxMemory);
+    }
+
+    /**
+     * Creates new persistent cache, storing the data in append-only segment files in a subfolder of the
+     * specified folder; the index of these files is also stored on the disk, so the cached data are available
+     * after restarting the process. Different processes use different subfolders ("slots") of the folder,
+     * locked while the process works. When the summary size of the files exceeds <tt>maxDiskSpace</tt>,
+     * the oldest segment files are removed.
+     *
+     * <p>The data are written to the disk in a separate thread. Only the data, corresponding to the requests
+     * with non-null {@link PlanePyramidRequest#persistentKey() persistent key}, are stored;
+     * {@link PlanePyramidData#isShortString() short strings} are not stored.
+     * The {@link PlanePyramidData#getDataLastModifiedTime() modification time of the pyramid data} is stored
+     * together with the data: the user of the cache should compare it with the current modification time
+     * to detect obsolete data; new data with another modification time replace the stored ones.</p>
+     *
+     * @param folder       the folder for storing the data.
+     * @param maxDiskSpace maximal summary size of the files.
+     * @return new cache.
+     * @throws IOException in a case of I/O error while creating folders or loading the index.
+     */
+    public static PlanePyramidDataCache newDiskCache(Path folder, long maxDiskSpace) throws IOException {
+        return new DiskPlanePyramidDataCache(folder, maxDiskSpace);
     }
 
-    public synchronized PlanePyramidData get(PlanePyramidRequest request) {
-        final PlanePyramidData result = map.get(request);
-        if (result == null) {
-            return null;
+    /**
+     * Returns the data from this cache or, if they are absent here, from the {@link #getNextLevel() next level}.
+     *
+     * @param request the request, which has led to these data.
+     * @return the data or <tt>null</tt> if they are not cached.
+     */
+    public final PlanePyramidData get(PlanePyramidRequest request) {
+        Objects.requireNonNull(request, "Null request");
+        final PlanePyramidData result = getFromThisLevel(request);
+        if (result != null) {
+            return result;
         }
-//        System.out.println("Getting " + request + " from cache");
-        return result;
+        final PlanePyramidDataCache nextLevel = this.nextLevel;
+        return nextLevel == null ? null : nextLevel.get(request);
     }
 
-    public synchronized void put(PlanePyramidRequest request, PlanePyramidData data) {
-        map.put(request, data);
-        increaseMemory(data);
-        clean();
+    public final void put(PlanePyramidRequest request, PlanePyramidData data) {
+        Objects.requireNonNull(request, "Null request");
+        Objects.requireNonNull(data, "Null data");
+        putToThisLevel(request, data);
+        for (PlanePyramidDataCache level = nextLevel; level != null; level = level.nextLevel) {
+            if (level.isPersistent()) {
+                level.putToThisLevel(request, data);
+            }
+        }
     }
 
-    private void increaseMemory(PlanePyramidData data) {
-        memory += data.estimatedMemoryInBytes();
+    public final PlanePyramidDataCache getNextLevel() {
+        return nextLevel;
     }
 
-    private void decreaseMemory(PlanePyramidData removed) {
-        memory -= removed.estimatedMemoryInBytes();
-        if (memory < 0) {
-            throw new AssertionError("Non-balanced adding and removing: " + memory);
+    public final PlanePyramidDataCache setNextLevel(PlanePyramidDataCache nextLevel) {
+        for (PlanePyramidDataCache level = nextLevel; level != null; level = level.nextLevel) {
+            if (level == this) {
+                throw new IllegalArgumentException("Cyclic sequence of cache levels");
+            }
         }
+        this.nextLevel = nextLevel;
+        if (implementation != null) {
+            implementation.nextLevel = nextLevel;
+            // - the data, evicted from the implementation, are passed to the next level
+        }
+        return this;
+    }
+
+    public final long maxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Returns the summary estimated memory of all data in the cache.
+     * The result may be not quite exact if other threads are modifying the cache at the same time.
+     *
+     * @return occupied memory in bytes.
+     */
+    public long memory() {
+        return implementation.memory();
+    }
+
+    public int size() {
+        return implementation.size();
+    }
+
+    @Override
+    public String toString() {
+        final PlanePyramidDataCache nextLevel = this.nextLevel;
+        return getClass().getSimpleName() + " (" + size() + " elements, "
+            + memory() + "/" + maxMemory + " bytes)"
+            + (nextLevel == null ? "" : ", next level: " + nextLevel);
+    }
+
+    boolean isPersistent() {
+        return false;
+    }
+
+    PlanePyramidData getFromThisLevel(PlanePyramidRequest request) {
+        return implementation.getFromThisLevel(request);
+    }
+
+    void putToThisLevel(PlanePyramidRequest request, PlanePyramidData data) {
+        implementation.putToThisLevel(request, data);
     }
 
-    private void clean() {
-        for (Iterator<Map.Entry<PlanePyramidRequest, PlanePyramidData>> iterator = map.entrySet().iterator();
-             iterator.hasNext() && memory > maxMemory; )
-        {
-            Map.Entry<PlanePyramidRequest, PlanePyramidData> entry = iterator.next();
-            iterator.remove();
-            decreaseMemory(entry.getValue());
-//            System.out.println("Removing " + entry.getKey() + " from cache");
+    // Must be called without synchronization: the next level may be slow (for example, on the disk)
+    final void evicted(PlanePyramidRequest request, PlanePyramidData data) {
+        final PlanePyramidDataCache nextLevel = this.nextLevel;
+        if (nextLevel != null) {
+            nextLevel.put(request, data);
         }
     }
 }
@@ -32,8 +32,8 @@ public final class PlanePyramidImageData extends PlanePyramidData {
     private final String imageFormat;
 
     public PlanePyramidImageData(byte[] bytes, PlanePyramid thisPyramid) {
+        super(System.currentTimeMillis(), thisPyramid.isCacheable() ? thisPyramid.dataLastModifiedTime() : -1);
         Objects.requireNonNull(bytes);
-        Objects.requireNonNull(thisPyramid);
         this.bytes = bytes;
         this.imageFormat = thisPyramid.returnedDataFormat();
         this.rawBytes = thisPyramid.isRawBytes();
@@ -151,6 +151,21 @@ public final class PlanePyramidInformation extends PlanePyramidData {
         return elementType;
     }
 
+    /**
+     * Returns the number of bytes, occupied by one pixel (all channels) in memory;
+     * bit elements are supposed to occupy 1 byte.
+     *
+     * @return size of one pixel in bytes.
+     */
+    public int getPixelSizeInBytes() {
+        final int elementSize =
+            elementType == short.class || elementType == char.class ? 2
+                : elementType == int.class || elementType == float.class ? 4
+                : elementType == long.class || elementType == double.class ? 8
+                : 1;
+        return channelCount * elementSize;
+    }
+
     public String getReturnedDataFormatName() {
         return returnedDataFormatName;
     }
@@ -24,22 +24,52 @@
 
 package net.algart.pyramid;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.logging.Level;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 public final class PlanePyramidPool {
     private static final boolean POOL_ENABLED = true;
     // - for debugging needs; should be true
     private static final Logger LOG = Logger.getLogger(PlanePyramidPool.class.getName());
+    private static final long CHECKING_PERIOD = 1000;
+    // - every pyramid in the pool is checked for timeout and for growth of its resources with this period (ms)
+    private static final ExecutorService CHECKING_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "Pyramid pool checking thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // - the timer wheel only passes the checks to this executor: the methods of a pyramid and especially
+    // freeing its resources can be slow and must not delay other timeouts of the shared wheel
 
     private final int poolSize;
     private final PlanePyramidFactory factory;
-    private final PyramidPoolHashMap pool = new PyramidPoolHashMap();
+    private final Map<String, PooledPyramid> pool = new HashMap<>();
+    private volatile long memoryBudget = Long.MAX_VALUE;
+    private volatile long openFilesBudget = Long.MAX_VALUE;
+    private volatile long frequencyHalfLife = 60000;
+    private long accessCounter = 0;
+    private long totalMemory = 0;
+    private long totalFiles = 0;
+    // - synchronized by pool
+    private final HashedTimerWheel timerWheel = HashedTimerWheel.getSharedInstance();
+    private final long creationTime = System.currentTimeMillis();
+    private final Map<String, CompletableFuture<PooledPyramid>> openings = new HashMap<>();
+    // - pyramids, which are being opened now; access is synchronized by pool
+    private final AtomicLong numberOfOpenedPyramids = new AtomicLong();
+    private final AtomicLong totalOpeningTime = new AtomicLong();
+    private final AtomicLong maxOpeningTime = new AtomicLong();
+    private final AtomicLong numberOfDeferredFreeings = new AtomicLong();
+    private final AtomicLong numberOfEvictedPyramids = new AtomicLong();
 
     public PlanePyramidPool(PlanePyramidFactory factory, int poolSize) {
         this.factory = Objects.requireNonNull(factory);
@@ -47,107 +77,503 @@ public final class PlanePyramidPool {
             throw new IllegalArgumentException("Zero or negative pool size");
         }
         this.poolSize = poolSize;
-        final Thread cleaningThread = new CleaningPyramidsThread();
-        cleaningThread.setDaemon(true);
-        cleaningThread.start();
     }
 
     public PlanePyramidFactory getFactory() {
         return factory;
     }
 
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the maximal total {@link PlanePyramid#estimatedMemoryUsage() estimated memory} of pyramids
+     * in the pool. When it is exceeded, the pool removes the least frequently used pyramids.
+     * Pyramids with unknown memory usage are not counted. Default value is <tt>Long.MAX_VALUE</tt> (no limit).
+     *
+     * @param memoryBudget maximal total memory of pyramids in bytes.
+     * @return a reference to this object.
+     */
+    public PlanePyramidPool setMemoryBudget(long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Zero or negative memory budget");
+        }
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    public long getOpenFilesBudget() {
+        return openFilesBudget;
+    }
+
+    /**
+     * Sets the maximal total {@link PlanePyramid#estimatedNumberOfOpenFiles() number of open files}
+     * of pyramids in the pool. A pyramid with unknown number of open files is counted as 1 file.
+     * Default value is <tt>Long.MAX_VALUE</tt> (no limit).
+     *
+     * @param openFilesBudget maximal total number of files, opened by pyramids.
+     * @return a reference to this object.
+     */
+    public PlanePyramidPool setOpenFilesBudget(long openFilesBudget) {
+        if (openFilesBudget <= 0) {
+            throw new IllegalArgumentException("Zero or negative open files budget");
+        }
+        this.openFilesBudget = openFilesBudget;
+        return this;
+    }
+
+    public long getFrequencyHalfLife() {
+        return frequencyHalfLife;
+    }
+
+    /**
+     * Sets the aging period for the frequencies of access to pyramids (in milliseconds).
+     * When the pool is overflown (by the number of pyramids, memory or files), it removes the pyramid
+     * with the least number of accesses; this number is halved every <tt>frequencyHalfLife</tt> ms,
+     * so a pyramid, which was popular long ago, does not stay in the pool forever.
+     * Default value is 60000 (1 minute).
+     *
+     * @param frequencyHalfLife aging period in milliseconds.
+     * @return a reference to this object.
+     */
+    public PlanePyramidPool setFrequencyHalfLife(long frequencyHalfLife) {
+        if (frequencyHalfLife <= 0) {
+            throw new IllegalArgumentException("Zero or negative frequency half-life");
+        }
+        this.frequencyHalfLife = frequencyHalfLife;
+        return this;
+    }
+
     public PlanePyramid getHttpPlanePyramid(String pyramidConfiguration) throws Exception {
         return getHttpPlanePyramid(pyramidConfiguration, false);
     }
 
+    /**
+     * Returns the pyramid with the given configuration from the pool, or opens it by the factory.
+     * Unlike {@link #acquireHttpPlanePyramid(String, boolean)}, the returned pyramid is not protected
+     * from freeing its resources while it is used, if it is removed from the pool at the same time.
+     *
+     * @param pyramidConfiguration configuration of the pyramid.
+     * @param savingMemoryMode     if <tt>true</tt>, the new pyramid is not saved in the pool.
+     * @return the pyramid.
+     * @throws Exception if the factory cannot open the pyramid.
+     */
     public PlanePyramid getHttpPlanePyramid(String pyramidConfiguration, boolean savingMemoryMode)
         throws Exception
     {
-        Objects.requireNonNull(pyramidConfiguration, "Null pyramidConfiguration argument");
+        final PooledPyramid pooledPyramid = acquire(pyramidConfiguration, savingMemoryMode);
+        if (pooledPyramid.pooled) {
+            release(pooledPyramid);
+        }
+        // - not-pooled pyramid will be just collected by GC
+        return pooledPyramid.pyramid;
+    }
+
+    /**
+     * Returns a lease of the pyramid with the given configuration from the pool, or opens it by the factory.
+     * While the lease is not {@link Lease#close() closed}, the pool does not free resources of this pyramid,
+     * even if it is removed from the pool (because of overflow, timeout or
+     * {@link #removeHttpPlanePyramid(String)} call): freeing is deferred until the last lease is closed.
+     * The lease should be held while the pyramid accesses its data; typical usage:
+     * <pre>
+     * try (PlanePyramidPool.Lease lease = pool.acquireHttpPlanePyramid(configuration, false)) {
+     *     data = lease.getPyramid().read(request);
+     * }
+     * </pre>
+     *
+     * <p>Opening a pyramid (by {@link PlanePyramidFactory#newPyramid(String)}) can be long. It is performed
+     * without global synchronization: other threads can get other pyramids from the pool at the same time,
+     * or open other pyramids. If several threads request the same pyramid, that is being opened now,
+     * it is opened only once, and all these threads wait for it.</p>
+     *
+     * @param pyramidConfiguration configuration of the pyramid.
+     * @param savingMemoryMode     if <tt>true</tt>, the new pyramid is not saved in the pool
+     *                             (and is freed when the lease is closed).
+     * @return the lease of the pyramid.
+     * @throws Exception if the factory cannot open the pyramid.
+     */
+    public Lease acquireHttpPlanePyramid(String pyramidConfiguration, boolean savingMemoryMode)
+        throws Exception
+    {
+        return new Lease(acquire(pyramidConfiguration, savingMemoryMode));
+    }
+
+    public boolean removeHttpPlanePyramid(String pyramidConfiguration) {
         if (!POOL_ENABLED) {
-            return factory.newPyramid(pyramidConfiguration);
+            return false;
         }
+        final PooledPyramid pooledPyramid;
         synchronized (pool) {
-            PlanePyramid pyramid = pool.get(pyramidConfiguration);
-            if (pyramid != null) {
-                LOG.config("The pyramid has loaded from pool: " + pyramid);
-                return pyramid;
+            pooledPyramid = pool.get(pyramidConfiguration);
+            if (pooledPyramid == null) {
+                return false;
             }
-            pyramid = factory.newPyramid(pyramidConfiguration);
-            if (savingMemoryMode) {
-                // So, this request will not lead to allocating memory in pool;
-                // but, maybe, it will do some parallel non-saving-memory request
-                LOG.info("New pyramid has been created, but NOT saved in pool: " + pyramid);
-            } else {
-                LOG.info("New pyramid has been created and saved in pool: " + pyramid);
-                pool.put(pyramidConfiguration, pyramid);
+            if (!removeFromPool(pooledPyramid)) {
+                return true;
             }
-            return pyramid;
         }
+        pooledPyramid.pyramid.freeResources();
+        LOG.info("Saving memory: freeing and removing " + pooledPyramid.pyramid);
+        return true;
     }
 
-    public boolean removeHttpPlanePyramid(String pyramidConfiguration) {
-        if (!POOL_ENABLED) {
-            return false;
+    public long numberOfOpenedPyramids() {
+        return numberOfOpenedPyramids.get();
+    }
+
+    public double averageOpeningTimeInMilliseconds() {
+        final long n = numberOfOpenedPyramids.get();
+        return n == 0 ? 0.0 : totalOpeningTime.get() * 1e-6 / n;
+    }
+
+    public double maxOpeningTimeInMilliseconds() {
+        return maxOpeningTime.get() * 1e-6;
+    }
+
+    public long numberOfEvictedPyramids() {
+        return numberOfEvictedPyramids.get();
+    }
+
+    public long estimatedMemoryUsage() {
+        synchronized (pool) {
+            return totalMemory;
         }
+    }
+
+    public long estimatedNumberOfOpenFiles() {
         synchronized (pool) {
-            final PlanePyramid pyramid = pool.remove(pyramidConfiguration);
-            pyramid.freeResources();
-            LOG.info("Saving memory: freeing and removing " + pyramid);
-            return pyramid != null;
+            return totalFiles;
         }
     }
 
-    private void cleanOldPyramids() {
+    /**
+     * Returns the number of pyramids, which were removed from the pool while being used,
+     * so that freeing their resources was deferred until the end of using.
+     *
+     * @return number of deferred freeings.
+     */
+    public long numberOfDeferredFreeings() {
+        return numberOfDeferredFreeings.get();
+    }
+
+    @Override
+    public String toString() {
+        final int size;
+        final int numberOfOpenings;
         synchronized (pool) {
-//            System.out.printf("%d active pyramids%n", pool.size());
-            for (Iterator<Map.Entry<String, PlanePyramid>> iterator = pool.entrySet().iterator();
-                 iterator.hasNext(); )
-            {
-                Map.Entry<String, PlanePyramid> entry = iterator.next();
-                if (entry.getValue().isTimeout()) {
-                    entry.getValue().freeResources();
-                    iterator.remove();
-                    LOG.info("Pyramid obsolete; freeing and removing " + entry.getValue());
-                }
-            }
+            size = pool.size();
+            numberOfOpenings = openings.size();
         }
+        return String.format(Locale.US,
+            "pyramid pool: %d pyramids (maximum %d), %d being opened, %d bytes and %d files estimated; "
+                + "%d pyramids opened, average opening time %.3f ms, maximal %.3f ms; "
+                + "%d evicted, %d deferred freeings",
+            size, poolSize, numberOfOpenings, estimatedMemoryUsage(), estimatedNumberOfOpenFiles(),
+            numberOfOpenedPyramids(), averageOpeningTimeInMilliseconds(), maxOpeningTimeInMilliseconds(),
+            numberOfEvictedPyramids(), numberOfDeferredFreeings());
     }
 
-    private class PyramidPoolHashMap extends LinkedHashMap<String, PlanePyramid> {
-        public PyramidPoolHashMap() {
-            super(16, 0.75f, true);
-            // necessary to set access order to true
+    /**
+     * Usage of a pyramid from the pool: see {@link #acquireHttpPlanePyramid(String, boolean)}.
+     * Closing the lease twice has no effect. This class is thread-safe.
+     */
+    public final class Lease implements AutoCloseable {
+        private final PooledPyramid pooledPyramid;
+        private boolean closed = false;
+
+        private Lease(PooledPyramid pooledPyramid) {
+            this.pooledPyramid = pooledPyramid;
+        }
+
+        public PlanePyramid getPyramid() {
+            return pooledPyramid.pyramid;
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<String, PlanePyramid> eldest) {
-            if (size() > poolSize) {
-                LOG.info("Pyramid pool overflow; freeing and removing " + eldest.getValue());
-                eldest.getValue().freeResources();
-                return true;
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (pooledPyramid.pooled) {
+                release(pooledPyramid);
             } else {
-                return false;
+                pooledPyramid.pyramid.freeResources();
             }
         }
-    }
 
-    private class CleaningPyramidsThread extends Thread {
         @Override
-        public void run() {
-            for (; ;) {
+        public String toString() {
+            return "lease of " + pooledPyramid.pyramid;
+        }
+    }
+
+    private PooledPyramid acquire(String pyramidConfiguration, boolean savingMemoryMode) throws Exception {
+        Objects.requireNonNull(pyramidConfiguration, "Null pyramidConfiguration argument");
+        if (!POOL_ENABLED) {
+            return new PooledPyramid(pyramidConfiguration, factory.newPyramid(pyramidConfiguration), false);
+        }
+        for (; ; ) {
+            CompletableFuture<PooledPyramid> opening;
+            boolean openingHere = false;
+            synchronized (pool) {
+                final PooledPyramid pooledPyramid = pool.get(pyramidConfiguration);
+                if (pooledPyramid != null) {
+                    pooledPyramid.leases++;
+                    touch(pooledPyramid);
+                    LOG.config("The pyramid has loaded from pool: " + pooledPyramid.pyramid);
+                    return pooledPyramid;
+                }
+                opening = openings.get(pyramidConfiguration);
+                if (opening == null && !savingMemoryMode) {
+                    opening = new CompletableFuture<>();
+                    openings.put(pyramidConfiguration, opening);
+                    openingHere = true;
+                }
+            }
+            if (opening == null) {
+                final PlanePyramid pyramid = openPyramid(pyramidConfiguration);
+                // So, this request will not lead to allocating memory in pool;
+                // but, maybe, it will do some parallel non-saving-memory request
+                LOG.info("New pyramid has been created, but NOT saved in pool: " + pyramid);
+                return new PooledPyramid(pyramidConfiguration, pyramid, false);
+            }
+            if (!openingHere) {
+                // - the same pyramid is being opened by another thread: it will be saved in pool
+                final PooledPyramid pooledPyramid;
                 try {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        // nothing to do
+                    pooledPyramid = opening.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
                     }
-                    cleanOldPyramids();
-                } catch (Throwable e) {
-                    // In this very improbable case we keep this thread
-                    LOG.log(Level.SEVERE, "Unexpected error in logic of cleaning obsolete pyramids!", e);
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+                synchronized (pool) {
+                    if (!pooledPyramid.removed) {
+                        pooledPyramid.leases++;
+                        touch(pooledPyramid);
+                        LOG.config("The pyramid has loaded from pool after opening by another thread: "
+                            + pooledPyramid.pyramid);
+                        return pooledPyramid;
+                    }
+                }
+                // - very improbable case: the pyramid was already removed from the pool; let's repeat
+                continue;
+            }
+            final PooledPyramid pooledPyramid;
+            try {
+                pooledPyramid = new PooledPyramid(pyramidConfiguration, openPyramid(pyramidConfiguration), true);
+            } catch (Throwable e) {
+                synchronized (pool) {
+                    openings.remove(pyramidConfiguration);
                 }
+                opening.completeExceptionally(e);
+                throw e;
+            }
+            final List<PlanePyramid> evicted = new ArrayList<>();
+            synchronized (pool) {
+                openings.remove(pyramidConfiguration);
+                pooledPyramid.leases++;
+                touch(pooledPyramid);
+                addToPool(pooledPyramid);
+                evictIfNecessary(pooledPyramid, evicted);
+            }
+            opening.complete(pooledPyramid);
+            LOG.info("New pyramid has been created and saved in pool: " + pooledPyramid.pyramid);
+            freeEvicted(evicted);
+            return pooledPyramid;
+        }
+    }
+
+    private PlanePyramid openPyramid(String pyramidConfiguration) throws Exception {
+        final long t1 = System.nanoTime();
+        final PlanePyramid pyramid = factory.newPyramid(pyramidConfiguration);
+        final long t2 = System.nanoTime();
+        final long openingTime = t2 - t1;
+        numberOfOpenedPyramids.incrementAndGet();
+        totalOpeningTime.addAndGet(openingTime);
+        maxOpeningTime.accumulateAndGet(openingTime, Math::max);
+        LOG.config(String.format(Locale.US, "Pyramid opened in %.3f ms: %s", openingTime * 1e-6, pyramid));
+        return pyramid;
+    }
+
+    private void release(PooledPyramid pooledPyramid) {
+        synchronized (pool) {
+            assert pooledPyramid.leases > 0;
+            pooledPyramid.leases--;
+            if (!pooledPyramid.removed || pooledPyramid.leases > 0) {
+                return;
+            }
+        }
+        pooledPyramid.pyramid.freeResources();
+        LOG.info("Pyramid was removed from pool while being used; freeing after the last usage "
+            + pooledPyramid.pyramid);
+    }
+
+    // Performed by CHECKING_EXECUTOR for every pyramid in the pool.
+    private void checkPyramid(PooledPyramid pooledPyramid) {
+        final List<PlanePyramid> evicted = new ArrayList<>();
+        boolean obsolete = false;
+        final PlanePyramid pyramid = pooledPyramid.pyramid;
+        final long memory = pyramid.estimatedMemoryUsage();
+        final int files = pyramid.estimatedNumberOfOpenFiles();
+        final boolean timeout = pyramid.isTimeout();
+        // - called outside the synchronization: these methods are not always quick
+        synchronized (pool) {
+            if (pooledPyramid.removed) {
+                return;
+            }
+            pooledPyramid.setEstimates(memory, files);
+            // - estimated memory of the pyramid could grow since the last check
+            if (pooledPyramid.leases == 0 && timeout) {
+                // - a pyramid, which is used now, is not obsolete
+                obsolete = removeFromPool(pooledPyramid);
+            } else {
+                pooledPyramid.scheduleChecking();
+                evictIfNecessary(null, evicted);
+            }
+        }
+        if (obsolete) {
+            pooledPyramid.pyramid.freeResources();
+            LOG.info("Pyramid obsolete; freeing and removing " + pooledPyramid.pyramid);
+        }
+        freeEvicted(evicted);
+    }
+
+    // Must be called while synchronization by pool.
+    private void addToPool(PooledPyramid pooledPyramid) {
+        pool.put(pooledPyramid.configuration, pooledPyramid);
+        pooledPyramid.refreshEstimates();
+        pooledPyramid.scheduleChecking();
+    }
+
+    // Must be called while synchronization by pool.
+    // Returns true if the resources can be freed now.
+    private boolean removeFromPool(PooledPyramid pooledPyramid) {
+        pool.remove(pooledPyramid.configuration);
+        totalMemory -= pooledPyramid.memory;
+        totalFiles -= pooledPyramid.files;
+        if (pooledPyramid.checking != null) {
+            pooledPyramid.checking.cancel();
+        }
+        return pooledPyramid.markRemoved();
+    }
+
+    // Must be called while synchronization by pool.
+    private void touch(PooledPyramid pooledPyramid) {
+        pooledPyramid.frequency = pooledPyramid.agedFrequency(currentAgingEpoch()) + 1;
+        pooledPyramid.lastAccess = ++accessCounter;
+    }
+
+    // Must be called while synchronization by pool.
+    private void evictIfNecessary(PooledPyramid newPyramid, List<PlanePyramid> evicted) {
+        final long agingEpoch = currentAgingEpoch();
+        while (pool.size() > poolSize || totalMemory > memoryBudget || totalFiles > openFilesBudget) {
+            PooledPyramid victim = null;
+            for (PooledPyramid pooledPyramid : pool.values()) {
+                if (pooledPyramid != newPyramid
+                    && (victim == null || pooledPyramid.isBetterVictimThan(victim, agingEpoch)))
+                {
+                    victim = pooledPyramid;
+                }
+            }
+            if (victim == null) {
+                // - only the new pyramid is in the pool: we keep it even if it is too large
+                break;
+            }
+            final String reason = pool.size() > poolSize ? "overflow" : totalMemory > memoryBudget ?
+                "memory budget exceeded (" + totalMemory + " > " + memoryBudget + " bytes)" :
+                "open files budget exceeded (" + totalFiles + " > " + openFilesBudget + ")";
+            numberOfEvictedPyramids.incrementAndGet();
+            if (removeFromPool(victim)) {
+                LOG.info("Pyramid pool " + reason + "; freeing and removing " + victim.pyramid);
+                evicted.add(victim.pyramid);
+            } else {
+                LOG.info("Pyramid pool " + reason + "; removing " + victim.pyramid
+                    + " (it will be freed after the end of using)");
+            }
+        }
+    }
+
+    private static void freeEvicted(List<PlanePyramid> evicted) {
+        for (PlanePyramid pyramid : evicted) {
+            pyramid.freeResources();
+        }
+    }
+
+    private long currentAgingEpoch() {
+        return (System.currentTimeMillis() - creationTime) / frequencyHalfLife;
+    }
+
+    private final class PooledPyramid {
+        private final String configuration;
+        private final PlanePyramid pyramid;
+        private final boolean pooled;
+        private int leases = 0;
+        private boolean removed = false;
+        private long frequency = 0;
+        private long frequencyEpoch = 0;
+        private long lastAccess = 0;
+        private long memory = 0;
+        private long files = 0;
+        private HashedTimerWheel.Timeout checking = null;
+        // - all non-final fields are synchronized by pool
+
+        private PooledPyramid(String configuration, PlanePyramid pyramid, boolean pooled) {
+            this.configuration = configuration;
+            this.pyramid = pyramid;
+            this.pooled = pooled;
+        }
+
+        // Lazy aging: the frequency is halved for every aging epoch since the last access.
+        private long agedFrequency(long agingEpoch) {
+            final long shift = agingEpoch - frequencyEpoch;
+            frequencyEpoch = agingEpoch;
+            frequency = shift >= 63 ? 0 : frequency >> shift;
+            return frequency;
+        }
+
+        private boolean isBetterVictimThan(PooledPyramid other, long agingEpoch) {
+            if ((leases == 0) != (other.leases == 0)) {
+                return leases == 0;
+                // - removing a pyramid in use does not free its resources at once
+            }
+            final long thisFrequency = agedFrequency(agingEpoch);
+            final long otherFrequency = other.agedFrequency(agingEpoch);
+            return thisFrequency != otherFrequency ? thisFrequency < otherFrequency : lastAccess < other.lastAccess;
+        }
+
+        private void refreshEstimates() {
+            setEstimates(pyramid.estimatedMemoryUsage(), pyramid.estimatedNumberOfOpenFiles());
+        }
+
+        private void setEstimates(long estimatedMemory, int estimatedFiles) {
+            final long newMemory = Math.max(0, estimatedMemory);
+            final long newFiles = estimatedFiles < 0 ? 1 : estimatedFiles;
+            totalMemory += newMemory - memory;
+            totalFiles += newFiles - files;
+            memory = newMemory;
+            files = newFiles;
+        }
+
+        private void scheduleChecking() {
+            checking = timerWheel.schedule(System.currentTimeMillis() + CHECKING_PERIOD,
+                () -> CHECKING_EXECUTOR.execute(() -> checkPyramid(this)));
+        }
+
+        // Returns true if the resources can be freed now.
+        private boolean markRemoved() {
+            removed = true;
+            if (leases > 0) {
+                numberOfDeferredFreeings.incrementAndGet();
+                return false;
             }
+            return true;
         }
     }
 }
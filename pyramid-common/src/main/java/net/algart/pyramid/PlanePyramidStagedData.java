@@ -0,0 +1,67 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * <p>Data, read from the plane pyramid by {@link PlanePyramid#readSource}, which are not yet converted
+ * into the form, suitable for sending to the client. Reading source data is usually limited by input/output
+ * (disk or network storage), while the next stages &mdash; {@link #render()} (for example, converting pixels
+ * into RGB image) and {@link #encode()} (for example, compressing the image into PNG) &mdash; use only CPU.
+ * So, the server may perform every stage in its own pool of threads.</p>
+ *
+ * <p>The stages must be called in this order, from one or several threads, but not simultaneously:
+ * {@link #render()} once, then {@link #encode()} once.</p>
+ */
+public interface PlanePyramidStagedData {
+    /**
+     * Performs the rendering stage. The default implementation does nothing.
+     *
+     * @throws IOException in a case of some problems while rendering.
+     */
+    default void render() throws IOException {
+    }
+
+    /**
+     * Performs the encoding stage and returns the resulting data.
+     *
+     * @return the data, which can be sent to the client.
+     * @throws IOException in a case of some problems while encoding.
+     */
+    PlanePyramidData encode() throws IOException;
+
+    /**
+     * Returns staged data, which are already completely prepared: both stages do nothing.
+     *
+     * @param data the resulting data.
+     * @return staged data, returning the given data.
+     */
+    static PlanePyramidStagedData of(PlanePyramidData data) {
+        Objects.requireNonNull(data, "Null data");
+        return () -> data;
+    }
+}
@@ -130,4 +130,9 @@ public final class PlanePyramidReadImageRequest extends PlanePyramidAnyImageRequ
         return result;
     }
 
+    @Override
+    protected String persistentKeyIgnoringPyramidUniqueId() {
+        return compression + " " + zeroLevelFromX + " " + zeroLevelFromY + " " + zeroLevelToX + " " + zeroLevelToY;
+    }
+
 }
@@ -26,6 +26,7 @@ package net.algart.pyramid.requests;
 
 import net.algart.pyramid.PlanePyramid;
 import net.algart.pyramid.PlanePyramidImageData;
+import net.algart.pyramid.PlanePyramidInformation;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -89,6 +90,30 @@ public final class PlanePyramidReadSpecialImageRequest extends PlanePyramidAnyIm
         return savingMemory;
     }
 
+    /**
+     * Estimates the memory for the resulting image: its pixels in the pyramid format and
+     * in the form of ARGB image, which is encoded then. If only one of the desired sizes is specified,
+     * the other one is calculated by the proportions of the pyramid; if both are unknown,
+     * returns <tt>Long.MAX_VALUE</tt>.
+     *
+     * @param information information about the pyramid.
+     * @return estimated memory usage in bytes.
+     */
+    @Override
+    public long estimatedMemoryUsage(PlanePyramidInformation information) {
+        Objects.requireNonNull(information, "Null information");
+        if (desiredWidth == null && desiredHeight == null) {
+            return Long.MAX_VALUE;
+        }
+        final double aspectRatio = information.getZeroLevelDimX() == 0 || information.getZeroLevelDimY() == 0 ?
+            1.0 :
+            (double) information.getZeroLevelDimX() / (double) information.getZeroLevelDimY();
+        final double width = desiredWidth != null ? desiredWidth : desiredHeight * aspectRatio;
+        final double height = desiredHeight != null ? desiredHeight : desiredWidth / aspectRatio;
+        final double result = Math.ceil(width) * Math.ceil(height) * (information.getPixelSizeInBytes() + 4);
+        return result >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) result;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + " for " + specialImageName
@@ -118,4 +143,9 @@ public final class PlanePyramidReadSpecialImageRequest extends PlanePyramidAnyIm
         result = 31 * result + (desiredHeight != null ? desiredHeight.hashCode() : 0);
         return result;
     }
+
+    @Override
+    protected String persistentKeyIgnoringPyramidUniqueId() {
+        return specialImageName + " " + desiredWidth + " " + desiredHeight;
+    }
 }
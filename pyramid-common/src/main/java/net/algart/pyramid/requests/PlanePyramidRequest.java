@@ -26,6 +26,7 @@ package net.algart.pyramid.requests;
 
 import net.algart.pyramid.PlanePyramid;
 import net.algart.pyramid.PlanePyramidData;
+import net.algart.pyramid.PlanePyramidInformation;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -60,12 +61,51 @@ public abstract class PlanePyramidRequest {
         return READ_PYRAMID_PRIORITY;
     }
 
+    /**
+     * Returns the zoom level of the tile, requested by some viewer, or &minus;1 if this request is not
+     * a request for a tile. Level 0 is the coarsest level, as in TMS and Zoomify protocols.
+     * The server may use this information to serve tiles of the current viewport before older tiles,
+     * and coarser tiles before finer ones.
+     *
+     * @return zoom level of the tile or &minus;1.
+     */
+    public int tileLevel() {
+        return -1;
+    }
+
     public abstract PlanePyramidData readData(PlanePyramid pyramid) throws IOException;
 
     public boolean isSavingMemoryMode() {
         return false;
     }
 
+    /**
+     * Returns the estimated amount of memory (in bytes), which is necessary to perform this request.
+     * It is used by the server to limit the total memory of simultaneously performed requests
+     * in {@link #isSavingMemoryMode() saving-memory mode}. The result may be <tt>Long.MAX_VALUE</tt>
+     * if the amount is unknown but can be very large; in this case, the request should be performed alone.
+     * The default implementation returns 0.
+     *
+     * @param information information about the pyramid.
+     * @return estimated memory usage in bytes.
+     */
+    public long estimatedMemoryUsage(PlanePyramidInformation information) {
+        return 0;
+    }
+
+    /**
+     * Returns a string, which identifies this request also between different JVM sessions:
+     * equal requests have equal keys, and different requests have different keys.
+     * It allows to store the results of the request in a persistent cache, for example, on the disk.
+     * Returns <tt>null</tt> if this request does not support persistent caching; it is the default behaviour.
+     *
+     * @return persistent key of this request or <tt>null</tt>.
+     */
+    public final String persistentKey() {
+        final String key = persistentKeyIgnoringPyramidUniqueId();
+        return key == null ? null : getClass().getName() + " " + key + " " + pyramidUniqueId;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -89,5 +129,10 @@ public abstract class PlanePyramidRequest {
     protected abstract boolean equalsIgnoringPyramidUniqueId(PlanePyramidRequest o);
 
     protected abstract int hashCodeIgnoringPyramidUniqueId();
+
+    // The following method should be implemented to provide persistent caching:
+    protected String persistentKeyIgnoringPyramidUniqueId() {
+        return null;
+    }
 }
 
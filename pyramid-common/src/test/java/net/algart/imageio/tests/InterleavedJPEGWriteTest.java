@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.imageio.tests;
+
+import net.algart.imageio.QuickJPEGWriter;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Compares two ways of encoding rendered pixels (RGB or RGBA) into JPEG: via <tt>BufferedImage</tt>,
+ * as in the standard converters (an image with packed pixels plus, for RGBA, drawing it onto
+ * a new opaque image to blend with the background), and directly from the interleaved bytes
+ * by {@link QuickJPEGWriter}. Prints the time and the allocated memory per tile for different tile sizes.
+ */
+public class InterleavedJPEGWriteTest {
+    private static final int NUMBER_OF_TESTS = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage:");
+            System.out.println("    " + InterleavedJPEGWriteTest.class.getName()
+                + " bandCount numberOfTilesInTest [tileSize1 tileSize2 ...]");
+            return;
+        }
+        final int bandCount = Integer.parseInt(args[0]);
+        final int numberOfTiles = Integer.parseInt(args[1]);
+        final int[] tileSizes = args.length > 2 ? new int[args.length - 2] : new int[] {256, 512, 1024};
+        for (int k = 2; k < args.length; k++) {
+            tileSizes[k - 2] = Integer.parseInt(args[k]);
+        }
+        if (bandCount != 3 && bandCount != 4) {
+            throw new IllegalArgumentException("Only 3 or 4 bands are supported by this test");
+        }
+        for (int tileSize : tileSizes) {
+            final byte[] data = makeTile(tileSize, bandCount);
+            byte[] viaImage = null, direct = null;
+            for (int testCount = 0; testCount < NUMBER_OF_TESTS; testCount++) {
+                long allocated1 = allocatedBytes();
+                long t1 = System.nanoTime();
+                for (int k = 0; k < numberOfTiles; k++) {
+                    viaImage = new QuickJPEGWriter(viaBufferedImage(data, tileSize, bandCount)).getJpegBytes();
+                }
+                long t2 = System.nanoTime();
+                long allocated2 = allocatedBytes();
+                for (int k = 0; k < numberOfTiles; k++) {
+                    direct = new QuickJPEGWriter(tileSize, tileSize, bandCount, data, Color.WHITE).getJpegBytes();
+                }
+                long t3 = System.nanoTime();
+                long allocated3 = allocatedBytes();
+                System.out.printf(Locale.US,
+                    "%dx%d, %d bands: via BufferedImage %.3f ms, %.1f KB/tile; "
+                        + "directly %.3f ms, %.1f KB/tile%n",
+                    tileSize, tileSize, bandCount,
+                    (t2 - t1) * 1e-6 / numberOfTiles, (allocated2 - allocated1) / 1024.0 / numberOfTiles,
+                    (t3 - t2) * 1e-6 / numberOfTiles, (allocated3 - allocated2) / 1024.0 / numberOfTiles);
+            }
+            final int difference = maxDifference(viaImage, direct);
+            System.out.printf("Maximal difference between decoded images: %d%n", difference);
+            if (difference > 16) {
+                throw new AssertionError("Too different results");
+            }
+        }
+    }
+
+    // Emulates MatrixToBufferedImageConverter.Packed3DToPackedRGB and blending with white background
+    private static BufferedImage viaBufferedImage(byte[] data, int tileSize, int bandCount) {
+        final BufferedImage packed = new BufferedImage(tileSize, tileSize,
+            bandCount == 4 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = new int[tileSize * tileSize];
+        for (int i = 0, disp = 0; i < pixels.length; i++, disp += bandCount) {
+            final int alpha = bandCount == 4 ? data[disp + 3] & 0xFF : 0xFF;
+            pixels[i] = alpha << 24 | (data[disp] & 0xFF) << 16 | (data[disp + 1] & 0xFF) << 8 | data[disp + 2] & 0xFF;
+        }
+        packed.setRGB(0, 0, tileSize, tileSize, pixels, 0, tileSize);
+        if (bandCount < 4) {
+            return packed;
+        }
+        final BufferedImage result = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics graphics = result.getGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, tileSize, tileSize);
+        graphics.drawImage(packed, 0, 0, null);
+        return result;
+    }
+
+    private static byte[] makeTile(int tileSize, int bandCount) {
+        final byte[] result = new byte[tileSize * tileSize * bandCount];
+        for (int y = 0, disp = 0; y < tileSize; y++) {
+            for (int x = 0; x < tileSize; x++, disp += bandCount) {
+                final double v = Math.sin(x / 17.0) * Math.cos(y / 11.0);
+                result[disp] = (byte) (180 + 60 * v);
+                result[disp + 1] = (byte) (120 + 50 * v);
+                result[disp + 2] = (byte) (200 - 40 * v);
+                if (bandCount == 4) {
+                    result[disp + 3] = (byte) ((x + y) * 255 / (2 * tileSize));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int maxDifference(byte[] jpeg1, byte[] jpeg2) throws IOException {
+        final BufferedImage image1 = ImageIO.read(new ByteArrayInputStream(jpeg1));
+        final BufferedImage image2 = ImageIO.read(new ByteArrayInputStream(jpeg2));
+        int result = 0;
+        for (int y = 0; y < image1.getHeight(); y++) {
+            for (int x = 0; x < image1.getWidth(); x++) {
+                final int rgb1 = image1.getRGB(x, y);
+                final int rgb2 = image2.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    result = Math.max(result, Math.abs((rgb1 >>> shift & 0xFF) - (rgb2 >>> shift & 0xFF)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
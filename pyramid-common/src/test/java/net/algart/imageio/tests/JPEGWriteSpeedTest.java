@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.imageio.tests;
+
+import net.algart.imageio.QuickJPEGWriter;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Compares the speed of {@link QuickJPEGWriter} and <tt>ImageIO</tt>, writing the same image many times
+ * (like a server, encoding tiles), and checks that the results are identical.
+ */
+public class JPEGWriteSpeedTest {
+    private static final int NUMBER_OF_TESTS = 10;
+    private static final int NUMBER_OF_IMAGES_IN_TEST = 100;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage:");
+            System.out.println("    " + JPEGWriteSpeedTest.class.getName() + " srcImageFile destFolder [quality]");
+            return;
+        }
+        final File srcImageFile = new File(args[0]);
+        if (!srcImageFile.isFile()) {
+            throw new FileNotFoundException("No file " + srcImageFile);
+        }
+        final File destFolder = new File(args[1]);
+        final float quality = args.length >= 3 ? Float.parseFloat(args[2]) : QuickJPEGWriter.DEFAULT_QUALITY;
+        destFolder.mkdirs();
+        BufferedImage image = ImageIO.read(srcImageFile);
+        if (image == null) {
+            throw new IIOException("Cannot read " + srcImageFile);
+        }
+        final BufferedImage newImage = new BufferedImage(
+            image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        newImage.getGraphics().drawImage(image, 0, 0, null);
+        image = newImage;
+        System.out.printf(Locale.US, "Image %dx%d was read from %s%n",
+            image.getWidth(), image.getHeight(), srcImageFile);
+
+        byte[] imageIOBytes = null;
+        for (int testCount = 0; testCount < NUMBER_OF_TESTS; testCount++) {
+            long t1 = System.nanoTime();
+            for (int k = 0; k < NUMBER_OF_IMAGES_IN_TEST; k++) {
+                imageIOBytes = writeByImageIO(image, quality);
+            }
+            long t2 = System.nanoTime();
+            System.out.printf(Locale.US, "ImageIO: %d bytes in %.3f ms/image%n",
+                imageIOBytes.length, (t2 - t1) * 1e-6 / NUMBER_OF_IMAGES_IN_TEST);
+        }
+        Files.write(new File(destFolder, "imageIO.jpg").toPath(), imageIOBytes);
+
+        for (boolean chromaSubsampling : new boolean[] {true, false}) {
+            byte[] quickBytes = null;
+            QuickJPEGWriter writer = null;
+            for (int testCount = 0; testCount < NUMBER_OF_TESTS; testCount++) {
+                long t1 = System.nanoTime();
+                for (int k = 0; k < NUMBER_OF_IMAGES_IN_TEST; k++) {
+                    writer = new QuickJPEGWriter(image)
+                        .setQuality(quality)
+                        .setChromaSubsampling(chromaSubsampling);
+                    quickBytes = writer.getJpegBytes();
+                }
+                long t2 = System.nanoTime();
+                System.out.printf(Locale.US, "QuickJPEGWriter: %d bytes in %.3f ms/image (%s)%n",
+                    quickBytes.length, (t2 - t1) * 1e-6 / NUMBER_OF_IMAGES_IN_TEST, writer);
+            }
+            if (chromaSubsampling && !java.util.Arrays.equals(quickBytes, imageIOBytes)) {
+                throw new AssertionError("QuickJPEGWriter and ImageIO results are different");
+            }
+            final BufferedImage loadedImage = ImageIO.read(new ByteArrayInputStream(quickBytes));
+            if (loadedImage == null
+                || loadedImage.getWidth() != image.getWidth()
+                || loadedImage.getHeight() != image.getHeight())
+            {
+                throw new AssertionError("JPEG, written by " + writer + ", is decoded incorrectly");
+            }
+            final String fileName = chromaSubsampling ? "quickJPEGWriter.jpg" : "quickJPEGWriter444.jpg";
+            Files.write(new File(destFolder, fileName).toPath(), quickBytes);
+        }
+        System.out.printf("JPEG files are written into %s%n", destFolder);
+    }
+
+    private static byte[] writeByImageIO(BufferedImage image, float quality) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageStream = ImageIO.createImageOutputStream(stream)) {
+            writer.setOutput(imageStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.imageio.tests;
+
+import net.algart.imageio.QuickPNGWriter;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Compares the speed of {@link QuickPNGWriter} and <tt>ImageIO</tt> and checks that the results are identical
+ * images. Use -XX:ActiveProcessorCount=1 JVM option to measure single-threaded compression of large images.
+ */
+public class PNGWriteSpeedTest {
+    private static final int NUMBER_OF_TESTS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int startArgIndex = 0;
+        boolean testGrayscale = false, testRGBA = false;
+        if (testGrayscale = startArgIndex < args.length && args[startArgIndex].equalsIgnoreCase("-grayscale")) {
+            startArgIndex++;
+        }
+        if (testRGBA = startArgIndex < args.length && args[startArgIndex].equalsIgnoreCase("-RGBA")) {
+            startArgIndex++;
+        }
+        if (args.length < startArgIndex + 2) {
+            System.out.println("Usage:");
+            System.out.println("    " + PNGWriteSpeedTest.class.getName()
+                + " [-grayscale] [-RGBA] srcImageFile destFolder");
+            return;
+        }
+        final File srcImageFile = new File(args[startArgIndex]);
+        if (!srcImageFile.isFile()) {
+            throw new FileNotFoundException("No file " + srcImageFile);
+        }
+        final File destFolder = new File(args[startArgIndex + 1]);
+        destFolder.mkdirs();
+        BufferedImage image = ImageIO.read(srcImageFile);
+        if (image == null) {
+            throw new IIOException("Cannot read " + srcImageFile);
+        }
+        final int imageType = testGrayscale ? BufferedImage.TYPE_BYTE_GRAY
+            : testRGBA ? BufferedImage.TYPE_4BYTE_ABGR
+            : BufferedImage.TYPE_3BYTE_BGR;
+        final BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), imageType);
+        newImage.getGraphics().drawImage(image, 0, 0, null);
+        image = newImage;
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bandCount = image.getColorModel().getNumComponents();
+        final byte[] sourceData = toInterleavedBytes(image, bandCount);
+        System.out.printf(Locale.US, "Image %dx%d, %d bands was read from %s%n",
+            width, height, bandCount, srcImageFile);
+
+        byte[] pngBytes = null;
+        for (int testCount = 0; testCount < NUMBER_OF_TESTS; testCount++) {
+            long t1 = System.nanoTime();
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            if (!ImageIO.write(image, "PNG", stream)) {
+                throw new IIOException("PNG image format is not supported for " + image);
+            }
+            pngBytes = stream.toByteArray();
+            long t2 = System.nanoTime();
+            System.out.printf(Locale.US,
+                "BufferedImage converted to %d bytes by ImageIO in %.3f ms, %.3f MB/sec%n",
+                pngBytes.length, (t2 - t1) * 1e-6, sourceData.length / 1048576.0 / ((t2 - t1) * 1e-9));
+        }
+        Files.write(new File(destFolder, "imageIO.png").toPath(), pngBytes);
+
+        for (QuickPNGWriter.Filter filter : QuickPNGWriter.Filter.values()) {
+            for (int level : new int[] {1, QuickPNGWriter.DEFAULT_COMPRESSION_LEVEL, 6, 9}) {
+                for (boolean parallel : new boolean[] {false, true}) {
+                    double bestTime = Double.POSITIVE_INFINITY;
+                    QuickPNGWriter writer = null;
+                    for (int testCount = 0; testCount < NUMBER_OF_TESTS; testCount++) {
+                        long t1 = System.nanoTime();
+                        writer = new QuickPNGWriter(width, height, bandCount, sourceData)
+                            .setFilter(filter)
+                            .setCompressionLevel(level)
+                            .setParallel(parallel);
+                        pngBytes = writer.getPngBytes();
+                        long t2 = System.nanoTime();
+                        bestTime = Math.min(bestTime, (t2 - t1) * 1e-9);
+                    }
+                    System.out.printf(Locale.US,
+                        "Converted to %d bytes by QuickPNGWriter in %.3f ms (best of %d), %.3f MB/sec (%s)%n",
+                        pngBytes.length, bestTime * 1e3, NUMBER_OF_TESTS,
+                        sourceData.length / 1048576.0 / bestTime, writer);
+                    final BufferedImage loadedImage = ImageIO.read(new ByteArrayInputStream(pngBytes));
+                    if (loadedImage == null
+                        || loadedImage.getWidth() != width
+                        || loadedImage.getHeight() != height
+                        || loadedImage.getColorModel().getNumComponents() != bandCount
+                        || !java.util.Arrays.equals(toInterleavedBytes(loadedImage, bandCount), sourceData))
+                    {
+                        throw new AssertionError("PNG, written by " + writer + ", is decoded incorrectly");
+                    }
+                }
+            }
+        }
+        Files.write(new File(destFolder, "quickPNGWriter.png").toPath(), pngBytes);
+        System.out.printf("PNG files are written into %s%n", destFolder);
+    }
+
+    private static byte[] toInterleavedBytes(BufferedImage image, int bandCount) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final byte[] result = new byte[width * height * bandCount];
+        for (int y = 0, disp = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (bandCount == 1) {
+                    result[disp++] = (byte) image.getRaster().getSample(x, y, 0);
+                } else {
+                    final int argb = image.getRGB(x, y);
+                    result[disp++] = (byte) (argb >>> 16);
+                    result[disp++] = (byte) (argb >>> 8);
+                    result[disp++] = (byte) argb;
+                    if (bandCount == 4) {
+                        result[disp++] = (byte) (argb >>> 24);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.*;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class DiskPlanePyramidDataCacheTest {
+    private static final int TILE_SIZE = 30000;
+    private static final long DATA_LAST_MODIFIED_TIME = 1500000000000L;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s folder numberOfTiles maxDiskSpace%n",
+                DiskPlanePyramidDataCacheTest.class.getName());
+            System.out.printf("Call this test twice to check that the data are available after restarting.%n");
+            return;
+        }
+        final int numberOfTiles = Integer.parseInt(args[1]);
+        final long maxDiskSpace = Long.parseLong(args[2]);
+        long t1 = System.nanoTime();
+        final PlanePyramidDataCache cache = PlanePyramidDataCache.newDiskCache(Paths.get(args[0]), maxDiskSpace);
+        long t2 = System.nanoTime();
+        System.out.printf(Locale.US, "Cache loaded in %.3f ms: %s%n", (t2 - t1) * 1e-6, cache);
+        final PlanePyramid pyramid = new TestPlanePyramid("test", 256, 256)
+            .setDataLastModifiedTime(DATA_LAST_MODIFIED_TIME);
+        final PlanePyramidRequest[] requests = new PlanePyramidRequest[numberOfTiles];
+        for (int k = 0; k < requests.length; k++) {
+            requests[k] = new PlanePyramidReadImageRequest("test", 1.0, k * 256L, 0, k * 256L + 256, 256);
+        }
+        System.out.printf("%d tiles found after previous call%n", check(cache, requests));
+
+        t1 = System.nanoTime();
+        for (int k = 0; k < requests.length; k++) {
+            final byte[] bytes = new byte[TILE_SIZE];
+            fill(bytes, k);
+            cache.put(requests[k], new PlanePyramidImageData(bytes, pyramid));
+        }
+        t2 = System.nanoTime();
+        System.out.printf(Locale.US, "%d tiles added in %.3f ms%n", numberOfTiles, (t2 - t1) * 1e-6);
+        Thread.sleep(2000);
+        // - waiting for writing by the background thread
+        t1 = System.nanoTime();
+        final int found = check(cache, requests);
+        t2 = System.nanoTime();
+        System.out.printf(Locale.US, "%d tiles found in %.3f ms, %.3f mcs/tile: %s%n",
+            found, (t2 - t1) * 1e-6, (t2 - t1) * 1e-3 / numberOfTiles, cache);
+        checkModifiedData(cache, requests[0]);
+    }
+
+    private static void checkModifiedData(PlanePyramidDataCache cache, PlanePyramidRequest request)
+        throws InterruptedException
+    {
+        final PlanePyramid modifiedPyramid = new TestPlanePyramid("test", 256, 256)
+            .setDataLastModifiedTime(DATA_LAST_MODIFIED_TIME + 1000);
+        cache.put(request, new PlanePyramidImageData(new byte[TILE_SIZE], modifiedPyramid));
+        Thread.sleep(500);
+        // - waiting for writing by the background thread
+        final PlanePyramidData data = cache.get(request);
+        if (data == null || data.getDataLastModifiedTime() != modifiedPyramid.dataLastModifiedTime()) {
+            throw new AssertionError("Obsolete data are not replaced: "
+                + (data == null ? null : data.getDataLastModifiedTime()));
+        }
+        data.release();
+        System.out.printf("Obsolete data are replaced%n");
+        // - note: the next call of this test will replace these data back
+    }
+
+    private static int check(PlanePyramidDataCache cache, PlanePyramidRequest[] requests) {
+        int result = 0;
+        final byte[] expected = new byte[TILE_SIZE];
+        final byte[] actual = new byte[TILE_SIZE];
+        for (int k = 0; k < requests.length; k++) {
+            final PlanePyramidData data = cache.get(requests[k]);
+            if (data == null) {
+                continue;
+            }
+            final ByteBuffer buffer = data.getByteBuffer();
+            if (data.getDataLastModifiedTime() != DATA_LAST_MODIFIED_TIME) {
+                data.release();
+                continue;
+                // - obsolete data (replaced by the previous call of this test)
+            }
+            if (buffer.remaining() != TILE_SIZE || !data.getContentMIMEType().equals("image/png")) {
+                throw new AssertionError("Invalid data #" + k);
+            }
+            buffer.get(actual);
+            fill(expected, k);
+            if (!Arrays.equals(expected, actual)) {
+                throw new AssertionError("Invalid content of data #" + k);
+            }
+            data.release();
+            result++;
+        }
+        return result;
+    }
+
+    private static void fill(byte[] bytes, int index) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (index * 31 + i);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.HashedTimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules many timeouts with random delays, re-arms every third of them and cancels every fifth one,
+ * then checks that nothing expires before its deadline and prints the lateness of expiration.
+ */
+public class HashedTimerWheelTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s numberOfTimeouts maxDelayInMs%n", HashedTimerWheelTest.class.getName());
+            return;
+        }
+        final int numberOfTimeouts = Integer.parseInt(args[0]);
+        final long maxDelay = Long.parseLong(args[1]);
+        final HashedTimerWheel wheel = HashedTimerWheel.newInstance("test-timer-wheel",
+            HashedTimerWheel.DEFAULT_TICK_DURATION, 64);
+        final AtomicLong numberOfExpired = new AtomicLong();
+        final AtomicLong numberOfEarly = new AtomicLong();
+        final AtomicLong maxLateness = new AtomicLong();
+        final List<HashedTimerWheel.Timeout> timeouts = new ArrayList<>();
+        long t1 = System.nanoTime();
+        for (int k = 0; k < numberOfTimeouts; k++) {
+            final HashedTimerWheel.Timeout[] self = new HashedTimerWheel.Timeout[1];
+            final long deadline = System.currentTimeMillis() + (long) (Math.random() * maxDelay);
+            self[0] = wheel.schedule(deadline, () -> {
+                final long lateness = System.currentTimeMillis() - self[0].getDeadline();
+                if (lateness < 0) {
+                    numberOfEarly.incrementAndGet();
+                }
+                maxLateness.accumulateAndGet(lateness, Math::max);
+                numberOfExpired.incrementAndGet();
+            });
+            timeouts.add(self[0]);
+        }
+        long t2 = System.nanoTime();
+        int numberOfCancelled = 0;
+        for (int k = 0; k < numberOfTimeouts; k++) {
+            final HashedTimerWheel.Timeout timeout = timeouts.get(k);
+            if (k % 5 == 0) {
+                if (timeout.cancel()) {
+                    numberOfCancelled++;
+                }
+            } else if (k % 3 == 0) {
+                timeout.setDeadline(timeout.getDeadline() + maxDelay / 2);
+            }
+        }
+        long t3 = System.nanoTime();
+        System.out.printf(Locale.US, "%d timeouts scheduled in %.3f ms, re-armed/cancelled in %.3f ms%n",
+            numberOfTimeouts, (t2 - t1) * 1e-6, (t3 - t2) * 1e-6);
+        final long finish = System.currentTimeMillis() + 2 * maxDelay + 1000;
+        while (numberOfExpired.get() + numberOfCancelled < numberOfTimeouts && System.currentTimeMillis() < finish) {
+            Thread.sleep(100);
+        }
+        System.out.printf("%d expired, %d cancelled, %d expired too early, max lateness %d ms%n",
+            numberOfExpired.get(), numberOfCancelled, numberOfEarly.get(), maxLateness.get());
+        System.out.printf("%s%n", wheel);
+        if (numberOfEarly.get() > 0 || numberOfExpired.get() + numberOfCancelled != numberOfTimeouts) {
+            throw new AssertionError("Timer wheel works incorrectly");
+        }
+    }
+}
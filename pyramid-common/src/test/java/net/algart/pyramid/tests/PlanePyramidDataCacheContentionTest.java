@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.*;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PlanePyramidDataCacheContentionTest {
+    private static final int NUMBER_OF_KEYS = 20000;
+    private static final int TILE_SIZE = 16384;
+    private static final int PUT_PERCENT = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s numberOfOperationsPerThread [numberOfThreads1 numberOfThreads2...]%n",
+                PlanePyramidDataCacheContentionTest.class.getName());
+            return;
+        }
+        final int numberOfOperations = Integer.parseInt(args[0]);
+        int[] threadCounts = {8, 32, 64};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int k = 0; k < threadCounts.length; k++) {
+                threadCounts[k] = Integer.parseInt(args[k + 1]);
+            }
+        }
+        final PlanePyramid pyramid = new TestPlanePyramid("test", NUMBER_OF_KEYS * 256L, 256);
+        final PlanePyramidRequest[] requests = new PlanePyramidRequest[NUMBER_OF_KEYS];
+        for (int k = 0; k < requests.length; k++) {
+            requests[k] = new PlanePyramidReadImageRequest("test", 1.0, k * 256L, 0, k * 256L + 256, 256);
+        }
+        final PlanePyramidData data = new PlanePyramidImageData(new byte[TILE_SIZE], pyramid);
+        final long maxMemory = (long) NUMBER_OF_KEYS * TILE_SIZE / 4;
+        // - only the most popular part of the keys can be cached
+        checkOversizedData(pyramid, requests);
+        checkOffHeapSizeClasses(pyramid, requests);
+        for (int test = 1; test <= 3; test++) {
+            System.out.printf("%nTest #%d%n", test);
+            for (int threadCount : threadCounts) {
+                test("synchronized", PlanePyramidDataCache.newSynchronizedCache(maxMemory),
+                    requests, data, threadCount, numberOfOperations);
+                test("concurrent", PlanePyramidDataCache.newConcurrentCache(maxMemory),
+                    requests, data, threadCount, numberOfOperations);
+                test("off-heap", PlanePyramidDataCache.newConcurrentCache(maxMemory / 4).setNextLevel(
+                    PlanePyramidDataCache.newOffHeapCache(maxMemory)),
+                    requests, data, threadCount, numberOfOperations);
+            }
+        }
+    }
+
+    private static void test(
+        String name,
+        PlanePyramidDataCache cache,
+        PlanePyramidRequest[] requests,
+        PlanePyramidData data,
+        int threadCount,
+        int numberOfOperations)
+        throws InterruptedException
+    {
+        for (PlanePyramidRequest request : requests) {
+            cache.put(request, data);
+        }
+        final AtomicLong hits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(threadCount);
+        for (int k = 0; k < threadCount; k++) {
+            final Random rnd = new Random(k);
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long localHits = 0;
+                for (int i = 0; i < numberOfOperations; i++) {
+                    final double v = rnd.nextDouble();
+                    final PlanePyramidRequest request = requests[(int) (v * v * v * requests.length)];
+                    // - cubic distribution: small indexes are much more popular
+                    if (rnd.nextInt(100) < PUT_PERCENT) {
+                        cache.put(request, data);
+                    } else {
+                        final PlanePyramidData cached = cache.get(request);
+                        if (cached != null) {
+                            if (cached.getByteBuffer().remaining() != TILE_SIZE) {
+                                throw new AssertionError("Invalid cached data");
+                            }
+                            cached.release();
+                            localHits++;
+                        }
+                    }
+                }
+                hits.addAndGet(localHits);
+                finish.countDown();
+            }).start();
+        }
+        long t1 = System.nanoTime();
+        start.countDown();
+        finish.await();
+        long t2 = System.nanoTime();
+        final long total = (long) threadCount * numberOfOperations;
+        System.out.printf(Locale.US, "%-12s %3d threads: %.3f ms, %.1f ns/operation, %.2f%% hits, %s%n",
+            name, threadCount, (t2 - t1) * 1e-6, (t2 - t1) / (double) total,
+            100.0 * hits.get() / (total * (100 - PUT_PERCENT) / 100.0), cache);
+        if (cache.memory() > cache.maxMemory()) {
+            throw new AssertionError("Cache memory exceeds the limit: " + cache);
+        }
+    }
+
+    private static void checkOversizedData(PlanePyramid pyramid, PlanePyramidRequest[] requests) {
+        final PlanePyramidDataCache cache = new PlanePyramidDataCache(16L * TILE_SIZE);
+        cache.put(requests[0], new PlanePyramidImageData(new byte[TILE_SIZE], pyramid));
+        cache.put(requests[0], new PlanePyramidImageData(new byte[2 * TILE_SIZE], pyramid));
+        // - larger than 1/16 of the cache memory: must be stored in the memory, not used by the segments
+        if (cache.get(requests[0]) == null || cache.get(requests[0]).getByteBuffer().remaining() != 2 * TILE_SIZE) {
+            throw new AssertionError("Oversized data are not cached without the next level: " + cache);
+        }
+        for (int k = 0; k < 64; k++) {
+            cache.put(requests[k], new PlanePyramidImageData(new byte[(k % 2 + 1) * TILE_SIZE], pyramid));
+            if (cache.memory() > cache.maxMemory()) {
+                throw new AssertionError("Cache memory exceeds the limit: " + cache);
+            }
+        }
+        final PlanePyramidDataCache nextLevel = PlanePyramidDataCache.newSynchronizedCache(32L * TILE_SIZE);
+        cache.setNextLevel(nextLevel);
+        cache.put(requests[0], new PlanePyramidImageData(new byte[17 * TILE_SIZE], pyramid));
+        // - larger than the whole cache memory: must be passed to the next level
+        if (nextLevel.get(requests[0]) == null
+            || cache.get(requests[0]).getByteBuffer().remaining() != 17 * TILE_SIZE)
+        {
+            throw new AssertionError("Oversized data are not passed to the next level: " + cache);
+        }
+        System.out.printf("Oversized data: %s%n", cache);
+    }
+
+    private static void checkOffHeapSizeClasses(PlanePyramid pyramid, PlanePyramidRequest[] requests) {
+        final PlanePyramidDataCache cache = PlanePyramidDataCache.newOffHeapCache(4L << 20);
+        // - 4 slabs
+        final int half = requests.length / 2;
+        for (int k = 0; k < half; k++) {
+            cache.put(requests[k], new PlanePyramidImageData(new byte[TILE_SIZE / 4], pyramid));
+        }
+        // - now all slabs are occupied by the small size class
+        for (int k = half; k < half + 100; k++) {
+            cache.put(requests[k], new PlanePyramidImageData(new byte[TILE_SIZE], pyramid));
+            final PlanePyramidData cached = cache.get(requests[k]);
+            if (cached == null) {
+                throw new AssertionError("Off-heap cache cannot store data of a new size class: " + cache);
+            }
+            cached.release();
+        }
+        System.out.printf("Off-heap size classes: %s%n", cache);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.*;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emulates mixed workload: several "hot" pyramids are viewed all the time, while a batch client
+ * scans many "cold" pyramids once, by bursts of poolSize pyramids (such a burst would displace all hot
+ * pyramids from a simple LRU pool). Large pyramids ("large..." configurations) estimate 1 GB of memory.
+ * Prints how many times the hot pyramids were reopened.
+ */
+public class PlanePyramidPoolEvictionTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s poolSize memoryBudgetInGB numberOfColdPyramids%n",
+                PlanePyramidPoolEvictionTest.class.getName());
+            return;
+        }
+        final int poolSize = Integer.parseInt(args[0]);
+        final long memoryBudget = (long) (Double.parseDouble(args[1]) * (1L << 30));
+        final int numberOfColdPyramids = Integer.parseInt(args[2]);
+        final AtomicInteger numberOfHotOpenings = new AtomicInteger();
+        final PlanePyramidPool pool = new PlanePyramidPool(new PlanePyramidFactory() {
+            @Override
+            public void initializeConfiguration(Object factoryConfiguration) {
+            }
+
+            @Override
+            public PlanePyramid newPyramid(String pyramidConfiguration) {
+                if (pyramidConfiguration.contains("hot")) {
+                    numberOfHotOpenings.incrementAndGet();
+                }
+                return new TestPlanePyramid(pyramidConfiguration, 1000, 1000)
+                    .setEstimatedMemoryUsage(pyramidConfiguration.startsWith("large") ? 1L << 30 : 1L << 20);
+            }
+        }, poolSize).setMemoryBudget(memoryBudget);
+        final String[] hot = {"large-hot-1", "small-hot-2", "large-hot-3"};
+        for (int k = 0; k < numberOfColdPyramids; k++) {
+            if (k % poolSize == 0) {
+                for (String id : hot) {
+                    for (int i = 0; i < 3; i++) {
+                        pool.getHttpPlanePyramid(id);
+                    }
+                }
+            }
+            pool.getHttpPlanePyramid((k % 2 == 0 ? "large" : "small") + "-cold-" + k);
+        }
+        System.out.printf(Locale.US, "Hot pyramids opened %d times (%d hot pyramids)%n",
+            numberOfHotOpenings.get(), hot.length);
+        System.out.printf("%s%n", pool);
+        if (numberOfHotOpenings.get() != hot.length) {
+            throw new AssertionError("Hot pyramids were evicted");
+        }
+        if (pool.estimatedMemoryUsage() > memoryBudget) {
+            throw new AssertionError("Memory budget exceeded");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.*;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a slow opening of one pyramid does not block access to other pyramids in the pool,
+ * that simultaneous requests for the same pyramid open it only once,
+ * and that the pool does not free a pyramid while it is leased.
+ */
+public class PlanePyramidPoolOpeningTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s openingTimeInMs numberOfThreads%n", PlanePyramidPoolOpeningTest.class.getName());
+            return;
+        }
+        final long openingTime = Long.parseLong(args[0]);
+        final int numberOfThreads = Integer.parseInt(args[1]);
+        final AtomicInteger numberOfOpenings = new AtomicInteger();
+        final PlanePyramidPool pool = new PlanePyramidPool(new PlanePyramidFactory() {
+            @Override
+            public void initializeConfiguration(Object factoryConfiguration) {
+            }
+
+            @Override
+            public PlanePyramid newPyramid(String pyramidConfiguration) throws Exception {
+                numberOfOpenings.incrementAndGet();
+                if (pyramidConfiguration.startsWith("slow")) {
+                    Thread.sleep(openingTime);
+                }
+                if (pyramidConfiguration.startsWith("bad")) {
+                    throw new IllegalArgumentException("Cannot open " + pyramidConfiguration);
+                }
+                return new TestPlanePyramid(pyramidConfiguration, 1000, 1000);
+            }
+        }, 16);
+        pool.getHttpPlanePyramid("fast");
+        final Thread[] threads = new Thread[numberOfThreads];
+        final PlanePyramid[] results = new PlanePyramid[numberOfThreads];
+        for (int k = 0; k < threads.length; k++) {
+            final int index = k;
+            threads[k] = new Thread(() -> {
+                try {
+                    results[index] = pool.getHttpPlanePyramid("slow");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[k].start();
+        }
+        Thread.sleep(100);
+        long t1 = System.nanoTime();
+        pool.getHttpPlanePyramid("fast");
+        long t2 = System.nanoTime();
+        System.out.printf(Locale.US, "Getting pyramid from pool while opening another one: %.3f ms%n",
+            (t2 - t1) * 1e-6);
+        if ((t2 - t1) * 1e-6 > openingTime / 2) {
+            throw new AssertionError("Getting from pool was blocked by opening another pyramid");
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (PlanePyramid result : results) {
+            if (result != results[0]) {
+                throw new AssertionError("Different instances of the same pyramid");
+            }
+        }
+        if (numberOfOpenings.get() != 2) {
+            throw new AssertionError(numberOfOpenings.get() + " openings instead of 2");
+        }
+        try {
+            pool.getHttpPlanePyramid("bad");
+            throw new AssertionError("Exception expected");
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Expected exception: %s%n", e);
+        }
+        final PlanePyramidPool smallPool = new PlanePyramidPool(pool.getFactory(), 1);
+        final TestPlanePyramid leased;
+        try (PlanePyramidPool.Lease lease = smallPool.acquireHttpPlanePyramid("first", false)) {
+            leased = (TestPlanePyramid) lease.getPyramid();
+            smallPool.getHttpPlanePyramid("second");
+            // - overflow: "first" is removed from the pool
+            if (leased.isFreed()) {
+                throw new AssertionError("Leased pyramid was freed");
+            }
+        }
+        if (!leased.isFreed()) {
+            throw new AssertionError("Pyramid was not freed after closing the last lease");
+        }
+        System.out.printf("%s%n%s%n", pool, smallPool);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.tests;
+
+import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.PlanePyramidImageData;
+import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidReadSpecialImageRequest;
+
+import java.util.Objects;
+
+/**
+ * Pyramid without any data, used by the tests of the cache and the pool of pyramids.
+ * It cannot read images; it only reports its configuration, dimensions and estimates
+ * and remembers whether its resources were freed.
+ */
+final class TestPlanePyramid implements PlanePyramid {
+    private final String pyramidConfiguration;
+    private final long dimX;
+    private final long dimY;
+    private long dataLastModifiedTime = -1;
+    private long estimatedMemoryUsage = -1;
+    private volatile boolean freed = false;
+
+    TestPlanePyramid(String pyramidConfiguration, long dimX, long dimY) {
+        this.pyramidConfiguration = Objects.requireNonNull(pyramidConfiguration);
+        this.dimX = dimX;
+        this.dimY = dimY;
+    }
+
+    TestPlanePyramid setDataLastModifiedTime(long dataLastModifiedTime) {
+        this.dataLastModifiedTime = dataLastModifiedTime;
+        return this;
+    }
+
+    TestPlanePyramid setEstimatedMemoryUsage(long estimatedMemoryUsage) {
+        this.estimatedMemoryUsage = estimatedMemoryUsage;
+        return this;
+    }
+
+    boolean isFreed() {
+        return freed;
+    }
+
+    @Override
+    public String pyramidConfiguration() {
+        return pyramidConfiguration;
+    }
+
+    @Override
+    public void loadResources() {
+    }
+
+    @Override
+    public void freeResources() {
+        freed = true;
+    }
+
+    @Override
+    public PlanePyramidInformation readInformation() {
+        return new PlanePyramidInformation(3, dimX, dimY, byte.class);
+    }
+
+    @Override
+    public PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PlanePyramidImageData readSpecialImage(PlanePyramidReadSpecialImageRequest specialImageRequest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isRawBytes() {
+        return false;
+    }
+
+    @Override
+    public String returnedDataFormat() {
+        return "png";
+    }
+
+    @Override
+    public boolean isTimeout() {
+        return false;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public long dataLastModifiedTime() {
+        return dataLastModifiedTime;
+    }
+
+    @Override
+    public long estimatedMemoryUsage() {
+        return estimatedMemoryUsage;
+    }
+}
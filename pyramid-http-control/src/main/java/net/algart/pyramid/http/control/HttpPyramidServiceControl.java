@@ -31,6 +31,9 @@ import net.algart.pyramid.api.http.HttpPyramidConstants;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.Objects;
 import java.util.logging.Level;
@@ -107,6 +110,31 @@ public final class HttpPyramidServiceControl implements PyramidAccessControl {
             HttpPyramidConstants.CommandPrefixes.FINISH, port, systemCommandsFolder);
     }
 
+    /**
+     * Requests the JSON status report of the service (state of the reading queue, threads and clients).
+     * When the returned command is accepted, the report can be read by {@link #readStatusReport()}.
+     * Unlike usual commands, it is available only via the system commands folder, not via HTTP.
+     */
+    public final AsyncPyramidCommand requestStatusReport(int timeoutInMilliseconds)
+        throws InvalidFileConfigurationException
+    {
+        return requestSystemCommand(HttpPyramidConstants.CommandPrefixes.STATUS, timeoutInMilliseconds, 0);
+    }
+
+    /**
+     * Returns the last JSON status report, written by the service in reply to {@link #requestStatusReport(int)},
+     * or <tt>null</tt> if there is no such report.
+     */
+    public final String readStatusReport() throws IOException {
+        final Path resultFile = HttpPyramidApiTools.systemCommandResultFile(
+            HttpPyramidConstants.CommandPrefixes.STATUS, port, systemCommandsFolder);
+        try {
+            return new String(Files.readAllBytes(resultFile), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
     public final URI connectionURI(String pathAndQuery) {
         try {
             return new URL(https ? "https" : "http", host, port, pathAndQuery).toURI();
@@ -25,9 +25,12 @@
 package net.algart.pyramid.http.control;
 
 import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.api.common.PyramidRawPixels;
 import net.algart.pyramid.api.http.HttpPyramidApiTools;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -76,6 +79,22 @@ interface PyramidAccessControl {
         }
     }
 
+    /**
+     * Reads a rectangle of a pyramid with "rawBytes" flag and decodes the returned samples.
+     * See {@link PyramidRawPixels#getSamples()} about converting them into AlgART matrix.
+     */
+    default PyramidRawPixels readRawPixels(
+        String pyramidId,
+        double compression,
+        long fromX,
+        long fromY,
+        long toX,
+        long toY)
+        throws IOException
+    {
+        return PyramidRawPixels.valueOf(readRectangle(pyramidId, compression, fromX, fromY, toX, toY));
+    }
+
     default InputStream openReadSpecialImageStream(
         String pyramidId,
         String specialImageName,
@@ -105,6 +124,50 @@ interface PyramidAccessControl {
         }
     }
 
+    /**
+     * Reads several TMS tiles and rectangles by one request. Tiles and rectangles are read in parallel
+     * and are returned in the same order: first the tiles, then the rectangles.
+     * The element of the result is <tt>null</tt> if the corresponding tile or rectangle cannot be read,
+     * for example, if the server is overloaded.
+     *
+     * @param pyramidId   pyramid ID.
+     * @param tiles       TMS tiles: every element is {z, x, y}.
+     * @param rectangles  rectangles: every element is {fromX, fromY, toX, toY}.
+     * @param compression the compression of all rectangles.
+     * @return read data of every tile and rectangle.
+     * @throws IOException in a case of I/O error.
+     */
+    default byte[][] readTiles(
+        String pyramidId,
+        int[][] tiles,
+        long[][] rectangles,
+        double compression)
+        throws IOException
+    {
+        final HttpURLConnection connection = openPostConnection(
+            HttpPyramidApiTools.tilesPathAndQuery(pyramidId),
+            HttpPyramidApiTools.tilesFormData(tiles, rectangles, compression));
+        final byte[][] result = new byte[tiles.length + rectangles.length][];
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+            connection.getInputStream())))
+        {
+            // See HttpPyramidConstants.BATCH_CONTENT_TYPE
+            for (int k = 0; k < result.length; k++) {
+                final int index = inputStream.readInt();
+                final int status = inputStream.readInt();
+                inputStream.skipBytes(inputStream.readInt());
+                // - content type is not used here
+                final byte[] data = new byte[inputStream.readInt()];
+                inputStream.readFully(data);
+                if (index < 0 || index >= result.length) {
+                    throw new IOException("Invalid index of the part of the batch response: " + index);
+                }
+                result[index] = status == HttpURLConnection.HTTP_OK ? data : null;
+            }
+        }
+        return result;
+    }
+
     default HttpURLConnection openGetConnection(String pathAndQuery) throws IOException {
         return HttpPyramidApiTools.openConnection(connectionURI(pathAndQuery), "GET", true);
     }
@@ -113,6 +176,10 @@ interface PyramidAccessControl {
         return HttpPyramidApiTools.openConnection(connectionURI(pathAndQuery), "POST", true);
     }
 
+    default HttpURLConnection openPostConnection(String pathAndQuery, String formData) throws IOException {
+        return HttpPyramidApiTools.openPostConnection(connectionURI(pathAndQuery), formData);
+    }
+
     URI connectionURI(String pathAndQuery);
 
     static byte[] streamToBytes(InputStream inputStream) throws IOException {
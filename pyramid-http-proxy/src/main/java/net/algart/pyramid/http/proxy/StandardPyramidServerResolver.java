@@ -42,11 +42,12 @@ class StandardPyramidServerResolver implements HttpServerResolver {
     // - several megabytes as a maximum
     private static final Logger LOG = Logger.getLogger(StandardPyramidServerResolver.class.getName());
 
-    private final Map<String, HttpServerAddress> pool = new ServerAddressHashMap();
+    private final Map<String, ServerAddressEntry> pool = new ServerAddressHashMap();
     private final PyramidServicesConfiguration servicesConfiguration;
     private final Collection<PyramidFormat> allSortedFormats;
     private final HttpServerConfiguration serverConfiguration;
     private final HttpServerConfiguration.ProxySettings proxyConfiguration;
+    private final PyramidConfigurationCache configurationCache;
     private final List<HttpPyramidIdFinder> pyramidIdFinders = new ArrayList<>();
     private final Object lock = new Object();
 
@@ -60,6 +61,8 @@ class StandardPyramidServerResolver implements HttpServerResolver {
         this.allSortedFormats = servicesConfiguration.allSortedFormats();
         this.serverConfiguration = serverConfiguration;
         this.proxyConfiguration = serverConfiguration.getProxySettings();
+        this.configurationCache = PyramidConfigurationCache.getInstance(
+            serverConfiguration.getConfigRootDir(), serverConfiguration.getConfigFileName());
     }
 
     public void addPyramidIdFinder(HttpPyramidIdFinder pyramidIdFinder) {
@@ -72,14 +75,16 @@ class StandardPyramidServerResolver implements HttpServerResolver {
         if (HttpPyramidApiTools.isUriPyramidCommand(requestURI)) {
             final String pyramidId = findPyramidId(requestURI, queryParameters);
             if (pyramidId != null) {
+                final String pyramidConfiguration = configurationCache.pyramidIdToConfiguration(pyramidId);
                 synchronized (lock) {
-                    HttpServerAddress result = pool.get(pyramidId);
-                    if (result == null) {
-                        result = pyramidIdToServerAddress(pyramidId);
-                        pool.put(pyramidId, result);
+                    ServerAddressEntry entry = pool.get(pyramidId);
+                    if (entry == null || entry.pyramidConfiguration != pyramidConfiguration) {
+                        // - the cache returns the same instance while the configuration file is not changed
+                        entry = new ServerAddressEntry(pyramidConfiguration, pyramidIdToServerAddress(pyramidId));
+                        pool.put(pyramidId, entry);
                     }
-                    LOG.config("Proxying " + requestURI + " to " + result + " by pyramidId=" + pyramidId);
-                    return result;
+                    LOG.config("Proxying " + requestURI + " to " + entry.address + " by pyramidId=" + pyramidId);
+                    return entry.address;
                 }
             }
             final Integer serverPort = findServerPort(queryParameters);
@@ -105,11 +110,7 @@ class StandardPyramidServerResolver implements HttpServerResolver {
     }
 
     private HttpServerAddress pyramidIdToServerAddress(String pyramidId) throws IOException {
-        final String pyramidConfiguration = PyramidApiTools.pyramidIdToConfiguration(
-            pyramidId,
-            serverConfiguration.getConfigRootDir(),
-            serverConfiguration.getConfigFileName());
-        final JsonObject config = PyramidApiTools.configurationToJson(pyramidConfiguration);
+        final JsonObject config = configurationCache.pyramidIdToConfigurationJson(pyramidId);
         final Path pyramidPath = PyramidApiTools.getPyramidPath(config);
         final StandardPyramidDataConfiguration pyramidDataConfiguration;
         try {
@@ -149,14 +150,24 @@ class StandardPyramidServerResolver implements HttpServerResolver {
         return null;
     }
 
-    private static class ServerAddressHashMap extends LinkedHashMap<String, HttpServerAddress> {
+    private static class ServerAddressEntry {
+        private final String pyramidConfiguration;
+        private final HttpServerAddress address;
+
+        private ServerAddressEntry(String pyramidConfiguration, HttpServerAddress address) {
+            this.pyramidConfiguration = pyramidConfiguration;
+            this.address = address;
+        }
+    }
+
+    private static class ServerAddressHashMap extends LinkedHashMap<String, ServerAddressEntry> {
         public ServerAddressHashMap() {
             super(16, 0.75f, true);
             // necessary to set access order to true
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<String, HttpServerAddress> eldest) {
+        protected boolean removeEldestEntry(Map.Entry<String, ServerAddressEntry> eldest) {
             if (size() > POOL_SIZE) {
                 LOG.info("Proxy server detector pool overflow; freeing and removing pyramid id " + eldest.getKey());
                 return true;
@@ -26,7 +26,7 @@ package net.algart.pyramid.http.server;
 
 import net.algart.pyramid.PlanePyramidFactory;
 import net.algart.pyramid.PlanePyramidPool;
-import net.algart.pyramid.api.common.PyramidApiTools;
+import net.algart.pyramid.api.common.PyramidConfigurationCache;
 import net.algart.pyramid.api.common.PyramidConstants;
 import net.algart.pyramid.api.http.HttpPyramidApiTools;
 import net.algart.pyramid.api.http.HttpPyramidConstants;
@@ -34,12 +34,15 @@ import net.algart.pyramid.api.http.HttpServerConfiguration;
 import net.algart.pyramid.http.server.handlers.*;
 import net.algart.pyramid.requests.PlanePyramidRequest;
 import org.glassfish.grizzly.http.server.*;
+import org.glassfish.grizzly.http2.Http2AddOn;
 
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -59,8 +62,8 @@ public class HttpPyramidService {
     private final HttpServer server;
     private final int port;
     private final Path systemCommandsFolder;
-    private String configRootDir = PyramidConstants.DEFAULT_CONFIG_ROOT_DIR;
-    private String configFileName = PyramidConstants.DEFAULT_CONFIG_FILE_NAME;
+    private volatile PyramidConfigurationCache configurationCache = PyramidConfigurationCache.getInstance(
+        PyramidConstants.DEFAULT_CONFIG_ROOT_DIR, PyramidConstants.DEFAULT_CONFIG_FILE_NAME);
 
     private final List<SystemCommand> systemHandlers = new ArrayList<>();
     private final ReadThreadPool threadPool;
@@ -85,17 +88,27 @@ public class HttpPyramidService {
                 + systemCommandsFolder.toAbsolutePath()
                 + "\": it must be an existing folder with permitted read/write operations");
         }
-        this.pyramidPool = new PlanePyramidPool(factory, HttpPyramidConstants.MAX_NUMBER_OF_PYRAMIDS_IN_POOL);
-        this.threadPool = new ReadThreadPool(Runtime.getRuntime().availableProcessors());
+        this.pyramidPool = new PlanePyramidPool(factory, HttpPyramidConstants.MAX_NUMBER_OF_PYRAMIDS_IN_POOL)
+            .setMemoryBudget(HttpPyramidConstants.PYRAMID_POOL_MEMORY_BUDGET)
+            .setOpenFilesBudget(HttpPyramidConstants.PYRAMID_POOL_OPEN_FILES_BUDGET)
+            .setFrequencyHalfLife(HttpPyramidConstants.PYRAMID_POOL_FREQUENCY_HALF_LIFE);
+        this.threadPool = new ReadThreadPool(ReadExecutor.newInstance(
+            HttpPyramidConstants.READ_THREAD_POOL_MODE,
+            HttpPyramidConstants.READ_THREAD_POOL_SIZE));
         this.server = new HttpServer();
         this.port = port;
         this.systemCommandsFolder = systemCommandsFolder;
-        this.server.addListener(new NetworkListener(HttpPyramidService.class.getName(),
-            HttpPyramidConstants.LOCAL_HOST, port));
+        final NetworkListener listener = new NetworkListener(HttpPyramidService.class.getName(),
+            HttpPyramidConstants.LOCAL_HOST, port);
+        if (HttpPyramidConstants.HTTP2_ENABLED) {
+            listener.registerAddOn(new Http2AddOn());
+        }
+        this.server.addListener(listener);
         this.serverConfiguration = server.getServerConfiguration();
 //        try {Thread.sleep(5000);} catch (InterruptedException e) {}
         addSystemHandler(new FinishCommand(this));
         addSystemHandler(new GcCommand(this));
+        addSystemHandler(new StatusCommand(this));
         addHandler(new AliveStatusCommand(this));
     }
 
@@ -103,10 +116,8 @@ public class HttpPyramidService {
         HttpServerConfiguration serverConfiguration)
     {
         Objects.requireNonNull(serverConfiguration, "Null configuration for specific server");
-        this.configRootDir = serverConfiguration.getConfigRootDir();
-        this.configFileName = serverConfiguration.getConfigFileName();
-        assert configRootDir != null;
-        assert configFileName != null;
+        this.configurationCache = PyramidConfigurationCache.getInstance(
+            serverConfiguration.getConfigRootDir(), serverConfiguration.getConfigFileName());
         return this;
     }
 
@@ -122,6 +133,7 @@ public class HttpPyramidService {
         addHandler(new TmsHttpPyramidCommand(this));
         addHandler(new ZoomifyHttpPyramidCommand(this));
         addHandler(new ReadSpecialImagePyramidCommand(this));
+        addHandler(new TilesHttpPyramidCommand(this));
     }
 
     public final void start() throws IOException {
@@ -187,8 +199,39 @@ public class HttpPyramidService {
         return threadPool.createReadTask(request, response, pyramidRequest, pyramidPool);
     }
 
+    /**
+     * Reads the data for all given requests and sends them in one response, in the format, described in
+     * {@link HttpPyramidConstants#BATCH_CONTENT_TYPE}. Every request is scheduled as a separate reading task,
+     * and its data are sent as soon as they are ready.
+     *
+     * @param request         HTTP request.
+     * @param response        HTTP response.
+     * @param pyramidRequests requests, which should be performed; must not be empty.
+     */
+    public final void createBatchReadTask(
+        Request request,
+        Response response,
+        List<PlanePyramidRequest> pyramidRequests)
+    {
+        Objects.requireNonNull(pyramidRequests, "Null pyramid requests");
+        if (pyramidRequests.isEmpty()) {
+            throw new IllegalArgumentException("Empty list of pyramid requests");
+        }
+        threadPool.createBatchReadTask(request, response, pyramidRequests, pyramidPool);
+    }
+
+    /**
+     * Reads the data for the given requests into the server cache with the lowest priority, if the server
+     * is not loaded: usually these are tiles, which will be probably requested soon.
+     *
+     * @param pyramidRequests requests, which should be prefetched.
+     */
+    public final void prefetch(List<PlanePyramidRequest> pyramidRequests) {
+        threadPool.prefetch(pyramidRequests, pyramidPool);
+    }
+
     public String pyramidIdToConfiguration(String pyramidId) throws IOException {
-        return PyramidApiTools.pyramidIdToConfiguration(pyramidId, configRootDir, configFileName);
+        return configurationCache.pyramidIdToConfiguration(pyramidId);
     }
 
     @Override
@@ -248,6 +291,22 @@ public class HttpPyramidService {
         }
     }
 
+    private class StatusCommand extends SystemCommand {
+        StatusCommand(HttpPyramidService httpPyramidService) {
+            super(httpPyramidService, HttpPyramidConstants.CommandPrefixes.STATUS);
+        }
+
+        @Override
+        void service() throws IOException {
+            final Path resultFile = HttpPyramidApiTools.systemCommandResultFile(
+                urlPrefix, port, systemCommandsFolder);
+            final Path tempFile = resultFile.resolveSibling(resultFile.getFileName() + ".tmp");
+            Files.write(tempFile, threadPool.statusJson(pyramidPool).toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, resultFile, StandardCopyOption.REPLACE_EXISTING);
+            // - the report is complete before the key file is removed, i.e. before the command is accepted
+        }
+    }
+
     void tryToStop() throws IOException {
         final Path keyFile = HttpPyramidApiTools.keyFile(
             HttpPyramidConstants.CommandPrefixes.FINISH, port, systemCommandsFolder);
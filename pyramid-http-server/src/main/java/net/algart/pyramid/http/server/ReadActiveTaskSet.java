@@ -24,34 +24,32 @@
 
 package net.algart.pyramid.http.server;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import net.algart.pyramid.HashedTimerWheel;
 
+import java.util.Objects;
+
+/**
+ * Active (not finished) reading tasks and their timeouts. Every task is registered in the timer wheel:
+ * there is no thread, which scans all tasks.
+ */
 final class ReadActiveTaskSet {
-    private final Set<ReadTask> activeTasks = new LinkedHashSet<>();
+    private final HashedTimerWheel timerWheel;
 
-    void addTask(ReadTask task) {
-        synchronized (activeTasks) {
-            activeTasks.add(task);
-        }
+    ReadActiveTaskSet(HashedTimerWheel timerWheel) {
+        this.timerWheel = Objects.requireNonNull(timerWheel);
     }
 
-    void removeTask(ReadTask task) {
-        synchronized (activeTasks) {
-            activeTasks.remove(task);
-        }
+    HashedTimerWheel.Timeout addTask(ReadTask task, long deadline) {
+        return timerWheel.schedule(deadline, task::cancelIfObsolete);
     }
 
-    void cleanObsoleteTasks() {
-        final Collection<ReadTask> tasks;
-        synchronized (activeTasks) {
-            tasks = new ArrayList<>(activeTasks);
-        }
-//        System.out.printf("Checking %d tasks to cancel...%n", tasks.size());
-        for (ReadTask task : tasks) {
-            task.cancelIfObsolete();
+    void removeTask(HashedTimerWheel.Timeout taskTimeout) {
+        if (taskTimeout != null) {
+            taskTimeout.cancel();
         }
     }
+
+    HashedTimerWheel timerWheel() {
+        return timerWheel;
+    }
 }
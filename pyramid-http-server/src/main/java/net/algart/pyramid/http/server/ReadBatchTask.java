@@ -0,0 +1,334 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import net.algart.pyramid.PlanePyramidData;
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.ICloseType;
+import org.glassfish.grizzly.IOEvent;
+import org.glassfish.grizzly.WriteHandler;
+import org.glassfish.grizzly.http.io.NIOOutputStream;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One HTTP response for several {@link ReadTask reading tasks} (parts of the batch). The parts are scheduled
+ * as usual tasks, and every part is sent as soon as it is ready, in the format, described in
+ * {@link HttpPyramidConstants#BATCH_CONTENT_TYPE}.
+ */
+final class ReadBatchTask {
+    private static final Logger LOG = Logger.getLogger(ReadBatchTask.class.getName());
+
+    private final Response response;
+    private final Connection<?> connection;
+    private final Closeable requestCloseable;
+    private final boolean multiplexedConnection;
+    private final NIOOutputStream outputStream;
+    private final int numberOfParts;
+    private final List<ReadTask> parts = new ArrayList<>();
+    private final BitSet answeredParts = new BitSet();
+    private final Queue<Buffer> pendingBuffers = new ArrayDeque<>();
+    private final CloseListener<Closeable, ICloseType> closeListener = (closeable, type) -> onDisconnection();
+    private final WriteHandler writeHandler = new BatchWriteHandler();
+    private int numberOfClosedParts = 0;
+    private boolean watchingDisconnection = false;
+    private boolean waitingForWrite = false;
+    private boolean disconnected = false;
+    private boolean finished = false;
+
+    ReadBatchTask(Request request, Response response, int numberOfParts) {
+        if (numberOfParts <= 0) {
+            throw new IllegalArgumentException("Empty batch");
+        }
+        this.response = Objects.requireNonNull(response);
+        this.connection = request.getContext().getConnection();
+        this.requestCloseable = ReadTask.requestCloseable(request);
+        this.multiplexedConnection = ReadTask.isMultiplexed(request);
+        this.numberOfParts = numberOfParts;
+        response.setStatus(200, "OK");
+        response.setContentType(HttpPyramidConstants.BATCH_CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        // - the length is unknown: the parts will be sent in chunks while reading
+        this.outputStream = response.getNIOOutputStream();
+        response.suspend();
+        if (connection != null) {
+            watchingDisconnection = true;
+            requestCloseable.addCloseListener(closeListener);
+            if (!multiplexedConnection) {
+                try {
+                    connection.enableIOEvent(IOEvent.READ);
+                    // - see ReadTask.watchDisconnection
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Cannot watch the connection", e);
+                }
+            }
+        }
+    }
+
+    Response response() {
+        return response;
+    }
+
+    /**
+     * Adds the part to this batch. Must be called after {@link ReadTask#watchDisconnection}.
+     *
+     * @param part new part of the batch.
+     */
+    void addPart(ReadTask part) {
+        final boolean alreadyDisconnected;
+        synchronized (this) {
+            parts.add(part);
+            alreadyDisconnected = disconnected;
+        }
+        if (alreadyDisconnected) {
+            part.onDisconnection();
+        }
+    }
+
+    void sendPart(ReadTask part, PlanePyramidData data) throws IOException {
+        final PlanePyramidData retained = data.retain();
+        // - the part will release its data at once, but we need them until Grizzly sends them
+        final Buffer dataBuffer;
+        if (data.isShortString()) {
+            retained.release();
+            dataBuffer = new ByteBufferWrapper(ByteBuffer.wrap(
+                data.getShortString().getBytes(StandardCharsets.UTF_8)));
+        } else {
+            dataBuffer = new ReadTask.DataBufferWrapper(retained.getByteBuffer(), retained);
+        }
+        if (!addPartBuffers(part.batchIndex(), 200, data.getContentMIMEType(), dataBuffer)) {
+            dataBuffer.dispose();
+        }
+    }
+
+    void failPart(ReadTask part, int status, String message) {
+        failPart(part.batchIndex(), status, message);
+    }
+
+    /**
+     * Sends the error status of the part, which cannot be created (for example, because of invalid request),
+     * and counts it as closed: in other case, the batch would never finish.
+     *
+     * @param batchIndex index of the part in the batch.
+     * @param status     HTTP status of the part.
+     * @param message    error message.
+     */
+    void failNotCreatedPart(int batchIndex, int status, String message) {
+        failPart(batchIndex, status, message);
+        synchronized (this) {
+            numberOfClosedParts++;
+            try {
+                checkFinish();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error while closing output stream", e);
+            }
+        }
+    }
+
+    void onPartClosed(ReadTask part) {
+        final boolean answered;
+        synchronized (this) {
+            answered = answeredParts.get(part.batchIndex());
+        }
+        if (!answered) {
+            failPart(part, 500, "Task cancelled");
+            // - should not occur, excepting disconnection (then nothing will be sent)
+        }
+        synchronized (this) {
+            numberOfClosedParts++;
+            try {
+                checkFinish();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error while closing output stream", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReadBatchTask for " + numberOfParts + " parts";
+    }
+
+    private void failPart(int batchIndex, int status, String message) {
+        final Buffer messageBuffer = new ByteBufferWrapper(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+        try {
+            addPartBuffers(batchIndex, status, "text/plain; charset=utf-8", messageBuffer);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Cannot send error status of the part of the batch", e);
+        }
+    }
+
+    private boolean addPartBuffers(int batchIndex, int status, String contentType, Buffer dataBuffer)
+        throws IOException
+    {
+        final byte[] contentTypeBytes = contentType.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(16 + contentTypeBytes.length);
+        header.putInt(batchIndex);
+        header.putInt(status);
+        header.putInt(contentTypeBytes.length);
+        header.put(contentTypeBytes);
+        header.putInt(dataBuffer.remaining());
+        header.flip();
+        synchronized (this) {
+            if (disconnected || finished || answeredParts.get(batchIndex)) {
+                return false;
+            }
+            answeredParts.set(batchIndex);
+            pendingBuffers.add(new ByteBufferWrapper(header));
+            pendingBuffers.add(dataBuffer);
+            if (watchingDisconnection) {
+                stopWatchingDisconnection();
+                // - we start sending: from this moment, disconnection will be detected while writing
+            }
+            writePendingBuffers();
+            return true;
+        }
+    }
+
+    // Must be called in synchronized block
+    private void writePendingBuffers() throws IOException {
+        while (!pendingBuffers.isEmpty() && !waitingForWrite) {
+            if (!outputStream.canWrite()) {
+                waitingForWrite = true;
+                outputStream.notifyCanWrite(writeHandler);
+                return;
+            }
+            outputStream.write(pendingBuffers.remove());
+            // - Grizzly will send the buffer asynchronously and then dispose it
+        }
+        checkFinish();
+    }
+
+    // Must be called in synchronized block
+    private void checkFinish() throws IOException {
+        if (finished || numberOfClosedParts < numberOfParts || !pendingBuffers.isEmpty() || waitingForWrite) {
+            return;
+        }
+        finished = true;
+        stopWatchingDisconnection();
+        ReadTask.closeResponseStream(outputStream, multiplexedConnection);
+        if (response.isSuspended()) {
+            response.resume();
+            if (connection != null && !multiplexedConnection) {
+                ReadTask.enableReading(connection);
+            }
+        } else {
+            response.finish();
+        }
+        LOG.config("Batch response is finished: " + this);
+    }
+
+    // Must be called in synchronized block
+    private void stopWatchingDisconnection() {
+        if (!watchingDisconnection) {
+            return;
+        }
+        watchingDisconnection = false;
+        requestCloseable.removeCloseListener(closeListener);
+        if (multiplexedConnection) {
+            return;
+        }
+        try {
+            ReadTask.disableReading(connection);
+            // - no sense to wait for it: the client cannot send the next request before the end of the batch,
+            // and the selector thread could wait for this batch to write the parts
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Cannot stop watching the connection", e);
+        }
+    }
+
+    /**
+     * Cancels the batch, if it is HTTP/2 stream, which is already reset by the client.
+     * See ReadTask.checkDisconnection.
+     */
+    void checkStreamReset() {
+        if (multiplexedConnection && !requestCloseable.isOpen()) {
+            onDisconnection();
+        }
+    }
+
+    private void onDisconnection() {
+        final List<ReadTask> partsToCancel;
+        synchronized (this) {
+            if (disconnected || finished) {
+                return;
+            }
+            disconnected = true;
+            for (Buffer buffer : pendingBuffers) {
+                buffer.dispose();
+            }
+            pendingBuffers.clear();
+            partsToCancel = new ArrayList<>(parts);
+        }
+        LOG.config("Client disconnected, cancelling batch: " + this);
+        for (ReadTask part : partsToCancel) {
+            part.onDisconnection();
+        }
+        synchronized (this) {
+            waitingForWrite = false;
+            try {
+                checkFinish();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error while closing output stream", e);
+            }
+        }
+    }
+
+    private class BatchWriteHandler implements WriteHandler {
+        @Override
+        public void onWritePossible() throws IOException {
+            synchronized (ReadBatchTask.this) {
+                waitingForWrite = false;
+                if (!disconnected) {
+                    writePendingBuffers();
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            LOG.log(Level.FINE, "Some problems occur while writing batch output stream", e);
+            // - it is not too serious problem: maybe connection was lost or terminated by browser
+            onDisconnection();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.requests.PlanePyramidRequest;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times of the last modification of the pyramid data, learned while accessing the pyramids.
+ * They allow to answer "304 Not modified" to conditional requests without creating reading task
+ * and to build validators (ETag and Last-Modified), which do not depend on the server cache.
+ */
+final class ReadDataValidators {
+    static final long NOT_CHECKED = Long.MIN_VALUE;
+
+    private final Map<String, Entry> map = new ConcurrentHashMap<>();
+
+    void update(String pyramidUniqueId, PlanePyramid pyramid) {
+        map.put(pyramidUniqueId, new Entry(pyramid.isCacheable() ? pyramid.dataLastModifiedTime() : -1));
+        // - we also remember that the time is unknown (-1): it allows to avoid checking the pyramid again
+    }
+
+    /**
+     * Returns the time of the last modification of the pyramid data, if it was learned not too long ago,
+     * or -1 if it is unknown.
+     *
+     * @param pyramidUniqueId pyramid unique id.
+     * @return the time of the last modification of the pyramid data or -1.
+     */
+    long dataLastModifiedTime(String pyramidUniqueId) {
+        final long result = checkedDataLastModifiedTime(pyramidUniqueId);
+        return result == NOT_CHECKED ? -1 : result;
+    }
+
+    /**
+     * Returns the time of the last modification of the pyramid data, if it was learned not too long ago
+     * (-1 if the pyramid does not know it), or {@link #NOT_CHECKED} if it was not learned or must be checked
+     * again.
+     *
+     * @param pyramidUniqueId pyramid unique id.
+     * @return the time of the last modification of the pyramid data, -1 or {@link #NOT_CHECKED}.
+     */
+    long checkedDataLastModifiedTime(String pyramidUniqueId) {
+        final Entry entry = map.get(pyramidUniqueId);
+        if (entry == null) {
+            return NOT_CHECKED;
+        }
+        if (System.currentTimeMillis() - entry.checkTime > HttpPyramidConstants.DATA_MODIFICATION_CHECKING_PERIOD) {
+            map.remove(pyramidUniqueId, entry);
+            return NOT_CHECKED;
+        }
+        return entry.dataLastModifiedTime;
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns strong ETag for the data, returned by the given request from the pyramid with the given
+     * modification time, or <tt>null</tt> if the request has no persistent key.
+     * Note that the persistent key includes the pyramid configuration.
+     *
+     * @param pyramidRequest       the request.
+     * @param dataLastModifiedTime the time of the last modification of the pyramid data.
+     * @return ETag (in quotes) or <tt>null</tt>.
+     */
+    static String eTag(PlanePyramidRequest pyramidRequest, long dataLastModifiedTime) {
+        final String key = pyramidRequest.persistentKey();
+        if (key == null) {
+            return null;
+        }
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be supported by all Java platforms", e);
+        }
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update(Long.toString(dataLastModifiedTime).getBytes(StandardCharsets.UTF_8));
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder("\"");
+        for (int k = 0; k < 16; k++) {
+            sb.append(String.format("%02x", hash[k] & 0xFF));
+        }
+        return sb.append('"').toString();
+    }
+
+    static boolean isNotModified(
+        String ifNoneMatch,
+        long ifModifiedSince,
+        String eTag,
+        long dataLastModifiedTime)
+    {
+        if (ifNoneMatch != null) {
+            // - If-Modified-Since must be ignored in this case (RFC 7232)
+            if (eTag == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                    // - weak comparison is used for GET requests
+                }
+                if (tag.equals("*") || tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return ifModifiedSince != -1 && dataLastModifiedTime / 1000 * 1000 <= ifModifiedSince;
+        // - HTTP date has a precision of 1 second
+    }
+
+    static void setHeaders(Response response, String eTag, long dataLastModifiedTime) {
+        response.setDateHeader("Last-Modified", dataLastModifiedTime);
+        if (eTag != null) {
+            response.setHeader("ETag", eTag);
+        }
+    }
+
+    private static final class Entry {
+        final long dataLastModifiedTime;
+        final long checkTime = System.currentTimeMillis();
+
+        Entry(long dataLastModifiedTime) {
+            this.dataLastModifiedTime = dataLastModifiedTime;
+        }
+    }
+}
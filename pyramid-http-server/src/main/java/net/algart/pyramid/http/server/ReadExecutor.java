@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Executor, which runs reading tasks of {@link ReadThreadPool}. There are 3 modes:
+ * <ul>
+ * <li>{@link Mode#FIXED} &mdash; one platform thread per processor: good when pyramid data are read
+ * from the fast local disk, so reading is limited by CPU;</li>
+ * <li>{@link Mode#IO} &mdash; the given number of platform threads, usually much more than processors:
+ * good for slow network storage, when most threads just wait for I/O;</li>
+ * <li>{@link Mode#VIRTUAL} &mdash; new virtual thread for every task (JDK 21+); the number of simultaneously
+ * performed tasks is limited by the same number as in {@link Mode#IO} mode.</li>
+ * </ul>
+ *
+ * <p>The project is compiled for Java 8, so virtual threads are created via reflection;
+ * on older JVMs {@link Mode#VIRTUAL} mode is replaced with {@link Mode#IO}.</p>
+ */
+final class ReadExecutor {
+    enum Mode {
+        FIXED,
+        IO,
+        VIRTUAL;
+
+        static Mode valueOfName(String name) {
+            Objects.requireNonNull(name, "Null mode name");
+            try {
+                return valueOf(name.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown read thread pool mode \"" + name
+                    + "\": must be \"fixed\", \"io\" or \"virtual\"");
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(ReadExecutor.class.getName());
+
+    private final Mode mode;
+    private final int concurrency;
+    private final ExecutorService executorService;
+
+    private ReadExecutor(Mode mode, int concurrency, ExecutorService executorService) {
+        this.mode = mode;
+        this.concurrency = concurrency;
+        this.executorService = executorService;
+    }
+
+    static ReadExecutor newInstance(String modeName, int ioPoolSize) {
+        Mode mode = Mode.valueOfName(modeName);
+        if (ioPoolSize <= 0) {
+            throw new IllegalArgumentException("Zero or negative pool size " + ioPoolSize);
+        }
+        if (mode == Mode.VIRTUAL) {
+            final ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutorOrNull();
+            if (virtualThreadExecutor != null) {
+                return new ReadExecutor(mode, ioPoolSize, virtualThreadExecutor);
+            }
+            LOG.warning("Virtual threads are not supported by this JVM (JDK 21+ required); "
+                + "using " + ioPoolSize + " platform threads instead");
+            mode = Mode.IO;
+        }
+        final int poolSize = mode == Mode.FIXED ? Runtime.getRuntime().availableProcessors() : ioPoolSize;
+        return new ReadExecutor(mode, poolSize, Executors.newFixedThreadPool(poolSize, new ReadThreadFactory()));
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Returns the maximal number of simultaneously performed tasks: the number of threads in the pool
+     * or the limit for virtual threads.
+     *
+     * @return maximal number of simultaneously performed tasks.
+     */
+    int concurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the new thread is created for every task. In other case, there is a pool
+     * of {@link #concurrency()} threads, and every of them should execute a loop, taking tasks from the queue.
+     *
+     * @return whether this executor creates a new thread for every task.
+     */
+    boolean isThreadPerTask() {
+        return mode == Mode.VIRTUAL;
+    }
+
+    void execute(Runnable runnable) {
+        executorService.execute(runnable);
+    }
+
+    void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "read executor, " + mode.name().toLowerCase(Locale.US) + " mode, concurrency " + concurrency;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutorOrNull() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // - for example, UnsupportedOperationException in some special JVMs
+            LOG.warning("Cannot create virtual thread executor: " + e.getCause());
+            return null;
+        }
+    }
+
+    private static class ReadThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread result = new Thread(r, "ReadImageThread-" + threadIndex.getAndIncrement());
+            LOG.config("Starting make-image thread " + result.getName());
+            return result;
+        }
+    }
+}
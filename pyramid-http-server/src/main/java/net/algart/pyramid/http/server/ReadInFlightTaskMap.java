@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of reading tasks, which are now queued or performed and have no data in the cache yet.
+ * If the same request is received while such a task is not finished, the new task does not read the pyramid
+ * itself, but waits for the result of the first task (so-called "leader") and sends the same data.
+ */
+final class ReadInFlightTaskMap {
+    private final Map<PlanePyramidRequest, InFlightRead> reads = new HashMap<>();
+
+    /**
+     * Attaches the task to the in-flight task with the same request, if it exists,
+     * or registers this task as a new leader in other case.
+     *
+     * @param task new reading task.
+     * @return <tt>true</tt> if the task was attached to another task and must not be queued.
+     */
+    boolean attachOrRegister(ReadTask task) {
+        final PlanePyramidRequest request = task.pyramidRequest();
+        synchronized (reads) {
+            final InFlightRead read = reads.get(request);
+            if (read != null) {
+                read.followers.add(task);
+                return true;
+            }
+            reads.put(request, new InFlightRead(task));
+            return false;
+        }
+    }
+
+    /**
+     * Registers the task as a new leader, if there is no in-flight task with the same request.
+     * Unlike {@link #attachOrRegister(ReadTask)}, never attaches the task to another one:
+     * it is used for prefetching, which is not necessary if the same data are already being read.
+     *
+     * @param task new reading task.
+     * @return <tt>true</tt> if the task is registered and should be queued.
+     */
+    boolean registerIfAbsent(ReadTask task) {
+        final PlanePyramidRequest request = task.pyramidRequest();
+        synchronized (reads) {
+            if (reads.containsKey(request)) {
+                return false;
+            }
+            reads.put(request, new InFlightRead(task));
+            return true;
+        }
+    }
+
+    /**
+     * Returns the leader task for the given request or <tt>null</tt> if there is no such in-flight task.
+     *
+     * @param request the request.
+     * @return the task, which reads data for this request.
+     */
+    ReadTask leader(PlanePyramidRequest request) {
+        synchronized (reads) {
+            final InFlightRead read = reads.get(request);
+            return read == null ? null : read.leader;
+        }
+    }
+
+    /**
+     * Unregisters the leader task and returns all tasks, attached to it.
+     * Does nothing and returns an empty list if the task is not a registered leader.
+     *
+     * @param leader the task, which has finished reading data.
+     * @return tasks, which are waiting for the same data.
+     */
+    List<ReadTask> complete(ReadTask leader) {
+        final PlanePyramidRequest request = leader.pyramidRequest();
+        synchronized (reads) {
+            final InFlightRead read = reads.get(request);
+            if (read == null || read.leader != leader) {
+                return Collections.emptyList();
+            }
+            reads.remove(request);
+            return read.followers;
+        }
+    }
+
+    /**
+     * Unregisters the leader task, if there are no tasks, attached to it.
+     * Does nothing and returns <tt>true</tt> if the task is not a registered leader.
+     *
+     * @param leader the task, which will not read data.
+     * @return <tt>false</tt> if some tasks are waiting for the data of this task.
+     */
+    boolean completeIfNoFollowers(ReadTask leader) {
+        final PlanePyramidRequest request = leader.pyramidRequest();
+        synchronized (reads) {
+            final InFlightRead read = reads.get(request);
+            if (read == null || read.leader != leader) {
+                return true;
+            }
+            if (!read.followers.isEmpty()) {
+                return false;
+            }
+            reads.remove(request);
+            return true;
+        }
+    }
+
+    /**
+     * Detaches the task from its leader, if it is still waiting for the leader's data.
+     *
+     * @param follower the task, which does not need data more.
+     * @return <tt>true</tt> if the task was detached and will not be processed by the leader.
+     */
+    boolean detachFollower(ReadTask follower) {
+        synchronized (reads) {
+            final InFlightRead read = reads.get(follower.pyramidRequest());
+            return read != null && read.leader != follower && read.followers.remove(follower);
+        }
+    }
+
+    int size() {
+        synchronized (reads) {
+            return reads.size();
+        }
+    }
+
+    private static class InFlightRead {
+        final ReadTask leader;
+        final List<ReadTask> followers = new ArrayList<>();
+
+        InFlightRead(ReadTask leader) {
+            this.leader = leader;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted semaphore, limiting the total estimated memory of simultaneously performed requests
+ * in saving-memory mode. The request, requiring more than the whole budget, is performed alone.
+ * Waiting requests acquire memory in the order of arrival, so a large request is not postponed
+ * infinitely by smaller ones.
+ */
+final class ReadMemoryBudget {
+    private final long budget;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Queue<Object> waiting = new ArrayDeque<>();
+    private long available;
+    private long numberOfTimeouts = 0;
+
+    ReadMemoryBudget(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Zero or negative memory budget " + budget);
+        }
+        this.budget = budget;
+        this.available = budget;
+    }
+
+    /**
+     * Waits until the required memory is available and reserves it.
+     *
+     * @param estimatedMemory       estimated memory usage of the request; may be <tt>Long.MAX_VALUE</tt>.
+     * @param timeoutInMilliseconds maximal waiting time.
+     * @return reserved amount of memory, which must be passed to {@link #release(long)};
+     * 0 if the memory was not reserved because of timeout.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    long acquire(long estimatedMemory, long timeoutInMilliseconds) throws InterruptedException {
+        final long required = Math.max(1, Math.min(estimatedMemory, budget));
+        long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutInMilliseconds);
+        final Object ticket = new Object();
+        lock.lock();
+        try {
+            waiting.add(ticket);
+            try {
+                while (waiting.peek() != ticket || available < required) {
+                    if (timeout <= 0) {
+                        numberOfTimeouts++;
+                        return 0;
+                    }
+                    timeout = changed.awaitNanos(timeout);
+                }
+            } finally {
+                waiting.remove(ticket);
+                changed.signalAll();
+                // - the next request in the queue may be able to proceed now
+            }
+            available -= required;
+            return required;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long reservedMemory) {
+        if (reservedMemory <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            available += reservedMemory;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "memory budget " + budget + " bytes, " + (budget - available) + " reserved, "
+                + waiting.size() + " requests waiting, " + numberOfTimeouts + " timeouts";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One of the CPU-bound stages of reading data (rendering or encoding), which follow the first,
+ * input/output stage, performed by {@link ReadThreadPool}. Every stage has its own thread pool and
+ * bounded queue. When the queue is full, the action is performed by the thread, which submits it
+ * (usually the thread of the previous stage): so, the previous stage is slowed down instead of
+ * accumulating unlimited amount of data in memory.
+ *
+ * <p>The stage without threads performs all actions in the submitting thread.</p>
+ */
+final class ReadPipelineStage {
+    private static final Logger LOG = Logger.getLogger(ReadPipelineStage.class.getName());
+
+    private final String name;
+    private final int numberOfThreads;
+    private final ThreadPoolExecutor executor;
+    // - null if numberOfThreads = 0
+    private final LongAdder numberOfPerformedActions = new LongAdder();
+    private final LongAdder waitingTimeInNanoseconds = new LongAdder();
+    private final LongAdder processingTimeInNanoseconds = new LongAdder();
+
+    ReadPipelineStage(String name, int numberOfThreads, int queueCapacity) {
+        this.name = Objects.requireNonNull(name, "Null stage name");
+        if (numberOfThreads < 0) {
+            throw new IllegalArgumentException("Negative number of threads " + numberOfThreads);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Zero or negative queue capacity " + queueCapacity);
+        }
+        this.numberOfThreads = numberOfThreads;
+        if (numberOfThreads == 0) {
+            this.executor = null;
+        } else {
+            final AtomicInteger threadIndex = new AtomicInteger(0);
+            this.executor = new ThreadPoolExecutor(
+                numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "Read-" + name + "-thread-" + threadIndex.getAndIncrement()),
+                (r, e) -> r.run());
+            // - unlike CallerRunsPolicy, performs the action also after shutdown: every task must be closed
+            LOG.config("Starting " + numberOfThreads + " threads for " + name + " stage");
+        }
+    }
+
+    /**
+     * Performs the action in this stage. The action must catch all its exceptions itself:
+     * exceptions, thrown by it, are only logged.
+     *
+     * @param action some stage of processing a reading task.
+     */
+    void execute(Runnable action) {
+        Objects.requireNonNull(action, "Null action");
+        final long submissionTime = System.nanoTime();
+        final Runnable measuredAction = () -> {
+            final long t1 = System.nanoTime();
+            waitingTimeInNanoseconds.add(t1 - submissionTime);
+            try {
+                action.run();
+            } catch (Throwable e) {
+                LOG.log(Level.SEVERE, "Unexpected error in logic!", e);
+            } finally {
+                processingTimeInNanoseconds.add(System.nanoTime() - t1);
+                numberOfPerformedActions.increment();
+            }
+        };
+        if (executor == null) {
+            measuredAction.run();
+        } else {
+            executor.execute(measuredAction);
+        }
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    JsonObject statusJson() {
+        final long count = numberOfPerformedActions.sum();
+        return Json.createObjectBuilder()
+            .add("numberOfThreads", numberOfThreads)
+            .add("queueSize", executor == null ? 0 : executor.getQueue().size())
+            .add("performedTasks", count)
+            .add("averageWaitingTimeMs", count == 0 ? 0.0 : waitingTimeInNanoseconds.sum() * 1e-6 / count)
+            .add("averageProcessingTimeMs", count == 0 ? 0.0 : processingTimeInNanoseconds.sum() * 1e-6 / count)
+            .build();
+    }
+
+    @Override
+    public String toString() {
+        return name + " stage (" + numberOfThreads + " threads)";
+    }
+}
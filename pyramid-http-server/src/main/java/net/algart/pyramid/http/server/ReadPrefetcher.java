@@ -0,0 +1,191 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.algart.pyramid.http.server;
+
+import net.algart.pyramid.requests.PlanePyramidRequest;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prefetching of data, which will probably be requested soon (usually tiles near the tile,
+ * requested now), into the cache. The data are read by usual {@link ReadTask reading tasks}
+ * with {@link ReadTask#PREFETCHING_PRIORITY the lowest priority}, which are registered in
+ * {@link ReadInFlightTaskMap} and queued in the common {@link ReadTaskQueue}: so, they are performed
+ * by the same threads and pipeline stages, use the same memory budget, and a client, requesting the same data
+ * while they are being read, receives the data of the prefetching task. This class decides whether prefetching
+ * is allowed and tracks prefetching tasks; they are created and queued by {@link ReadThreadPool}.
+ *
+ * <p>Prefetching is performed only while the server is not loaded: when the queue contains more than
+ * the given number of other tasks, new prefetching requests are skipped and the queued prefetching tasks
+ * should be removed from the queue.</p>
+ */
+final class ReadPrefetcher {
+    private static final Logger LOG = Logger.getLogger(ReadPrefetcher.class.getName());
+
+    private static final int MAX_NUMBER_OF_TRACKED_REQUESTS = 16384;
+
+    private final ReadTaskQueue readTaskQueue;
+    private final ReadInFlightTaskMap inFlightTasks;
+    private final int maxLoad;
+    private final Set<ReadTask> activeTasks = ConcurrentHashMap.newKeySet();
+    // - prefetching tasks, which are queued or performed now
+    private final Map<PlanePyramidRequest, Boolean> prefetchedRequests =
+        new LinkedHashMap<PlanePyramidRequest, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PlanePyramidRequest, Boolean> eldest) {
+                return size() > MAX_NUMBER_OF_TRACKED_REQUESTS;
+            }
+        };
+    // - requests, read by this prefetcher and not requested by clients yet
+    private final AtomicLong numberOfRequested = new AtomicLong(0);
+    private final AtomicLong numberOfQueued = new AtomicLong(0);
+    private final AtomicLong numberOfPrefetched = new AtomicLong(0);
+    private final AtomicLong numberOfAlreadyAvailable = new AtomicLong(0);
+    private final AtomicLong numberOfDropped = new AtomicLong(0);
+    private final AtomicLong numberOfHits = new AtomicLong(0);
+
+    ReadPrefetcher(ReadTaskQueue readTaskQueue, ReadInFlightTaskMap inFlightTasks, int maxLoad) {
+        this.readTaskQueue = Objects.requireNonNull(readTaskQueue);
+        this.inFlightTasks = Objects.requireNonNull(inFlightTasks);
+        if (maxLoad < 0) {
+            throw new IllegalArgumentException("Negative maximal load " + maxLoad);
+        }
+        this.maxLoad = maxLoad;
+    }
+
+    /**
+     * Checks whether the given number of new prefetching requests should be performed.
+     *
+     * @param numberOfRequests the number of new prefetching requests.
+     * @return <tt>false</tt> if the server is loaded and the requests should be skipped.
+     */
+    boolean isAllowed(int numberOfRequests) {
+        numberOfRequested.addAndGet(numberOfRequests);
+        if (isOverloaded()) {
+            numberOfDropped.addAndGet(numberOfRequests);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers the new prefetching task as the leader in the map of in-flight tasks.
+     * If its data are already in the cache or are being read by another task, the task is not necessary:
+     * then this method closes it.
+     *
+     * @param task new prefetching task.
+     * @return <tt>true</tt> if the task is registered and should be queued.
+     */
+    boolean register(ReadTask task) {
+        if (task.isDataInCache() || !inFlightTasks.registerIfAbsent(task)) {
+            numberOfAlreadyAvailable.incrementAndGet();
+            task.closeUnnecessaryPrefetching();
+            return false;
+        }
+        numberOfQueued.incrementAndGet();
+        activeTasks.add(task);
+        task.setClosingHandler(this::onClosed);
+        return true;
+    }
+
+    void onNotCreated(PlanePyramidRequest pyramidRequest, Throwable e) {
+        numberOfDropped.incrementAndGet();
+        LOG.log(Level.FINE, "Cannot create prefetching task for " + pyramidRequest, e);
+    }
+
+    /**
+     * Returns prefetching tasks, which should be removed from the queue because the server is loaded,
+     * or an empty list if the server is not loaded.
+     *
+     * @return the tasks to cancel.
+     */
+    List<ReadTask> tasksToCancel() {
+        if (activeTasks.isEmpty() || !isOverloaded()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(activeTasks);
+    }
+
+    /**
+     * Informs the prefetcher that some client has requested the data: it allows to track
+     * the effectiveness of prefetching.
+     *
+     * @param pyramidRequest the request of the client.
+     * @param dataInCache    whether the data are found in the cache.
+     */
+    void onClientRequest(PlanePyramidRequest pyramidRequest, boolean dataInCache) {
+        final Boolean prefetched;
+        synchronized (prefetchedRequests) {
+            prefetched = prefetchedRequests.remove(pyramidRequest);
+        }
+        if (prefetched != null && dataInCache) {
+            numberOfHits.incrementAndGet();
+        }
+    }
+
+    JsonObject statusJson() {
+        final long queued = numberOfQueued.get();
+        final long prefetched = numberOfPrefetched.get();
+        final long hits = numberOfHits.get();
+        return Json.createObjectBuilder()
+            .add("activeTasks", activeTasks.size())
+            .add("maxLoad", maxLoad)
+            .add("requested", numberOfRequested.get())
+            .add("queued", queued)
+            .add("prefetched", prefetched)
+            .add("notPrefetched", queued - prefetched - activeTasks.size())
+            .add("alreadyAvailable", numberOfAlreadyAvailable.get())
+            .add("dropped", numberOfDropped.get())
+            .add("hits", hits)
+            .add("hitRatio", prefetched == 0 ? 0.0 : (double) hits / (double) prefetched)
+            .build();
+    }
+
+    private boolean isOverloaded() {
+        return readTaskQueue.sizeWithoutPrefetching() > maxLoad;
+    }
+
+    private void onClosed(ReadTask task) {
+        activeTasks.remove(task);
+        if (task.isDataPrefetched()) {
+            synchronized (prefetchedRequests) {
+                prefetchedRequests.put(task.pyramidRequest(), Boolean.TRUE);
+            }
+            numberOfPrefetched.incrementAndGet();
+        }
+        // - in other case, the task was removed from the queue, cancelled or failed
+    }
+}
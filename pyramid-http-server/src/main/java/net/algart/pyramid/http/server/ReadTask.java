@@ -25,46 +25,103 @@
 package net.algart.pyramid.http.server;
 
 import net.algart.pyramid.*;
+import net.algart.pyramid.api.common.PyramidApiTools;
+import net.algart.pyramid.api.common.PyramidConstants;
 import net.algart.pyramid.api.http.HttpPyramidConstants;
 import net.algart.pyramid.requests.PlanePyramidRequest;
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.ICloseType;
+import org.glassfish.grizzly.IOEvent;
 import org.glassfish.grizzly.WriteHandler;
+import org.glassfish.grizzly.http.Protocol;
 import org.glassfish.grizzly.http.io.NIOOutputStream;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http2.Http2Stream;
+import org.glassfish.grizzly.impl.FutureImpl;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.glassfish.grizzly.nio.NIOConnection;
+import org.glassfish.grizzly.nio.NIOTransport;
+import org.glassfish.grizzly.nio.SelectorHandler;
+import org.glassfish.grizzly.utils.Futures;
 
+import javax.json.JsonNumber;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 final class ReadTask implements Comparable<ReadTask> {
-    private static final int CHUNK_SIZE = 8192;
     private static final Logger LOG = Logger.getLogger(ReadTask.class.getName());
     private static final boolean DETAILED_LOG = LOG.isLoggable(Level.CONFIG);
 
-    private static final Lock GLOBAL_LOCK = new ReentrantLock();
     private static final AtomicLong GLOBAL_TIME_STAMP = new AtomicLong(0);
+    private static final long DISABLING_READING_TIMEOUT = 1000;
+    // - we wait for the selector thread to disable reading the connection not more than this time (ms)
+
+    static final int PREFETCHING_PRIORITY = Integer.MIN_VALUE;
+    // - prefetching tasks are performed after all other tasks and are removed first when the queue is full
 
     private final Response response;
+    // - null for prefetching task
+    private final ReadBatchTask batch;
+    // - not null if this task is a part of a batch: then the data are sent by the batch
+    private final int batchIndex;
     private final PlanePyramidRequest pyramidRequest;
     private final PlanePyramidPool pyramidPool;
     private final ReadActiveTaskSet activeTaskSet;
+    private final ReadInFlightTaskMap inFlightTasks;
     private final PlanePyramidDataCache cache;
+    private final ReadMemoryBudget memoryBudget;
+    private final ReadDataValidators validators;
+    private final boolean prefetching;
+    private final int priority;
+    private final String clientAddress;
+    private final Connection<?> connection;
+    private final Closeable requestCloseable;
+    // - HTTP/2 stream or the connection: it is closed when the client cancels the request
+    private final CloseListener<Closeable, ICloseType> closeListener = (closeable, type) -> onDisconnection();
+    private volatile Consumer<ReadTask> disconnectionHandler = null;
+    private volatile boolean watchingDisconnection = false;
+    private volatile Consumer<ReadTask> closingHandler = null;
+    private final boolean multiplexedConnection;
     private final PlanePyramidData previousCachedData;
     private final boolean alreadyInClientCache;
-    private byte[] responseBytes;
-    private int responseBytesCurrentOffset;
+    private final String ifNoneMatch;
+    private final long ifModifiedSince;
+    private long dataLastModifiedTime;
+    private PlanePyramidData responseData;
+    private ByteBuffer responseBuffer;
+    private PlanePyramidData dataToRelease = null;
+    // - data, received from the cache, which must be released after sending
 
     private final long taskCreationTimeStamp = GLOBAL_TIME_STAMP.getAndIncrement();
+    private final long schedulingOrder;
+    // - tasks with equal priority are performed in increasing order of this value
+    private final double schedulingWeight;
 
     private volatile boolean sendingDataStarted = false;
     private volatile boolean cancelled = false;
+    private volatile boolean disconnected = false;
     private volatile boolean closed = false;
+    private volatile boolean followersCompleted = false;
+    // - true if identical tasks have already received the data of this task
+    private volatile boolean dataPrefetched = false;
     private volatile long lastAccessTime;
+    private volatile HashedTimerWheel.Timeout timeout = null;
+    // - expiration of this task in the timer wheel of activeTaskSet
 
     ReadTask(
         Request request,
@@ -72,27 +129,113 @@ final class ReadTask implements Comparable<ReadTask> {
         PlanePyramidRequest pyramidRequest,
         PlanePyramidPool pyramidPool,
         ReadActiveTaskSet activeTaskSet,
-        PlanePyramidDataCache cache)
+        ReadInFlightTaskMap inFlightTasks,
+        PlanePyramidDataCache cache,
+        ReadMemoryBudget memoryBudget,
+        ReadDataValidators validators)
     {
-        this.response = Objects.requireNonNull(response);
+        this(request, response, null, -1, pyramidRequest,
+            pyramidPool, activeTaskSet, inFlightTasks, cache, memoryBudget, validators);
+    }
+
+    /**
+     * Creates a part of the batch: the data will be sent by the batch, together with the data of other parts.
+     * Such task ignores conditional headers of the request and should not watch the connection itself.
+     */
+    ReadTask(
+        Request request,
+        ReadBatchTask batch,
+        int batchIndex,
+        PlanePyramidRequest pyramidRequest,
+        PlanePyramidPool pyramidPool,
+        ReadActiveTaskSet activeTaskSet,
+        ReadInFlightTaskMap inFlightTasks,
+        PlanePyramidDataCache cache,
+        ReadMemoryBudget memoryBudget,
+        ReadDataValidators validators)
+    {
+        this(request, batch.response(), batch, batchIndex, pyramidRequest,
+            pyramidPool, activeTaskSet, inFlightTasks, cache, memoryBudget, validators);
+    }
+
+    /**
+     * Creates a prefetching task: it has no client and only reads the data into the cache.
+     * Such task has {@link #PREFETCHING_PRIORITY the lowest priority}; if identical requests of clients
+     * are attached to it while it is performed, they receive its data as from any other task.
+     */
+    ReadTask(
+        PlanePyramidRequest pyramidRequest,
+        PlanePyramidPool pyramidPool,
+        ReadActiveTaskSet activeTaskSet,
+        ReadInFlightTaskMap inFlightTasks,
+        PlanePyramidDataCache cache,
+        ReadMemoryBudget memoryBudget,
+        ReadDataValidators validators)
+    {
+        this(null, null, null, -1, pyramidRequest,
+            pyramidPool, activeTaskSet, inFlightTasks, cache, memoryBudget, validators);
+    }
+
+    private ReadTask(
+        Request request,
+        Response response,
+        ReadBatchTask batch,
+        int batchIndex,
+        PlanePyramidRequest pyramidRequest,
+        PlanePyramidPool pyramidPool,
+        ReadActiveTaskSet activeTaskSet,
+        ReadInFlightTaskMap inFlightTasks,
+        PlanePyramidDataCache cache,
+        ReadMemoryBudget memoryBudget,
+        ReadDataValidators validators)
+    {
+        this.prefetching = request == null;
+        this.response = prefetching ? null : Objects.requireNonNull(response);
+        this.batch = batch;
+        this.batchIndex = batchIndex;
         this.pyramidRequest = Objects.requireNonNull(pyramidRequest);
         this.pyramidPool = Objects.requireNonNull(pyramidPool);
         this.activeTaskSet = Objects.requireNonNull(activeTaskSet);
+        this.inFlightTasks = Objects.requireNonNull(inFlightTasks);
         this.cache = Objects.requireNonNull(cache);
+        this.memoryBudget = Objects.requireNonNull(memoryBudget);
+        this.validators = Objects.requireNonNull(validators);
+        this.priority = prefetching ? PREFETCHING_PRIORITY : pyramidRequest.priority();
+        final boolean watchedRequest = batch == null && !prefetching;
+        // - a batch watches the connection itself, and a prefetching task has no connection
+        this.clientAddress = prefetching ? null : request.getRemoteAddr();
+        this.connection = watchedRequest ? request.getContext().getConnection() : null;
+        this.requestCloseable = watchedRequest ? requestCloseable(request) : null;
+        this.multiplexedConnection = !prefetching && isMultiplexed(request);
+        this.schedulingOrder = schedulingOrder(pyramidRequest, taskCreationTimeStamp);
+        this.schedulingWeight = schedulingWeight(pyramidRequest);
+        // - parsed here, not while adding to the queue: it is performed under the lock of the queue
         this.previousCachedData = cache.get(pyramidRequest);
-        final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        this.ifNoneMatch = watchedRequest ? request.getHeader("If-None-Match") : null;
+        this.ifModifiedSince = watchedRequest ? request.getDateHeader("If-Modified-Since") : -1;
+        final long checkedDataLastModifiedTime =
+            validators.checkedDataLastModifiedTime(pyramidRequest.getPyramidUniqueId());
+        this.dataLastModifiedTime = Math.max(-1, checkedDataLastModifiedTime);
         this.alreadyInClientCache =
             previousCachedData != null
-                && ifModifiedSince != -1
-                && previousCachedData.getCreationTime() < ifModifiedSince + 1000;
-        // the 2nd check is to be on the safe side: usually these data are never modified
+                && checkedDataLastModifiedTime != ReadDataValidators.NOT_CHECKED
+                && isNotModified(previousCachedData);
+        // - if the modification time is not checked yet, it will be checked by perform method
         if (alreadyInClientCache) {
+            previousCachedData.release();
             LOG.config("Not modified (304): " + this);
             response.setStatus(304, "Not modified");
+            if (dataLastModifiedTime >= 0) {
+                ReadDataValidators.setHeaders(response, eTag(), dataLastModifiedTime);
+            }
         } else {
+            this.dataToRelease = previousCachedData;
             resetTimeout();
-            this.response.suspend();
-            this.activeTaskSet.addTask(this);
+            if (watchedRequest) {
+                this.response.suspend();
+                // - the batch is suspended by itself
+            }
+            this.timeout = this.activeTaskSet.addTask(this, lastAccessTime + currentTimeoutDuration());
         }
     }
 
@@ -100,11 +243,81 @@ final class ReadTask implements Comparable<ReadTask> {
         return alreadyInClientCache;
     }
 
+    boolean isDataInCache() {
+        return previousCachedData != null;
+    }
+
+    PlanePyramidRequest pyramidRequest() {
+        return pyramidRequest;
+    }
+
+    boolean isDisconnected() {
+        return disconnected;
+    }
+
+    int batchIndex() {
+        return batchIndex;
+    }
+
+    int priority() {
+        return priority;
+    }
+
+    boolean isPrefetching() {
+        return prefetching;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this {@link #isPrefetching() prefetching} task has read its data into the cache.
+     *
+     * @return whether the data are prefetched.
+     */
+    boolean isDataPrefetched() {
+        return dataPrefetched;
+    }
+
+    boolean isTile() {
+        return pyramidRequest.tileLevel() >= 0;
+    }
+
+    long creationTimeStamp() {
+        return taskCreationTimeStamp;
+    }
+
+    /**
+     * Returns the key of the sub-queue of {@link ReadTaskQueue}, which should contain this task,
+     * or <tt>null</tt> if all tasks are stored in one common queue.
+     *
+     * @return the group of tasks, which are served in turn with other groups.
+     */
+    String schedulingGroup() {
+        switch (HttpPyramidConstants.READ_SCHEDULING_FAIRNESS) {
+            case "pyramid":
+                return pyramidRequest.getPyramidUniqueId();
+            case "client":
+                return clientAddress == null ? "" : clientAddress;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the relative share of reading threads, which should be given to the group of this task
+     * when there are tasks of several groups in the queue.
+     * For pyramid groups, it is specified by "schedulingWeight" value in the pyramid configuration json.
+     *
+     * @return the weight of the {@link #schedulingGroup() scheduling group}.
+     */
+    double schedulingWeight() {
+        return schedulingWeight;
+    }
+
     @Override
     public String toString() {
         return "ReadTask for request " + pyramidRequest
             + ", time since last access " + (System.currentTimeMillis() - lastAccessTime) + " ms"
-            + " (priority " + pyramidRequest.priority() + ", timestamp " + taskCreationTimeStamp + ")";
+            + " (priority " + priority + ", timestamp " + taskCreationTimeStamp
+            + (schedulingOrder != taskCreationTimeStamp ? ", scheduling order " + schedulingOrder : "") + ")";
     }
 
     // Equals and hashCode must be standard, for correct work of the set of active tasks
@@ -118,66 +331,348 @@ final class ReadTask implements Comparable<ReadTask> {
         return super.hashCode();
     }
 
+    /**
+     * Tasks are ordered by decreasing priority, then by increasing creation time. But in "viewport"
+     * {@link HttpPyramidConstants#TILE_SCHEDULING tile scheduling} mode, tiles are ordered by decreasing
+     * creation time (newest first), corrected by {@link HttpPyramidConstants#TILE_LEVEL_SCHEDULING_BONUS}
+     * in favour of coarser levels, and precede other tasks with the same priority.
+     */
     @Override
     public int compareTo(ReadTask o) {
-        final int p1 = pyramidRequest.priority();
-        final int p2 = o.pyramidRequest.priority();
+        final int p1 = priority;
+        final int p2 = o.priority;
         if (p1 != p2) {
             return p1 > p2 ? -1 : 1;
         }
+        if (schedulingOrder != o.schedulingOrder) {
+            return schedulingOrder < o.schedulingOrder ? -1 : 1;
+        }
         return taskCreationTimeStamp < o.taskCreationTimeStamp ? -1 :
             taskCreationTimeStamp > o.taskCreationTimeStamp ? 1 : 0;
     }
 
-    void perform() throws Exception {
+    /**
+     * Performs the input/output stage of this task: opening the pyramid and reading source data.
+     * Rendering and encoding the data, and then sending them, are performed by the given stages,
+     * maybe in other threads (but in the current thread in saving-memory mode, while the memory is reserved).
+     *
+     * <p>If the other stages are necessary, the service time of this task (the sum of the processing times
+     * of all its stages, without waiting in the queues of the stages) is passed to <tt>serviceTimeListener</tt>
+     * by the last of them. In other case, the caller should measure the service time itself.</p>
+     *
+     * @param renderingStage      the stage, performing {@link PlanePyramidStagedData#render()}.
+     * @param encodingStage       the stage, performing {@link PlanePyramidStagedData#encode()} and sending the data.
+     * @param serviceTimeListener receives the total service time of this task in nanoseconds.
+     * @return <tt>true</tt> if the task was passed to the other stages.
+     */
+    boolean perform(
+        ReadPipelineStage renderingStage,
+        ReadPipelineStage encodingStage,
+        ObjLongConsumer<ReadTask> serviceTimeListener)
+        throws Exception
+    {
+        final long startTime = System.nanoTime();
         if (closed) {
             throw new IllegalStateException("Perform method must not be called after closing task");
         }
         if (checkCancellingTask("Task cancelled because of too slow waiting in queue")) {
-            return;
+            cancelFollowers("Task cancelled because of too slow waiting in queue of the main task");
+            return false;
+        }
+        if (checkDisconnection("before reading")) {
+            return false;
         }
         LOG.config("Starting " + this);
         PlanePyramidData data = previousCachedData;
-        final boolean cacheable;
         if (data == null) {
-            final boolean savingMemoryMode = pyramidRequest.isSavingMemoryMode();
-            if (savingMemoryMode) {
-                GLOBAL_LOCK.lock();
-            }
+            data = cache.get(pyramidRequest);
+            // - maybe, the same data were loaded by another task while this task was waiting in the queue
+            dataToRelease = data;
+        }
+        if (data != null) {
+            // Note: we don't read the pyramid if the data are already in cache; but we may need to access it
+            // to learn the modification time of its data, because the validators must not depend on the cache
+            LOG.config("Data loaded from cache: " + this);
             try {
-                long t1 = DETAILED_LOG ? System.nanoTime() : 0;
-                final String pyramidUniqueId = pyramidRequest.getPyramidUniqueId();
+                updateDataLastModifiedTime();
+            } catch (Throwable t) {
+                for (ReadTask follower : inFlightTasks.complete(this)) {
+                    follower.cancelTaskOnException(t);
+                }
+                throw t;
+            }
+            if (data.getDataLastModifiedTime() >= 0 && data.getDataLastModifiedTime() != dataLastModifiedTime) {
+                LOG.config("Cached data are obsolete, the pyramid data were modified: " + this);
+                data.release();
+                dataToRelease = null;
+                data = null;
+                // - we will read new data; they will replace the obsolete data in the cache
+            }
+        }
+        if (data != null) {
+            boolean notModified = false;
+            List<ReadTask> followers = null;
+            if (isNotModified(data)) {
+                notModified = true;
+                followers = inFlightTasks.complete(this);
+                if (followers.isEmpty()) {
+                    sendNotModified();
+                    return false;
+                }
+            }
+            completeReading(data, true, notModified, followers);
+            // Obviously, if the data appeared in cache, the pyramid was cacheable
+            return false;
+        }
+        final boolean cacheable;
+        boolean notModified = false;
+        List<ReadTask> followers = null;
+        final PlanePyramidStagedData stagedData;
+        final boolean savingMemoryMode = pyramidRequest.isSavingMemoryMode();
+        long reservedMemory = 0;
+        try {
+            long t1 = DETAILED_LOG ? System.nanoTime() : 0;
+            final String pyramidUniqueId = pyramidRequest.getPyramidUniqueId();
+            try (PlanePyramidPool.Lease lease = pyramidPool.acquireHttpPlanePyramid(
+                pyramidUniqueId, savingMemoryMode))
+            {
+                // - the pool will not free the pyramid resources while we read its data
 //                try {Thread.sleep(5000);} catch (InterruptedException e) {}
-                final PlanePyramid pyramid = pyramidPool.getHttpPlanePyramid(pyramidUniqueId, savingMemoryMode);
+                final PlanePyramid pyramid = lease.getPyramid();
                 long t2 = DETAILED_LOG ? System.nanoTime() : 0;
+                if (checkDisconnection("after opening pyramid")) {
+                    return false;
+                }
+                // - opening pyramid can be long; reading data is usually even longer
                 cacheable = pyramid.isCacheable();
-                data = pyramid.read(pyramidRequest);
-                if (cacheable) {
-                    cache.put(pyramidRequest, data);
+                validators.update(pyramidUniqueId, pyramid);
+                dataLastModifiedTime = cacheable ? pyramid.dataLastModifiedTime() : -1;
+                if (dataLastModifiedTime >= 0 && ReadDataValidators.isNotModified(
+                    ifNoneMatch, ifModifiedSince, eTag(), dataLastModifiedTime))
+                {
+                    notModified = true;
+                    followers = inFlightTasks.complete(this);
+                    if (followers.isEmpty()) {
+                        sendNotModified();
+                        return false;
+                    }
+                    // - in other case, we still need to read data for identical tasks
+                }
+                if (savingMemoryMode) {
+                    reservedMemory = reserveMemory(pyramid);
                 }
+                stagedData = pyramid.readSource(pyramidRequest);
                 long t3 = DETAILED_LOG ? System.nanoTime() : 0;
                 if (DETAILED_LOG) {
                     LOG.config(String.format(Locale.US,
-                        "Data loaded in %s: getting pyramid %.3f ms, reading data %.3f ms",
+                        "Source data loaded in %s: getting pyramid %.3f ms, reading data %.3f ms",
                         this, (t2 - t1) * 1e-6, (t3 - t2) * 1e-6));
                 }
-            } finally {
                 if (savingMemoryMode) {
-                    GLOBAL_LOCK.unlock();
+                    // - all stages must be performed while the memory is reserved
+                    stagedData.render();
+                    data = stagedData.encode();
+                }
+            } finally {
+                memoryBudget.release(reservedMemory);
+            }
+        } catch (Throwable t) {
+            for (ReadTask follower : followers != null ? followers : inFlightTasks.complete(this)) {
+                follower.cancelTaskOnException(t);
+            }
+            throw t;
+        }
+        if (data != null) {
+            completeReadingNewData(data, cacheable, notModified, followers);
+            return false;
+        }
+        final boolean finalNotModified = notModified;
+        final List<ReadTask> finalFollowers = followers;
+        // - if not null, these followers are already unregistered, and we must finish reading data for them
+        final long sourceTime = System.nanoTime() - startTime;
+        renderingStage.execute(() -> {
+            final long renderingStartTime = System.nanoTime();
+            final boolean rendered = performStage(finalFollowers, () -> {
+                if (finalFollowers == null && checkDisconnection("before rendering")) {
+                    return false;
+                }
+                stagedData.render();
+                return true;
+            });
+            final long renderedTime = sourceTime + (System.nanoTime() - renderingStartTime);
+            if (!rendered) {
+                serviceTimeListener.accept(this, renderedTime);
+                return;
+            }
+            encodingStage.execute(() -> {
+                final long encodingStartTime = System.nanoTime();
+                performStage(finalFollowers, () -> {
+                    if (finalFollowers == null && checkDisconnection("before encoding")) {
+                        return false;
+                    }
+                    final PlanePyramidData encodedData = stagedData.encode();
+                    completeReadingNewData(encodedData, cacheable, finalNotModified, finalFollowers);
+                    return true;
+                });
+                serviceTimeListener.accept(this, renderedTime + (System.nanoTime() - encodingStartTime));
+            });
+        });
+        return true;
+    }
+
+    private long reserveMemory(PlanePyramid pyramid) throws IOException, InterruptedException {
+        final long estimatedMemory = pyramidRequest.estimatedMemoryUsage(pyramid.readInformation());
+        final long result = memoryBudget.acquire(
+            estimatedMemory, HttpPyramidConstants.SERVER_WAITING_IN_QUEUE_AND_READING_TIMEOUT);
+        if (result == 0) {
+            throw new IOException("Timeout while waiting for memory for saving-memory request ("
+                + (estimatedMemory == Long.MAX_VALUE ? "unknown size" : estimatedMemory + " bytes") + ")");
+        }
+        LOG.config("Reserved " + result + " bytes of memory for " + this);
+        return result;
+    }
+
+    private boolean performStage(List<ReadTask> followers, Stage stage) {
+        try {
+            return stage.perform();
+        } catch (Throwable t) {
+            if (!followersCompleted) {
+                for (ReadTask follower : followers != null ? followers : inFlightTasks.complete(this)) {
+                    follower.cancelTaskOnException(t);
                 }
             }
+            cancelTaskOnException(t);
+            return false;
+        }
+    }
+
+    private void completeReadingNewData(
+        PlanePyramidData data,
+        boolean cacheable,
+        boolean notModified,
+        List<ReadTask> followers)
+        throws IOException
+    {
+        if (cacheable) {
+            cache.put(pyramidRequest, data);
+        }
+        completeReading(data, cacheable, notModified, followers);
+    }
+
+    private void completeReading(
+        PlanePyramidData data,
+        boolean cacheable,
+        boolean notModified,
+        List<ReadTask> followers)
+        throws IOException
+    {
+        if (followers == null) {
+            followers = inFlightTasks.complete(this);
+        }
+        followersCompleted = true;
+        for (ReadTask follower : followers) {
+            LOG.config("Data shared with the identical " + follower);
+            try {
+                follower.sendSharedData(data, cacheable, dataLastModifiedTime);
+            } catch (Throwable t) {
+                follower.cancelTaskOnException(t);
+            }
+        }
+        if (notModified) {
+            sendNotModified();
         } else {
-            // Note: we don't access pyramid at all if the data are already in cache
-            LOG.config("Data loaded from cache: " + this);
-            cacheable = true;
-            // Obviously, if the data appeared in cache, the pyramid was cacheable
+            sendData(data, cacheable);
+        }
+    }
+
+    private void sendSharedData(PlanePyramidData data, boolean cacheable, long dataLastModifiedTime)
+        throws IOException
+    {
+        this.dataToRelease = data.retain();
+        // - the data may be released by the main task before this task finishes sending them
+        this.dataLastModifiedTime = dataLastModifiedTime;
+        sendData(dataToRelease, cacheable);
+    }
+
+    private void sendNotModified() {
+        LOG.config("Not modified (304): " + this);
+        if (prefetching) {
+            // - impossible: prefetching task has no conditional headers
+            closeTask(false);
+            return;
+        }
+        response.setStatus(304, "Not modified");
+        if (dataLastModifiedTime >= 0) {
+            ReadDataValidators.setHeaders(response, eTag(), dataLastModifiedTime);
+        }
+        closeTask(false);
+    }
+
+    private void updateDataLastModifiedTime() throws Exception {
+        final String pyramidUniqueId = pyramidRequest.getPyramidUniqueId();
+        final long checkedDataLastModifiedTime = validators.checkedDataLastModifiedTime(pyramidUniqueId);
+        if (checkedDataLastModifiedTime != ReadDataValidators.NOT_CHECKED) {
+            dataLastModifiedTime = checkedDataLastModifiedTime;
+            return;
+        }
+        try (PlanePyramidPool.Lease lease = pyramidPool.acquireHttpPlanePyramid(
+            pyramidUniqueId, pyramidRequest.isSavingMemoryMode()))
+        {
+            // - usually the pyramid is already in the pool, and it is quick enough
+            final PlanePyramid pyramid = lease.getPyramid();
+            validators.update(pyramidUniqueId, pyramid);
+            dataLastModifiedTime = pyramid.isCacheable() ? pyramid.dataLastModifiedTime() : -1;
+        }
+    }
+
+    private boolean isNotModified(PlanePyramidData cachedData) {
+        if (dataLastModifiedTime >= 0) {
+            return ReadDataValidators.isNotModified(ifNoneMatch, ifModifiedSince, eTag(), dataLastModifiedTime);
+        }
+        return ifNoneMatch == null
+            && ifModifiedSince != -1
+            && cachedData.getCreationTime() < ifModifiedSince + 1000;
+        // - old style check, when the modification time of the pyramid data is unknown;
+        // the 2nd check is to be on the safe side: usually these data are never modified
+    }
+
+    private String eTag() {
+        return ReadDataValidators.eTag(pyramidRequest, dataLastModifiedTime);
+    }
+
+    private void sendData(PlanePyramidData data, boolean cacheable) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Task is already closed");
         }
         if (checkCancellingTask("Task cancelled because of too slow reading pyramid")) {
             return;
         }
+        if (disconnected) {
+            LOG.config("Client disconnected, data are not sent: " + this);
+            closeTask(false);
+            return;
+        }
+        if (batch != null) {
+            batch.sendPart(this, data);
+            closeTask(false);
+            return;
+        }
+        if (prefetching) {
+            dataPrefetched = cacheable;
+            // - the data of not cacheable pyramid are not saved anywhere
+            LOG.fine("Data prefetched: " + this);
+            closeTask(false);
+            return;
+        }
+        stopWatchingDisconnection();
+        // - if the client disconnects while sending, it will be detected by the write handler
         response.setContentType(data.getContentMIMEType());
         if (cacheable) {
-            response.setDateHeader("Last-Modified", data.getCreationTime());
+            if (dataLastModifiedTime >= 0) {
+                ReadDataValidators.setHeaders(response, eTag(), dataLastModifiedTime);
+            } else {
+                response.setDateHeader("Last-Modified", data.getCreationTime());
+            }
         } else {
             response.setHeader("Cache-Control", "no-cache");
         }
@@ -188,19 +683,247 @@ final class ReadTask implements Comparable<ReadTask> {
             closeTask(false);
             return;
         }
-        this.responseBytes = data.getBytes();
+        this.responseData = data;
+        this.responseBuffer = data.getByteBuffer();
+        // - usually it is a wrapper for the internal array or a buffer outside the Java heap: no copying here
         this.sendingDataStarted = true;
         this.resetTimeout();
-        LOG.fine("Sending " + responseBytes.length + " bytes...");
-        this.responseBytesCurrentOffset = 0;
-        response.setContentLength(responseBytes.length);
+        final int length = responseBuffer.remaining();
+        LOG.fine("Sending " + length + " bytes...");
+        response.setContentLength(length);
         response.getNIOOutputStream().notifyCanWrite(new ReadTaskWriteHandler(response.getNIOOutputStream()));
     }
 
+    /**
+     * Starts watching the connection with the client: when the client disconnects or, for HTTP/2,
+     * cancels the stream of this request, this task becomes
+     * {@link #isDisconnected() disconnected} and the handler is called (in a Grizzly thread).
+     * Must be called before the task is queued or attached to another task, because the handler is called
+     * at once if the connection is already closed.
+     *
+     * @param disconnectionHandler the handler, which should remove this task from the queue, if possible,
+     *                             and call {@link #closeOnDisconnection()}.
+     */
+    void watchDisconnection(Consumer<ReadTask> disconnectionHandler) {
+        this.disconnectionHandler = Objects.requireNonNull(disconnectionHandler);
+        if (connection != null) {
+            watchingDisconnection = true;
+            requestCloseable.addCloseListener(closeListener);
+            if (!multiplexedConnection) {
+                try {
+                    connection.enableIOEvent(IOEvent.READ);
+                    // - while the response is suspended, Grizzly does not read the connection and cannot notice
+                    // that it is closed by the client
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Cannot watch the connection", e);
+                    // - not a problem: usually it means that the connection is already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the handler, which is called once when this task is closed: after sending (or, for prefetching task,
+     * caching) the data, on error, on cancelling or after removing from the queue.
+     * Must be called before the task is queued.
+     *
+     * @param closingHandler the handler.
+     */
+    void setClosingHandler(Consumer<ReadTask> closingHandler) {
+        this.closingHandler = Objects.requireNonNull(closingHandler);
+    }
+
+    private void stopWatchingDisconnection() {
+        if (!watchingDisconnection) {
+            return;
+        }
+        watchingDisconnection = false;
+        requestCloseable.removeCloseListener(closeListener);
+        // - the connection can be reused by the client for further requests
+        if (multiplexedConnection) {
+            return;
+        }
+        try {
+            disableReading(connection).get(DISABLING_READING_TIMEOUT, TimeUnit.MILLISECONDS);
+            // - must be done before sending any response: in other case, Grizzly could start reading
+            // the next request of the client before finishing this one; it will be enabled again
+            // after resuming the response by enableReading
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            LOG.log(Level.FINE, "Cannot stop watching the connection", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Disables reading the HTTP/1.x connection, enabled by {@link #watchDisconnection}, in the selector thread
+     * of this connection. Grizzly enables reading in another thread by a task, queued to the selector thread,
+     * but disables it at once; so, direct disabling could be overridden by our enabling, which is still
+     * in the queue. Then Grizzly would read the next keep-alive request of the client while the current
+     * response is suspended, and that request would wait for the idle timeout (~30 seconds).
+     * The queued task keeps the order of our enabling, this disabling and the enabling by Grizzly
+     * after resuming the response.
+     *
+     * @param connection HTTP/1.x connection.
+     * @return future, which is done when reading is disabled.
+     */
+    static Future<?> disableReading(Connection<?> connection) throws IOException {
+        if (!(connection instanceof NIOConnection) || ((NIOConnection) connection).getSelectorRunner() == null) {
+            connection.disableIOEvent(IOEvent.READ);
+            return Futures.createReadyFuture(null);
+        }
+        final NIOConnection nioConnection = (NIOConnection) connection;
+        final FutureImpl<SelectorHandler.Task> result = Futures.createSafeFuture();
+        ((NIOTransport) nioConnection.getTransport()).getSelectorHandler().execute(
+            nioConnection.getSelectorRunner(),
+            () -> {
+                nioConnection.disableIOEvent(IOEvent.READ);
+                return true;
+            },
+            Futures.toCompletionHandler(result));
+        // - performed at once, if we are in the selector thread
+        return result;
+    }
+
+    /**
+     * Enables reading the HTTP/1.x connection after resuming the response, suspended while reading
+     * was disabled by {@link #disableReading}. Usually Grizzly enables it itself, but Grizzly HTTP/2 filter,
+     * after serving HTTP/2 streams, sometimes loses this enabling; then the next keep-alive request
+     * of the client waits for the idle timeout (~30 seconds). Repeated enabling does nothing.
+     *
+     * @param connection HTTP/1.x connection.
+     */
+    static void enableReading(Connection<?> connection) {
+        try {
+            connection.enableIOEvent(IOEvent.READ);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Cannot enable reading the connection", e);
+            // - not a problem: usually it means that the connection is already closed
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the connection of this request is shared by several simultaneous requests
+     * (HTTP/2 streams). Such connection is always read by Grizzly, and we must not disable reading it.
+     *
+     * @param request HTTP request.
+     * @return whether the request is one of the streams of HTTP/2 connection.
+     */
+    static boolean isMultiplexed(Request request) {
+        return request.getProtocol() == Protocol.HTTP_2_0;
+    }
+
+    /**
+     * Returns the object, which is closed when the client cancels the request: HTTP/2 stream
+     * (it becomes not open after RST_STREAM frame of the client, though its close listeners are called
+     * only after finishing the response: see {@link #checkDisconnection(String)})
+     * or the connection itself for HTTP/1.x.
+     *
+     * @param request HTTP request.
+     * @return the object, which should be watched by a close listener to detect cancelling the request.
+     */
+    static Closeable requestCloseable(Request request) {
+        if (isMultiplexed(request)) {
+            final Http2Stream stream = Http2Stream.getStreamFor(request.getRequest());
+            if (stream != null) {
+                return stream;
+            }
+        }
+        return request.getContext().getConnection();
+    }
+
+    /**
+     * Closes the output stream of the suspended response before resuming it.
+     * The output stream of HTTP/2 stream is not closed here: Grizzly HTTP/2 filter ends the stream itself
+     * while {@link Response#resume() resuming} the response, and closing it before resuming
+     * (in a thread, which is not a Grizzly thread) could send the end of the stream twice.
+     *
+     * @param outputStream output stream of the response.
+     * @param multiplexed  whether the response is sent via HTTP/2 stream: see {@link #isMultiplexed(Request)}.
+     */
+    static void closeResponseStream(NIOOutputStream outputStream, boolean multiplexed) throws IOException {
+        if (!multiplexed) {
+            outputStream.close();
+            // - stream must be closed before closeTask to avoid exceptions
+        }
+    }
+
+    /**
+     * Closes the disconnected task, which is not performed and will not be performed.
+     */
+    void closeOnDisconnection() {
+        LOG.config("Client disconnected, task removed: " + this);
+        closeTask(false);
+    }
+
+    /**
+     * Closes the prefetching task, which is not performed and will not be performed: it is removed
+     * from the queue or not queued at all.
+     */
+    void closeUnnecessaryPrefetching() {
+        LOG.config("Prefetching task is removed or not queued: " + this);
+        closeTask(false);
+    }
+
+    void reject(String reason, long retryAfterInSeconds) {
+        for (ReadTask follower : inFlightTasks.complete(this)) {
+            follower.reject(reason, retryAfterInSeconds);
+        }
+        LOG.log(prefetching ? Level.CONFIG : Level.WARNING, reason + ": " + this);
+        if (batch != null) {
+            batch.failPart(this, 503, reason);
+        } else if (!prefetching) {
+            response.setStatus(503, reason);
+            response.setHeader("Retry-After", String.valueOf(retryAfterInSeconds));
+        }
+        closeTask(true);
+    }
+
+    private void cancelFollowers(String msg) {
+        for (ReadTask follower : inFlightTasks.complete(this)) {
+            LOG.log(Level.WARNING, msg);
+            follower.setErrorStatus(500, msg);
+            follower.closeTask(true);
+        }
+    }
+
+    private boolean checkDisconnection(String stage) {
+        if (batch != null) {
+            batch.checkStreamReset();
+        } else if (multiplexedConnection && !disconnected && !requestCloseable.isOpen()) {
+            LOG.config("HTTP/2 stream is reset by the client: " + this);
+            onDisconnection();
+            // - Grizzly does not call close listeners of HTTP/2 stream, reset by the client (RST_STREAM frame),
+            // until the response is finished; but the stream is not open since that moment
+        }
+        if (disconnected && inFlightTasks.completeIfNoFollowers(this)) {
+            // - if other tasks wait for the data of this one, we still need to read them
+            LOG.config("Client disconnected, task skipped " + stage + ": " + this);
+            closeTask(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Informs this task that the client has disconnected. Usually called by the close listener of the connection,
+     * but for parts of a batch it is called by the batch.
+     */
+    void onDisconnection() {
+        if (closed) {
+            return;
+        }
+        disconnected = true;
+        final Consumer<ReadTask> handler = disconnectionHandler;
+        if (handler != null) {
+            handler.accept(this);
+        }
+    }
+
     private boolean checkCancellingTask(String msg) {
         if (cancelled) {
-            LOG.log(Level.WARNING, msg);
-            response.setStatus(500, msg);
+            LOG.log(prefetching ? Level.CONFIG : Level.WARNING, msg);
+            setErrorStatus(500, msg);
             closeTask(true);
             return true;
         }
@@ -209,41 +932,110 @@ final class ReadTask implements Comparable<ReadTask> {
 
     void cancelIfObsolete() {
 //        System.out.println("Task " + this + " time " + (System.currentTimeMillis() - startTimeInMilliseconds));
-        if (System.currentTimeMillis() - lastAccessTime >
-            (sendingDataStarted ?
-                HttpPyramidConstants.SERVER_SENDING_TIMEOUT :
-                HttpPyramidConstants.SERVER_WAITING_IN_QUEUE_AND_READING_TIMEOUT))
-        {
-            activeTaskSet.removeTask(this);
+        if (System.currentTimeMillis() - lastAccessTime > currentTimeoutDuration()) {
+            activeTaskSet.removeTask(timeout);
             // the same action is done while closeTask, but we have no strict guarantees
             // that closeTask will be called
             this.cancelled = true;
+        } else if (!closed) {
+            // - very improbable: the timeout was reset while the timer wheel was processing it
+            this.timeout = activeTaskSet.addTask(this, lastAccessTime + currentTimeoutDuration());
         }
     }
 
     void cancelTaskOnException(Throwable t) {
-        LOG.log(Level.WARNING, "Error while reading image", t);
-        response.setStatus(500, "Error while reading image");
+        LOG.log(prefetching ? Level.FINE : Level.WARNING, "Error while reading image", t);
+        // - for prefetching task, it is not a problem: the client will probably not request these data
+        setErrorStatus(500, "Error while reading image");
         closeTask(cancelled);
     }
 
+    private void setErrorStatus(int code, String message) {
+        if (batch != null) {
+            batch.failPart(this, code, message);
+        } else if (!prefetching) {
+            response.setStatus(code, message);
+        }
+    }
+
     private void closeTask(boolean cancelled) {
-        activeTaskSet.removeTask(this);
+        activeTaskSet.removeTask(timeout);
+        stopWatchingDisconnection();
         if (cancelled) {
             LOG.info("Cancelling response");
         }
-        if (response.isSuspended()) {
+        if (batch != null) {
+            batch.onPartClosed(this);
+        } else if (prefetching) {
+            LOG.config("Prefetching task is closed: " + this);
+        } else if (response.isSuspended()) {
             response.resume();
+            if (connection != null && !multiplexedConnection) {
+                enableReading(connection);
+            }
             LOG.config("Response is resumed: " + this);
         } else {
             response.finish();
             LOG.config("Response is finished: " + this);
         }
+        if (dataToRelease != null) {
+            dataToRelease.release();
+            dataToRelease = null;
+        }
         closed = true;
+        final Consumer<ReadTask> handler = closingHandler;
+        closingHandler = null;
+        if (handler != null) {
+            handler.accept(this);
+        }
+    }
+
+    private static double schedulingWeight(PlanePyramidRequest pyramidRequest) {
+        if (!"pyramid".equals(HttpPyramidConstants.READ_SCHEDULING_FAIRNESS)) {
+            return HttpPyramidConstants.DEFAULT_READ_SCHEDULING_WEIGHT;
+        }
+        final String configuration = pyramidRequest.getPyramidUniqueId();
+        if (!configuration.contains(PyramidConstants.SCHEDULING_WEIGHT_NAME_IN_CONFIGURATION_JSON)) {
+            return HttpPyramidConstants.DEFAULT_READ_SCHEDULING_WEIGHT;
+            // - quick check: usually there is no weight in the configuration, and we need not parse it
+        }
+        final JsonNumber weight;
+        try {
+            weight = PyramidApiTools.configurationToJson(configuration).getJsonNumber(
+                PyramidConstants.SCHEDULING_WEIGHT_NAME_IN_CONFIGURATION_JSON);
+        } catch (IOException | ClassCastException e) {
+            // - invalid configuration will be reported while reading the pyramid
+            return HttpPyramidConstants.DEFAULT_READ_SCHEDULING_WEIGHT;
+        }
+        return weight == null || !(weight.doubleValue() > 0.0) ?
+            HttpPyramidConstants.DEFAULT_READ_SCHEDULING_WEIGHT :
+            Math.max(0.01, weight.doubleValue());
+    }
+
+    private static long schedulingOrder(PlanePyramidRequest pyramidRequest, long taskCreationTimeStamp) {
+        final int tileLevel = pyramidRequest.tileLevel();
+        if (tileLevel < 0 || !"viewport".equals(HttpPyramidConstants.TILE_SCHEDULING)) {
+            return taskCreationTimeStamp;
+        }
+        // Newest tiles first; the result is negative, so all tiles are performed before other tasks
+        // with the same priority (in the same sub-queue)
+        return -taskCreationTimeStamp + (long) tileLevel * HttpPyramidConstants.TILE_LEVEL_SCHEDULING_BONUS
+            - Long.MAX_VALUE / 2;
     }
 
     private void resetTimeout() {
         this.lastAccessTime = System.currentTimeMillis();
+        final HashedTimerWheel.Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.setDeadline(lastAccessTime + currentTimeoutDuration());
+            // - O(1): the timer wheel will move the timeout to the new position later
+        }
+    }
+
+    private long currentTimeoutDuration() {
+        return sendingDataStarted ?
+            HttpPyramidConstants.SERVER_SENDING_TIMEOUT :
+            HttpPyramidConstants.SERVER_WAITING_IN_QUEUE_AND_READING_TIMEOUT;
     }
 
     private class ReadTaskWriteHandler implements WriteHandler {
@@ -260,17 +1052,13 @@ final class ReadTask implements Comparable<ReadTask> {
             }
             resetTimeout();
 //                    try {Thread.sleep(1000);} catch (InterruptedException e) {}
-            final int len = Math.min(responseBytes.length - responseBytesCurrentOffset, CHUNK_SIZE);
-//                    System.out.printf("%d/%d bytes sending...%n", responseBytesCurrentOffset, responseBytes.length);
-            if (len > 0) {
-                outputStream.write(responseBytes, responseBytesCurrentOffset, len);
-                responseBytesCurrentOffset += len;
-            }
-            if (responseBytesCurrentOffset >= responseBytes.length) {
-                closeHandler(false);
-            } else {
-                outputStream.notifyCanWrite(this);
+            outputStream.write(new DataBufferWrapper(responseBuffer, responseData));
+            // - the whole data are passed to Grizzly by one call without copying;
+            // Grizzly will send them asynchronously and then release the data
+            if (responseData == dataToRelease) {
+                dataToRelease = null;
             }
+            closeHandler(false);
         }
 
         @Override
@@ -311,9 +1099,29 @@ final class ReadTask implements Comparable<ReadTask> {
         }
 
         private void closeHandler(boolean cancelled) throws IOException {
-            outputStream.close();
-            // - stream must be closed before closeTask to avoid exceptions
+            closeResponseStream(outputStream, multiplexedConnection);
             closeTask(cancelled);
         }
     }
+
+    static final class DataBufferWrapper extends ByteBufferWrapper {
+        private final PlanePyramidData data;
+
+        DataBufferWrapper(ByteBuffer buffer, PlanePyramidData data) {
+            super(buffer);
+            this.data = Objects.requireNonNull(data);
+            allowBufferDispose(true);
+        }
+
+        @Override
+        public void dispose() {
+            super.dispose();
+            data.release();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        boolean perform() throws Exception;
+    }
 }
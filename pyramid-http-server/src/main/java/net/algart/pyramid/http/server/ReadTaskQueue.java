@@ -24,27 +24,382 @@
 
 package net.algart.pyramid.http.server;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Bounded queue of reading tasks with admission control and fair scheduling.
+ *
+ * <p>Tasks are distributed between sub-queues according to {@link ReadTask#schedulingGroup()}
+ * (usually one sub-queue per pyramid). Sub-queues are served in turn by deficit round-robin algorithm:
+ * while it is the turn of some sub-queue, it gives up to {@link ReadTask#schedulingWeight() weight} tasks,
+ * so every group receives a share of reading threads proportional to its weight, regardless of the number
+ * of its tasks. Inside a sub-queue, tasks are ordered by decreasing priority, then by increasing creation time
+ * (but tiles may be ordered newest-first, see {@link ReadTask#compareTo(ReadTask)}).
+ * So, a batch job, sending thousands of requests to one pyramid, does not delay interactive users
+ * viewing other pyramids.</p>
+ *
+ * <p>When the queue is full, the oldest task with the lowest priority in the largest (relative to its weight)
+ * sub-queue is removed to free space for the new task (if the new task has not less priority).
+ * In "viewport" tile scheduling mode, tiles are removed before other tasks with the same priority:
+ * the oldest tile is removed, though it is not the last to be served (newer tiles and tiles of coarser levels
+ * are served first), because the user probably does not look at it anymore;
+ * when the estimated time of waiting in the queue is too large, the new task is not accepted.
+ * Rejected and removed tasks should be answered by "503 Service Unavailable" with Retry-After header.</p>
+ *
+ * <p>{@link ReadTask#isPrefetching() Prefetching} tasks are served only when there are no other tasks
+ * in all sub-queues, are not taken into account while estimating the waiting time of other tasks
+ * and are removed first when the queue is full.</p>
+ */
 final class ReadTaskQueue {
-    private static final int QUEUE_MAX_SIZE = 256;
-    private static final int POLL_TIMEOUT_IN_MILLISECONDS = 1000;
+    static final int POLL_TIMEOUT_IN_MILLISECONDS = 1000;
+    private static final double SERVICE_TIME_SMOOTHING = 0.05;
+    // - weight of the new measurement in the exponentially weighted moving average
 
-    private BlockingQueue<ReadTask> queue = new PriorityBlockingQueue<>(QUEUE_MAX_SIZE);
+    private final int capacity;
+    private final int numberOfThreads;
+    private final long maxWaitingTimeInNanoseconds;
+    private final Map<String, SubQueue> subQueues = new HashMap<>();
+    // - contains only non-empty sub-queues
+    private final ArrayDeque<SubQueue> activeSubQueues = new ArrayDeque<>();
+    // - the same sub-queues in the order of serving; the first one is served now
+    private int size = 0;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong numberOfRejectedTasks = new AtomicLong(0);
+    private final AtomicLong numberOfDroppedTasks = new AtomicLong(0);
+    private volatile double averageServiceTimeInNanoseconds = 0.0;
+    // - 0.0 means that it is still unknown
+
+    ReadTaskQueue(int capacity, int numberOfThreads, long maxWaitingTimeInMilliseconds) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Zero or negative queue capacity " + capacity);
+        }
+        if (numberOfThreads <= 0) {
+            throw new IllegalArgumentException("Zero or negative number of threads " + numberOfThreads);
+        }
+        this.capacity = capacity;
+        this.numberOfThreads = numberOfThreads;
+        this.maxWaitingTimeInNanoseconds = TimeUnit.MILLISECONDS.toNanos(maxWaitingTimeInMilliseconds);
+    }
 
-    void add(ReadTask task) {
-//        System.out.println("!!!Offering " + task);
-        if (!queue.offer(task)) {
-            throw new IllegalStateException("Task queue is full");
+    /**
+     * Adds the task to the queue, if it is possible. Returns the tasks, which must be rejected by the caller:
+     * usually it is an empty list, but it may contain the passed task (if it is not accepted)
+     * or older tasks, removed from the queue to free space for it.
+     *
+     * @param task new task.
+     * @return the tasks, which are not accepted or removed from the queue.
+     */
+    List<ReadTask> add(ReadTask task) {
+        List<ReadTask> rejected = Collections.emptyList();
+        final String group = task.schedulingGroup();
+        lock.lock();
+        try {
+//            System.out.println("!!!Offering " + task + " to " + group);
+            SubQueue subQueue = subQueues.get(group);
+            final double weight = subQueue != null ? subQueue.weight : task.schedulingWeight();
+            final double serviceTime = averageServiceTimeInNanoseconds;
+            if (serviceTime > 0.0) {
+                final double numberOfTasksBefore = numberOfTasksBefore(task, subQueue, weight);
+                if ((numberOfTasksBefore + 1) * serviceTime / numberOfThreads > maxWaitingTimeInNanoseconds) {
+                    numberOfRejectedTasks.incrementAndGet();
+                    return Collections.singletonList(task);
+                }
+            }
+            if (size >= capacity) {
+                final SubQueue victimSubQueue = victimSubQueue();
+                final ReadTask victim = victimSubQueue.oldestTaskWithLowestPriority();
+                if (victim.priority() > task.priority()) {
+                    numberOfRejectedTasks.incrementAndGet();
+                    return Collections.singletonList(task);
+                }
+                victimSubQueue.remove(victim);
+                size--;
+                if (victimSubQueue.tasks.isEmpty()) {
+                    removeSubQueue(victimSubQueue);
+                    if (victimSubQueue == subQueue) {
+                        subQueue = null;
+                    }
+                }
+                numberOfDroppedTasks.incrementAndGet();
+                rejected = Collections.singletonList(victim);
+            }
+            if (subQueue == null) {
+                subQueue = new SubQueue(group, weight);
+                subQueues.put(group, subQueue);
+                activeSubQueues.addLast(subQueue);
+            }
+            subQueue.add(task);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return rejected;
+    }
+
+    /**
+     * Removes the task from the queue, if it is still waiting there.
+     *
+     * @param task some task.
+     * @return <tt>true</tt> if the task was in the queue and is removed now.
+     */
+    boolean remove(ReadTask task) {
+        final String group = task.schedulingGroup();
+        lock.lock();
+        try {
+            final SubQueue subQueue = subQueues.get(group);
+            if (subQueue == null || !subQueue.remove(task)) {
+                return false;
+            }
+            size--;
+            if (subQueue.tasks.isEmpty()) {
+                removeSubQueue(subQueue);
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
     ReadTask pollOrNullAfterTimeout() throws InterruptedException {
-        final ReadTask result = queue.poll(POLL_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
-//        if (result != null) System.out.println("???Polling " + result);
+        long timeout = TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_IN_MILLISECONDS);
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (timeout <= 0) {
+                    return null;
+                }
+                timeout = notEmpty.awaitNanos(timeout);
+            }
+            final ReadTask result = pollNext();
+//            System.out.println("???Polling " + result);
+            return result;
+            // - timeout is necessary to allow shutdown: this method should never work infinitely
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addServiceTime(long serviceTimeInNanoseconds) {
+        lock.lock();
+        try {
+            final double serviceTime = averageServiceTimeInNanoseconds;
+            averageServiceTimeInNanoseconds = serviceTime == 0.0 ?
+                serviceTimeInNanoseconds :
+                serviceTime + SERVICE_TIME_SMOOTHING * (serviceTimeInNanoseconds - serviceTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks in the queue, excepting {@link ReadTask#isPrefetching() prefetching} tasks.
+     *
+     * @return the number of tasks, requested by clients.
+     */
+    int sizeWithoutPrefetching() {
+        lock.lock();
+        try {
+            return size - numberOfPrefetchingTasks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int numberOfSubQueues() {
+        lock.lock();
+        try {
+            return subQueues.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long numberOfRejectedTasks() {
+        return numberOfRejectedTasks.get();
+    }
+
+    long numberOfDroppedTasks() {
+        return numberOfDroppedTasks.get();
+    }
+
+    double averageServiceTimeInMilliseconds() {
+        return averageServiceTimeInNanoseconds * 1e-6;
+    }
+
+    /**
+     * Estimated time, after which the client may repeat the rejected request: the time of processing
+     * all tasks in the queue.
+     *
+     * @return recommended value of Retry-After header.
+     */
+    long retryAfterInSeconds() {
+        final double timeInSeconds = size() * averageServiceTimeInNanoseconds * 1e-9 / numberOfThreads;
+        return Math.max(1, (long) Math.ceil(timeInSeconds));
+    }
+
+    private ReadTask pollNext() {
+        final boolean onlyPrefetching = numberOfPrefetchingTasks() == size;
+        for (; ; ) {
+            final SubQueue subQueue = activeSubQueues.peekFirst();
+            assert subQueue != null : "no sub-queues in non-empty queue";
+            if (!onlyPrefetching && subQueue.tasks.first().isPrefetching()) {
+                activeSubQueues.pollFirst();
+                activeSubQueues.addLast(subQueue);
+                continue;
+                // - this sub-queue contains only prefetching tasks, which must wait for tasks of other sub-queues;
+                // its deficit is not increased: it does not use its turn
+            }
+            if (subQueue.deficit >= 1.0) {
+                subQueue.deficit -= 1.0;
+                final ReadTask result = subQueue.pollFirst();
+                size--;
+                if (subQueue.tasks.isEmpty()) {
+                    removeSubQueue(subQueue);
+                }
+                return result;
+            }
+            // - the turn of this sub-queue is over: it will continue in the next round
+            activeSubQueues.pollFirst();
+            subQueue.deficit += subQueue.weight;
+            activeSubQueues.addLast(subQueue);
+        }
+    }
+
+    private void removeSubQueue(SubQueue subQueue) {
+        subQueues.remove(subQueue.group);
+        activeSubQueues.remove(subQueue);
+        // - O(number of sub-queues), but usually the removed sub-queue is the first one
+    }
+
+    // Estimates the number of tasks, which will be polled before the given task, if it will be added now.
+    private double numberOfTasksBefore(ReadTask task, SubQueue subQueue, double weight) {
+        final int before = subQueue == null ? 0 : subQueue.tasks.headSet(task).size();
+        final double rounds = Math.ceil((before + 1) / weight);
+        double result = before;
+        for (SubQueue other : activeSubQueues) {
+            if (other != subQueue) {
+                final int otherSize = task.isPrefetching() ?
+                    other.tasks.size() :
+                    other.tasks.size() - other.numberOfPrefetchingTasks;
+                // - prefetching tasks of other sub-queues are served after this one
+                result += Math.min(otherSize, rounds * other.weight);
+            }
+        }
+        return result;
+    }
+
+    private int numberOfPrefetchingTasks() {
+        int result = 0;
+        for (SubQueue subQueue : activeSubQueues) {
+            result += subQueue.numberOfPrefetchingTasks;
+        }
         return result;
-        // - timeout is necessary to allow shutdown: this method should never work infinitely
     }
-}
\ No newline at end of file
+
+    // Prefetching tasks are removed first: they are the last tasks of their sub-queues, having the lowest priority
+    private SubQueue victimSubQueue() {
+        SubQueue result = null;
+        for (SubQueue subQueue : activeSubQueues) {
+            if (subQueue.numberOfPrefetchingTasks > 0
+                && (result == null || subQueue.numberOfPrefetchingTasks > result.numberOfPrefetchingTasks))
+            {
+                result = subQueue;
+            }
+        }
+        return result != null ? result : largestSubQueue();
+    }
+
+    private SubQueue largestSubQueue() {
+        SubQueue result = null;
+        for (SubQueue subQueue : activeSubQueues) {
+            if (result == null || subQueue.tasks.size() / subQueue.weight > result.tasks.size() / result.weight) {
+                result = subQueue;
+            }
+        }
+        return result;
+    }
+
+    private static final class SubQueue {
+        private final String group;
+        private final double weight;
+        private final TreeSet<ReadTask> tasks = new TreeSet<>();
+        // - ordered by ReadTask.compareTo: by decreasing priority, then in the order of serving
+        private double deficit;
+        private int numberOfPrefetchingTasks = 0;
+
+        private SubQueue(String group, double weight) {
+            this.group = group;
+            this.weight = weight;
+            this.deficit = weight;
+        }
+
+        private void add(ReadTask task) {
+            if (tasks.add(task) && task.isPrefetching()) {
+                numberOfPrefetchingTasks++;
+            }
+        }
+
+        private boolean remove(ReadTask task) {
+            if (!tasks.remove(task)) {
+                return false;
+            }
+            if (task.isPrefetching()) {
+                numberOfPrefetchingTasks--;
+            }
+            return true;
+        }
+
+        private ReadTask pollFirst() {
+            final ReadTask result = tasks.pollFirst();
+            if (result != null && result.isPrefetching()) {
+                numberOfPrefetchingTasks--;
+            }
+            return result;
+        }
+
+        private ReadTask oldestTaskWithLowestPriority() {
+            final boolean viewportMode = "viewport".equals(HttpPyramidConstants.TILE_SCHEDULING);
+            final Iterator<ReadTask> iterator = tasks.descendingIterator();
+            ReadTask result = iterator.next();
+            final int lowestPriority = result.priority();
+            while (iterator.hasNext()) {
+                final ReadTask task = iterator.next();
+                if (task.priority() != lowestPriority) {
+                    break;
+                }
+                if (viewportMode && task.isTile() != result.isTile()) {
+                    if (task.isTile()) {
+                        result = task;
+                    }
+                } else if (task.creationTimeStamp() < result.creationTimeStamp()) {
+                    result = task;
+                }
+            }
+            return result;
+            // - in "fifo" mode, it is the first of the tasks with the lowest priority;
+            // in "viewport" mode, the order of tiles depends also on their levels
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package net.algart.pyramid.http.server;
 
+import net.algart.pyramid.HashedTimerWheel;
 import net.algart.pyramid.PlanePyramidDataCache;
 import net.algart.pyramid.PlanePyramidPool;
 import net.algart.pyramid.api.http.HttpPyramidConstants;
@@ -31,34 +32,77 @@ import net.algart.pyramid.requests.PlanePyramidRequest;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
 
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 final class ReadThreadPool {
     private static final Logger LOG = Logger.getLogger(ReadThreadPool.class.getName());
-    private static final PlanePyramidDataCache PLANE_PYRAMID_IMAGE_CACHE =
-        new PlanePyramidDataCache(HttpPyramidConstants.IMAGE_CACHING_MEMORY);
+    private static final PlanePyramidDataCache PLANE_PYRAMID_IMAGE_CACHE = createImageCache();
+    private static final ReadMemoryBudget SAVING_MEMORY_BUDGET = new ReadMemoryBudget(
+        HttpPyramidConstants.SAVING_MEMORY_BUDGET);
 
     private final ReadTaskQueue queue;
     private final ReadActiveTaskSet activeTaskSet;
+    private final ReadInFlightTaskMap inFlightTasks;
     private final PlanePyramidDataCache imageCache;
-    private final Thread[] threads;
-    private final Thread cleaningThread;
+    private final ReadMemoryBudget memoryBudget;
+    private final ReadDataValidators validators;
+    private final ReadExecutor executor;
+    private final ReadPipelineStage renderingStage;
+    private final ReadPrefetcher prefetcher;
+    private final ReadPipelineStage encodingStage;
+    private final Thread dispatchingThread;
+    // - null if the executor is a pool of threads, which take tasks from the queue themselves
+    private final AtomicLong numberOfDisconnectedTasks = new AtomicLong(0);
+    private final AtomicLong numberOfRemovedDisconnectedTasks = new AtomicLong(0);
+    private final AtomicLong numberOfDisconnectedPerformedTasks = new AtomicLong(0);
     private volatile boolean shutdown = false;
 
-    ReadThreadPool(int poolSize) {
-        this.queue = new ReadTaskQueue();
-        this.activeTaskSet = new ReadActiveTaskSet();
+    ReadThreadPool(ReadExecutor executor) {
+        this.executor = Objects.requireNonNull(executor, "Null executor");
+        this.queue = new ReadTaskQueue(
+            HttpPyramidConstants.READ_QUEUE_CAPACITY,
+            executor.concurrency(),
+            HttpPyramidConstants.READ_QUEUE_MAX_WAITING_TIME);
+        this.activeTaskSet = new ReadActiveTaskSet(HashedTimerWheel.getSharedInstance());
+        this.inFlightTasks = new ReadInFlightTaskMap();
         this.imageCache = PLANE_PYRAMID_IMAGE_CACHE;
         // - using global cache for the process
-        this.threads = new Thread[poolSize];
-        for (int k = 0; k < threads.length; k++) {
-            threads[k] = new ReadImageThread();
-            threads[k].start();
-            LOG.config("Starting make-image thread #" + k);
-        }
-        this.cleaningThread = new CleaningTasksThread();
-        this.cleaningThread.start();
+        this.memoryBudget = SAVING_MEMORY_BUDGET;
+        // - and global memory budget
+        this.validators = new ReadDataValidators();
+        this.renderingStage = new ReadPipelineStage(
+            "rendering",
+            HttpPyramidConstants.RENDERING_THREAD_POOL_SIZE,
+            HttpPyramidConstants.PIPELINE_STAGE_QUEUE_CAPACITY);
+        this.encodingStage = new ReadPipelineStage(
+            "encoding",
+            HttpPyramidConstants.ENCODING_THREAD_POOL_SIZE,
+            HttpPyramidConstants.PIPELINE_STAGE_QUEUE_CAPACITY);
+        this.prefetcher = new ReadPrefetcher(queue, inFlightTasks, HttpPyramidConstants.TILE_PREFETCH_MAX_LOAD);
+        LOG.config("Starting " + executor);
+        if (executor.isThreadPerTask()) {
+            this.dispatchingThread = new DispatchingTasksThread();
+            this.dispatchingThread.start();
+        } else {
+            this.dispatchingThread = null;
+            for (int k = 0; k < executor.concurrency(); k++) {
+                executor.execute(new ReadImageLoop());
+            }
+        }
     }
 
     boolean createReadTask(
@@ -67,20 +111,243 @@ final class ReadThreadPool {
         PlanePyramidRequest pyramidRequest,
         PlanePyramidPool pyramidPool
     ) {
+        final long dataLastModifiedTime = validators.dataLastModifiedTime(pyramidRequest.getPyramidUniqueId());
+        if (dataLastModifiedTime >= 0) {
+            final String eTag = ReadDataValidators.eTag(pyramidRequest, dataLastModifiedTime);
+            if (ReadDataValidators.isNotModified(
+                request.getHeader("If-None-Match"), request.getDateHeader("If-Modified-Since"),
+                eTag, dataLastModifiedTime))
+            {
+                LOG.config("Not modified (304), no reading task created: " + pyramidRequest);
+                response.setStatus(304, "Not modified");
+                ReadDataValidators.setHeaders(response, eTag, dataLastModifiedTime);
+                return false;
+            }
+        }
         final ReadTask task = new ReadTask(
-            request, response, pyramidRequest, pyramidPool, activeTaskSet, imageCache);
-        final boolean result = !task.is304();
-        if (result) {
-            queue.add(task);
+            request, response, pyramidRequest, pyramidPool,
+            activeTaskSet, inFlightTasks, imageCache, memoryBudget, validators);
+        prefetcher.onClientRequest(pyramidRequest, task.isDataInCache());
+        if (task.is304()) {
+            return false;
+        }
+        task.watchDisconnection(this::cancelDisconnectedTask);
+        schedule(task);
+        return true;
+    }
+
+    void createBatchReadTask(
+        Request request,
+        Response response,
+        List<PlanePyramidRequest> pyramidRequests,
+        PlanePyramidPool pyramidPool
+    ) {
+        final ReadBatchTask batch = new ReadBatchTask(request, response, pyramidRequests.size());
+        final List<ReadTask> parts = new ArrayList<>();
+        for (int k = 0, n = pyramidRequests.size(); k < n; k++) {
+            final ReadTask part;
+            try {
+                part = new ReadTask(
+                    request, batch, k, pyramidRequests.get(k), pyramidPool,
+                    activeTaskSet, inFlightTasks, imageCache, memoryBudget, validators);
+                prefetcher.onClientRequest(part.pyramidRequest(), part.isDataInCache());
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Cannot create part #" + k + " of the batch: " + pyramidRequests.get(k), e);
+                batch.failNotCreatedPart(k, 500, "Cannot create reading task");
+                continue;
+            }
+            part.watchDisconnection(this::cancelDisconnectedTask);
+            batch.addPart(part);
+            parts.add(part);
+        }
+        // - all parts are created before scheduling: the batch must not finish after the first fast part
+        for (ReadTask part : parts) {
+            schedule(part);
         }
-        return result;
+    }
+
+    void prefetch(List<PlanePyramidRequest> pyramidRequests, PlanePyramidPool pyramidPool) {
+        Objects.requireNonNull(pyramidRequests, "Null pyramid requests");
+        Objects.requireNonNull(pyramidPool, "Null pyramid pool");
+        if (!prefetcher.isAllowed(pyramidRequests.size())) {
+            for (ReadTask task : prefetcher.tasksToCancel()) {
+                cancelPrefetching(task);
+            }
+            return;
+        }
+        for (PlanePyramidRequest pyramidRequest : pyramidRequests) {
+            final ReadTask task;
+            try {
+                task = new ReadTask(
+                    pyramidRequest, pyramidPool, activeTaskSet, inFlightTasks, imageCache, memoryBudget, validators);
+            } catch (RuntimeException e) {
+                prefetcher.onNotCreated(pyramidRequest, e);
+                continue;
+            }
+            if (prefetcher.register(task)) {
+                addToQueue(task);
+            }
+        }
+    }
+
+    private void schedule(ReadTask task) {
+        if (!task.isDataInCache()) {
+            final ReadTask leader = inFlightTasks.leader(task.pyramidRequest());
+            if (leader != null && leader.isPrefetching()) {
+                cancelPrefetching(leader);
+                // - the client should not wait for the prefetching task with the lowest priority
+            }
+            if (inFlightTasks.attachOrRegister(task)) {
+                LOG.config("Identical request is already being processed; waiting for its data: " + task);
+                return;
+            }
+        }
+        addToQueue(task);
+    }
+
+    /**
+     * Removes the prefetching task from the queue, if it is still waiting there; the client tasks,
+     * attached to it, are scheduled again. If the task is already performed, does nothing.
+     *
+     * @param task prefetching task.
+     */
+    private void cancelPrefetching(ReadTask task) {
+        if (!queue.remove(task)) {
+            return;
+        }
+        final List<ReadTask> followers = inFlightTasks.complete(task);
+        task.closeUnnecessaryPrefetching();
+        for (ReadTask follower : followers) {
+            schedule(follower);
+        }
+    }
+
+    private void addToQueue(ReadTask task) {
+        final List<ReadTask> rejectedTasks = queue.add(task);
+        if (!rejectedTasks.isEmpty()) {
+            final long retryAfter = queue.retryAfterInSeconds();
+            for (ReadTask rejectedTask : rejectedTasks) {
+                rejectedTask.reject(rejectedTask == task ?
+                        "Service overloaded, task rejected" :
+                        "Service overloaded, task removed from the queue",
+                    retryAfter);
+            }
+        }
+    }
+
+    private void cancelDisconnectedTask(ReadTask task) {
+        numberOfDisconnectedTasks.incrementAndGet();
+        if (inFlightTasks.detachFollower(task)
+            || (inFlightTasks.completeIfNoFollowers(task) && queue.remove(task)))
+        {
+            // - in other case, the task is already performed (or it must read data for other tasks),
+            // and it will check the disconnection itself
+            numberOfRemovedDisconnectedTasks.incrementAndGet();
+            task.closeOnDisconnection();
+        }
+    }
+
+    JsonObject statusJson(PlanePyramidPool pyramidPool) {
+        final JsonObjectBuilder builder = Json.createObjectBuilder();
+        builder.add("queue", Json.createObjectBuilder()
+            .add("size", queue.size())
+            .add("capacity", queue.capacity())
+            .add("schedulingFairness", HttpPyramidConstants.READ_SCHEDULING_FAIRNESS)
+            .add("subQueues", queue.numberOfSubQueues())
+            .add("rejectedTasks", queue.numberOfRejectedTasks())
+            .add("droppedTasks", queue.numberOfDroppedTasks())
+            .add("averageServiceTimeMs", queue.averageServiceTimeInMilliseconds())
+            .build());
+        builder.add("threadPoolMode", executor.mode().name().toLowerCase(Locale.US));
+        builder.add("numberOfThreads", executor.concurrency());
+        builder.add("pipeline", Json.createObjectBuilder()
+            .add("rendering", renderingStage.statusJson())
+            .add("encoding", encodingStage.statusJson())
+            .build());
+        builder.add("prefetching", prefetcher.statusJson());
+        builder.add("inFlightRequests", inFlightTasks.size());
+        final HashedTimerWheel timerWheel = activeTaskSet.timerWheel();
+        builder.add("timerWheel", Json.createObjectBuilder()
+            .add("activeTimeouts", timerWheel.numberOfActiveTimeouts())
+            .add("newTimeouts", timerWheel.numberOfNewTimeouts())
+            .add("expiredTimeouts", timerWheel.numberOfExpiredTimeouts())
+            .add("cancelledTimeouts", timerWheel.numberOfCancelledTimeouts())
+            .add("rearmedTimeouts", timerWheel.numberOfRearmedTimeouts())
+            .add("lagMs", timerWheel.lagInMilliseconds())
+            .build());
+        builder.add("disconnections", Json.createObjectBuilder()
+            .add("total", numberOfDisconnectedTasks.get())
+            .add("removedFromQueue", numberOfRemovedDisconnectedTasks.get())
+            .add("duringReading", numberOfDisconnectedPerformedTasks.get())
+            .build());
+        builder.add("knownDataModificationTimes", validators.size());
+        builder.add("pyramidPool", Json.createObjectBuilder()
+            .add("openedPyramids", pyramidPool.numberOfOpenedPyramids())
+            .add("averageOpeningTimeMs", pyramidPool.averageOpeningTimeInMilliseconds())
+            .add("maxOpeningTimeMs", pyramidPool.maxOpeningTimeInMilliseconds())
+            .add("deferredFreeings", pyramidPool.numberOfDeferredFreeings())
+            .add("evictedPyramids", pyramidPool.numberOfEvictedPyramids())
+            .add("estimatedMemory", pyramidPool.estimatedMemoryUsage())
+            .add("estimatedOpenFiles", pyramidPool.estimatedNumberOfOpenFiles())
+            .add("description", pyramidPool.toString())
+            .build());
+        builder.add("imageCache", imageCache.toString());
+        builder.add("savingMemoryBudget", memoryBudget.toString());
+        return builder.build();
     }
 
     void shutdown() {
         this.shutdown = true;
+        executor.shutdown();
+        renderingStage.shutdown();
+        encodingStage.shutdown();
+        // - reading loops will exit after the nearest timeout; already started tasks will be finished
+    }
+
+    private static PlanePyramidDataCache createImageCache() {
+        PlanePyramidDataCache diskCache = null;
+        if (HttpPyramidConstants.DISK_IMAGE_CACHING_FOLDER != null) {
+            try {
+                diskCache = PlanePyramidDataCache.newDiskCache(
+                    Paths.get(HttpPyramidConstants.DISK_IMAGE_CACHING_FOLDER),
+                    HttpPyramidConstants.DISK_IMAGE_CACHING_SPACE);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.SEVERE, "Cannot create disk cache; the service will work without it", e);
+            }
+        }
+        PlanePyramidDataCache offHeapCache = null;
+        if (HttpPyramidConstants.OFF_HEAP_IMAGE_CACHING_MEMORY > 0) {
+            offHeapCache = PlanePyramidDataCache.newOffHeapCache(HttpPyramidConstants.OFF_HEAP_IMAGE_CACHING_MEMORY)
+                .setNextLevel(diskCache);
+        }
+        return PlanePyramidDataCache.newConcurrentCache(HttpPyramidConstants.IMAGE_CACHING_MEMORY)
+            .setNextLevel(offHeapCache != null ? offHeapCache : diskCache);
+    }
+
+    private void performTask(ReadTask task) {
+        final long t1 = System.nanoTime();
+        boolean passedToStages = false;
+        try {
+            passedToStages = task.perform(renderingStage, encodingStage, this::addServiceTime);
+        } catch (Throwable t) {
+            task.cancelTaskOnException(t);
+        }
+        if (!passedToStages) {
+            addServiceTime(task, System.nanoTime() - t1);
+        }
+        // - in other case, the last stage of the task will call addServiceTime
+    }
+
+    private void addServiceTime(ReadTask task, long serviceTimeInNanoseconds) {
+        if (task.isDisconnected()) {
+            numberOfDisconnectedPerformedTasks.incrementAndGet();
+            // - service time of such tasks is not typical
+        } else {
+            queue.addServiceTime(serviceTimeInNanoseconds);
+        }
     }
 
-    private class ReadImageThread extends Thread {
+    private class ReadImageLoop implements Runnable {
         @Override
         public void run() {
             while (!shutdown) {
@@ -104,28 +371,49 @@ final class ReadThreadPool {
                     LOG.log(Level.SEVERE, "Unexpected error in logic!", e);
                     continue;
                 }
-                try {
-                    task.perform();
-                } catch (Throwable t) {
-                    task.cancelTaskOnException(t);
-                }
+                performTask(task);
             }
         }
     }
 
-    private class CleaningTasksThread extends Thread {
+    /**
+     * Takes tasks from the queue and starts a new thread for every task (in thread-per-task mode
+     * of the executor). The queue remains the only place where tasks are waiting, so scheduling and
+     * admission control work as with the usual pool.
+     */
+    private class DispatchingTasksThread extends Thread {
+        private final Semaphore permits = new Semaphore(executor.concurrency());
+
         @Override
         public void run() {
             while (!shutdown) {
+                ReadTask task = null;
                 try {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        // nothing to do
+                    if (!permits.tryAcquire(ReadTaskQueue.POLL_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                        continue;
                     }
-                    activeTaskSet.cleanObsoleteTasks();
+                    task = queue.pollOrNullAfterTimeout();
+                    if (task == null) {
+                        permits.release();
+                        continue;
+                    }
+                    LOG.fine("Taking " + task);
+                    final ReadTask taskToPerform = task;
+                    executor.execute(() -> {
+                        try {
+                            performTask(taskToPerform);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // Ignore this: the only legal way for stopping is shutdown() method
+                } catch (RejectedExecutionException e) {
+                    // - possible after shutdown
+                    permits.release();
+                    task.cancelTaskOnException(e);
                 } catch (Throwable e) {
-                    // In this very improbable case we keep this thread
+                    // In this very improbable case we need to keep this thread
                     LOG.log(Level.SEVERE, "Unexpected error in logic!", e);
                 }
             }
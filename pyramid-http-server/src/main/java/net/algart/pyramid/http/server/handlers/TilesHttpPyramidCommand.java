@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.server.handlers;
+
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidCommand;
+import net.algart.pyramid.http.server.HttpPyramidService;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidRequest;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads several tiles and/or rectangles of one pyramid and returns them in one response
+ * (see {@link HttpPyramidConstants#BATCH_CONTENT_TYPE}). Parameters (GET or POST):
+ * <ul>
+ *     <li><tt>tiles</tt>: TMS tiles <tt>z/x/y</tt>, separated by commas;</li>
+ *     <li><tt>rectangles</tt>: rectangles <tt>compression/fromX/fromY/toX/toY</tt>, separated by commas.</li>
+ * </ul>
+ * The tiles are indexed in the response from 0, the rectangles follow them.
+ */
+public class TilesHttpPyramidCommand extends HttpPyramidCommand {
+    private final TmsHttpPyramidCommand tmsCommand;
+
+    public TilesHttpPyramidCommand(HttpPyramidService httpPyramidService) {
+        super(httpPyramidService, HttpPyramidConstants.CommandPrefixes.TILES);
+        this.tmsCommand = new TmsHttpPyramidCommand(httpPyramidService);
+    }
+
+    @Override
+    protected void service(Request request, Response response) throws Exception {
+        final String configuration = pyramidIdToConfiguration(
+            getParameter(request, HttpPyramidConstants.PYRAMID_ID_PARAMETER_NAME));
+        final List<PlanePyramidRequest> pyramidRequests = new ArrayList<>();
+        for (String tile : items(request.getParameter("tiles"))) {
+            final long[] zxy = numbers(tile, 3);
+            pyramidRequests.add(tmsCommand.newTileRequest(configuration, (int) zxy[1], (int) zxy[2], (int) zxy[0]));
+        }
+        for (String rectangle : items(request.getParameter("rectangles"))) {
+            final String[] values = rectangle.split("/");
+            if (values.length != 5) {
+                throw new IllegalArgumentException("Rectangle must be compression/fromX/fromY/toX/toY: " + rectangle);
+            }
+            final double compression = Double.parseDouble(values[0]);
+            final long[] coordinates = numbers(rectangle.substring(values[0].length() + 1), 4);
+            pyramidRequests.add(new PlanePyramidReadImageRequest(
+                configuration, compression, coordinates[0], coordinates[1], coordinates[2], coordinates[3]));
+        }
+        if (pyramidRequests.isEmpty()) {
+            throw new IllegalArgumentException("No tiles or rectangles specified");
+        }
+        if (pyramidRequests.size() > HttpPyramidConstants.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Too many tiles and rectangles: " + pyramidRequests.size()
+                + " > " + HttpPyramidConstants.MAX_BATCH_SIZE);
+        }
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        // - see TmsHttpPyramidCommand
+        httpPyramidService.createBatchReadTask(request, response, pyramidRequests);
+    }
+
+    /**
+     * Returns the command, which describes the tiling (tile size and y-direction) of the requested tiles.
+     * It may be customized by its setters.
+     *
+     * @return the command, which creates TMS tile requests.
+     */
+    public TmsHttpPyramidCommand getTmsCommand() {
+        return tmsCommand;
+    }
+
+    protected String pyramidIdToConfiguration(String pyramidId) throws IOException {
+        return httpPyramidService.pyramidIdToConfiguration(pyramidId);
+    }
+
+    private static String[] items(String parameter) {
+        if (parameter == null || parameter.trim().isEmpty()) {
+            return new String[0];
+        }
+        return parameter.trim().split("\\s*,\\s*");
+    }
+
+    private static long[] numbers(String item, int count) {
+        final String[] values = item.split("/");
+        if (values.length != count) {
+            throw new IllegalArgumentException("Item must contain " + count + " numbers separated by /: " + item);
+        }
+        final long[] result = new long[count];
+        for (int k = 0; k < count; k++) {
+            result[k] = Long.parseLong(values[k]);
+        }
+        return result;
+    }
+}
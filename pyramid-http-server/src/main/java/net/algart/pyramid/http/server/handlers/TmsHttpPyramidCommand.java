@@ -37,12 +37,27 @@ import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class TmsHttpPyramidCommand extends HttpPyramidCommand {
     private static final int DEFAULT_TMS_TILE_DIM = Math.max(16, Integer.getInteger(
         "net.algart.pyramid.http.tmsTileDim", 256));
     private static final boolean DEFAULT_INVERSE_Y_DIRECTION = getBooleanProperty(
         "net.algart.pyramid.http.tmsInverseYDirection", false);
+    private static final int MAX_NUMBER_OF_KNOWN_DIMENSIONS = 4096;
+    private static final Map<String, long[]> KNOWN_ZERO_LEVEL_DIMENSIONS =
+        new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > MAX_NUMBER_OF_KNOWN_DIMENSIONS;
+            }
+        };
+    // - zero-level dimensions of the pyramids (by their unique ids), the tiles of which were read;
+    // used to prefetch only existing tiles; access is synchronized by this map
 
     private volatile int tileDim = DEFAULT_TMS_TILE_DIM;
     private volatile boolean inverseYDirection = DEFAULT_INVERSE_Y_DIRECTION;
@@ -76,6 +91,10 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
         // and Web pages cannot abuse it: it is not more dangerous than simple ability to read images.
         final PlanePyramidRequest pyramidRequest = new TmsPlanePyramidRequest(configuration, x, y, z);
         httpPyramidService.createReadTask(request, response, pyramidRequest);
+        if (HttpPyramidConstants.TILE_PREFETCH_RADIUS > 0) {
+            httpPyramidService.prefetch(neighbourTileRequests(configuration, x, y, z, tileDim,
+                (tileX, tileY, tileZ) -> new TmsPlanePyramidRequest(configuration, tileX, tileY, tileZ)));
+        }
     }
 
     @Override
@@ -111,6 +130,10 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
         return httpPyramidService.pyramidIdToConfiguration(pyramidId);
     }
 
+    PlanePyramidRequest newTileRequest(String configuration, int x, int y, int z) {
+        return new TmsPlanePyramidRequest(configuration, x, y, z);
+    }
+
     static String removeExtension(String fileName) {
         int p = fileName.lastIndexOf('.');
         if (p == -1) {
@@ -119,6 +142,95 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
         return fileName.substring(0, p);
     }
 
+    /**
+     * Returns requests for the tiles, which will probably be requested after the tile (x, y, z):
+     * its children at the level z+1 (up to 4) and its neighbours at the distance
+     * {@link HttpPyramidConstants#TILE_PREFETCH_RADIUS} (up to 8 neighbours for distance 1).
+     * Only tiles inside the pyramid are returned: there are no children at the finest level,
+     * and the indexes are less than the number of tiles at the level. If no tiles of this pyramid
+     * were read yet, its dimensions are unknown, and the result is empty.
+     * The nearest neighbours are placed at the end of the list (they are prefetched first).
+     *
+     * @param pyramidUniqueId unique id of the pyramid.
+     * @param x               x-index of the requested tile.
+     * @param y               y-index of the requested tile.
+     * @param z               zoom level of the requested tile.
+     * @param tileDim         tile dimension.
+     * @param factory         creates the request for the tile with the given indexes.
+     * @return requests for the neighbour tiles.
+     */
+    static List<PlanePyramidRequest> neighbourTileRequests(
+        String pyramidUniqueId,
+        int x,
+        int y,
+        int z,
+        int tileDim,
+        TileRequestFactory factory)
+    {
+        final long[] dimensions;
+        synchronized (KNOWN_ZERO_LEVEL_DIMENSIONS) {
+            dimensions = KNOWN_ZERO_LEVEL_DIMENSIONS.get(pyramidUniqueId);
+        }
+        if (dimensions == null) {
+            return Collections.emptyList();
+        }
+        final int maxZ = maxZ(dimensions[0], dimensions[1], tileDim);
+        if (z < 0 || z > maxZ) {
+            return Collections.emptyList();
+        }
+        final int radius = HttpPyramidConstants.TILE_PREFETCH_RADIUS;
+        final List<PlanePyramidRequest> result = new ArrayList<>();
+        if (z < maxZ) {
+            final long numberOfChildrenX = numberOfTiles(dimensions[0], tileDim, maxZ - z - 1);
+            final long numberOfChildrenY = numberOfTiles(dimensions[1], tileDim, maxZ - z - 1);
+            for (int dy = 0; dy <= 1; dy++) {
+                for (int dx = 0; dx <= 1; dx++) {
+                    if (2L * x + dx < numberOfChildrenX && 2L * y + dy < numberOfChildrenY) {
+                        result.add(factory.newTileRequest(2 * x + dx, 2 * y + dy, z + 1));
+                    }
+                }
+            }
+        }
+        final long numberOfTilesX = numberOfTiles(dimensions[0], tileDim, maxZ - z);
+        final long numberOfTilesY = numberOfTiles(dimensions[1], tileDim, maxZ - z);
+        for (int distance = radius; distance >= 1; distance--) {
+            for (int dy = -distance; dy <= distance; dy++) {
+                for (int dx = -distance; dx <= distance; dx++) {
+                    final long tileX = (long) x + dx;
+                    final long tileY = (long) y + dy;
+                    if (Math.max(Math.abs(dx), Math.abs(dy)) == distance
+                        && tileX >= 0 && tileX < numberOfTilesX && tileY >= 0 && tileY < numberOfTilesY)
+                    {
+                        result.add(factory.newTileRequest((int) tileX, (int) tileY, z));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static void rememberZeroLevelDimensions(String pyramidUniqueId, PlanePyramidInformation info) {
+        synchronized (KNOWN_ZERO_LEVEL_DIMENSIONS) {
+            KNOWN_ZERO_LEVEL_DIMENSIONS.put(
+                pyramidUniqueId, new long[] {info.getZeroLevelDimX(), info.getZeroLevelDimY()});
+        }
+    }
+
+    // The finest level: at this level, the pyramid is not compressed
+    static int maxZ(long zeroLevelDimX, long zeroLevelDimY, int tileDim) {
+        int result = 0;
+        for (long dim = Math.max(zeroLevelDimX, zeroLevelDimY); dim > tileDim; dim /= 2) {
+            result++;
+        }
+        return result;
+    }
+
+    // Number of tiles along the axis at the level, compressed 2^compressionLog times
+    private static long numberOfTiles(long zeroLevelDim, int tileDim, int compressionLog) {
+        final long zeroLevelTileDim = (long) tileDim << compressionLog;
+        return (zeroLevelDim + zeroLevelTileDim - 1) / zeroLevelTileDim;
+    }
+
     static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
         if (defaultValue) {
             return !"false".equalsIgnoreCase(System.getProperty(propertyName));
@@ -127,6 +239,11 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
         }
     }
 
+    @FunctionalInterface
+    interface TileRequestFactory {
+        PlanePyramidRequest newTileRequest(int x, int y, int z);
+    }
+
     private class TmsPlanePyramidRequest extends PlanePyramidRequest {
         private final int x;
         private final int y;
@@ -139,6 +256,11 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
             this.z = z;
         }
 
+        @Override
+        public int tileLevel() {
+            return z;
+        }
+
         @Override
         public String toString() {
             return getClass().getSimpleName() + ": "
@@ -148,10 +270,8 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
         @Override
         public PlanePyramidData readData(PlanePyramid pyramid) throws IOException {
             final PlanePyramidInformation info = pyramid.readInformation();
-            int maxZ = 0;
-            for (long dim = Math.max(info.getZeroLevelDimX(), info.getZeroLevelDimY()); dim > tileDim; dim /= 2) {
-                maxZ++;
-            }
+            rememberZeroLevelDimensions(getPyramidUniqueId(), info);
+            final int maxZ = maxZ(info.getZeroLevelDimX(), info.getZeroLevelDimY(), tileDim);
             double compression = 1;
             for (int i = maxZ; i > z; i--) {
                 compression *= 2;
@@ -190,6 +310,11 @@ public class TmsHttpPyramidCommand extends HttpPyramidCommand {
             return result;
         }
 
+        @Override
+        protected String persistentKeyIgnoringPyramidUniqueId() {
+            return x + " " + y + " " + z + " " + tileDim() + " " + inverseYDirection();
+        }
+
         private int tileDim() {
             return tileDim;
         }
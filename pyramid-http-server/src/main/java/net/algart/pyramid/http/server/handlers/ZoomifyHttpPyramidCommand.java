@@ -73,6 +73,10 @@ public class ZoomifyHttpPyramidCommand extends HttpPyramidCommand {
         // and Web pages cannot abuse it: it is not more dangerous than simple ability to read images.
         final PlanePyramidRequest pyramidRequest = new ZoomifyPlanePyramidRequest(configuration, x, y, z);
         httpPyramidService.createReadTask(request, response, pyramidRequest);
+        if (HttpPyramidConstants.TILE_PREFETCH_RADIUS > 0) {
+            httpPyramidService.prefetch(TmsHttpPyramidCommand.neighbourTileRequests(configuration, x, y, z, tileDim,
+                (tileX, tileY, tileZ) -> new ZoomifyPlanePyramidRequest(configuration, tileX, tileY, tileZ)));
+        }
     }
 
     @Override
@@ -111,15 +115,18 @@ public class ZoomifyHttpPyramidCommand extends HttpPyramidCommand {
             this.z = z;
         }
 
+        @Override
+        public int tileLevel() {
+            return z;
+        }
+
         @Override
         public PlanePyramidData readData(PlanePyramid pyramid) throws IOException {
             final PlanePyramidInformation info = pyramid.readInformation();
-            int maxZ = 0;
+            TmsHttpPyramidCommand.rememberZeroLevelDimensions(getPyramidUniqueId(), info);
             final long zeroLevelDimX = info.getZeroLevelDimX();
             final long zeroLevelDimY = info.getZeroLevelDimY();
-            for (long dim = Math.max(zeroLevelDimX, zeroLevelDimY); dim > tileDim; dim /= 2) {
-                maxZ++;
-            }
+            final int maxZ = TmsHttpPyramidCommand.maxZ(zeroLevelDimX, zeroLevelDimY, tileDim);
             double compression = 1;
             for (int i = maxZ; i > z; i--) {
                 compression *= 2;
@@ -163,6 +170,11 @@ public class ZoomifyHttpPyramidCommand extends HttpPyramidCommand {
             return result;
         }
 
+        @Override
+        protected String persistentKeyIgnoringPyramidUniqueId() {
+            return x + " " + y + " " + z + " " + tileDim();
+        }
+
         private int tileDim() {
             return tileDim;
         }
@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.PlanePyramidFactory;
+import net.algart.pyramid.PlanePyramidImageData;
+import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidService;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidReadSpecialImageRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that ETag and Last-Modified of a tile do not depend on whether the tile is still in the server cache
+ * and whether the modification time of the pyramid data was checked recently.
+ */
+public class ConditionalRequestTest {
+    private static final long CHECKING_PERIOD = 200;
+    private static final AtomicLong DATA_LAST_MODIFIED_TIME = new AtomicLong(1500000000000L);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port%n", ConditionalRequestTest.class.getName());
+            return;
+        }
+        System.setProperty("net.algart.pyramid.http.dataModificationCheckingPeriod",
+            String.valueOf(CHECKING_PERIOD));
+        if (HttpPyramidConstants.DATA_MODIFICATION_CHECKING_PERIOD != CHECKING_PERIOD) {
+            throw new IllegalStateException("Please run this test with "
+                + "-Dnet.algart.pyramid.http.dataModificationCheckingPeriod=" + CHECKING_PERIOD);
+        }
+        final int port = Integer.parseInt(args[0]);
+        final HttpPyramidService service = new HttpPyramidService(
+            new VersionedPyramidFactory(),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        try {
+            final Response first = request(port, null);
+            check(first.code == 200 && first.eTag != null, "first request must return ETag", first);
+            System.out.printf("First response: %s%n", first);
+            final Response revalidated = request(port, first.eTag);
+            check(revalidated.code == 304, "immediate revalidation must return 304", revalidated);
+
+            Thread.sleep(3 * CHECKING_PERIOD);
+            // - the modification time is not checked anymore, but the tile is still in the cache
+            final Response cachedRevalidated = request(port, first.eTag);
+            check(cachedRevalidated.code == 304 && first.eTag.equals(cachedRevalidated.eTag),
+                "revalidation of a cached tile after the checking period must return 304 with the same ETag",
+                cachedRevalidated);
+            Thread.sleep(3 * CHECKING_PERIOD);
+            final Response cached = request(port, null);
+            check(cached.code == 200 && first.eTag.equals(cached.eTag)
+                    && first.lastModified.equals(cached.lastModified),
+                "cached tile must have the same validators", cached);
+
+            DATA_LAST_MODIFIED_TIME.addAndGet(60000);
+            Thread.sleep(3 * CHECKING_PERIOD);
+            final Response modified = request(port, first.eTag);
+            check(modified.code == 200 && modified.eTag != null && !first.eTag.equals(modified.eTag),
+                "modified pyramid must return 200 with new ETag", modified);
+            check(modified.body.equals("version " + DATA_LAST_MODIFIED_TIME.get()),
+                "obsolete cached data must not be returned", modified);
+            System.out.printf("Response after modification: %s%n", modified);
+            System.out.printf("O'k%n");
+        } finally {
+            service.finish();
+        }
+    }
+
+    private static void check(boolean condition, String message, Response response) {
+        if (!condition) {
+            throw new AssertionError("Invalid response: " + message + " (" + response + ")");
+        }
+    }
+
+    private static Response request(int port, String ifNoneMatch) throws IOException {
+        final URL url = new URL("http://localhost:" + port
+            + "/pp-read-rectangle?pyramidId=versioned&compression=1&fromX=0&fromY=0&toX=1&toY=1");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        final Response result = new Response();
+        result.code = connection.getResponseCode();
+        result.eTag = connection.getHeaderField("ETag");
+        result.lastModified = connection.getHeaderField("Last-Modified");
+        try (InputStream input = result.code == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (input != null) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[1024];
+                for (int len; (len = input.read(buffer)) >= 0; ) {
+                    output.write(buffer, 0, len);
+                }
+                result.body = new String(output.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+        return result;
+    }
+
+    private static class Response {
+        int code;
+        String eTag;
+        String lastModified;
+        String body;
+
+        @Override
+        public String toString() {
+            return code + ", ETag " + eTag + ", Last-Modified " + lastModified + ", body \"" + body + "\"";
+        }
+    }
+
+    public static class VersionedPyramidFactory implements PlanePyramidFactory {
+        @Override
+        public void initializeConfiguration(Object factoryConfiguration) {
+        }
+
+        @Override
+        public PlanePyramid newPyramid(String pyramidConfiguration) {
+            return new VersionedPyramid(pyramidConfiguration);
+        }
+    }
+
+    private static class VersionedPyramid implements PlanePyramid {
+        private final String pyramidConfiguration;
+
+        VersionedPyramid(String pyramidConfiguration) {
+            this.pyramidConfiguration = pyramidConfiguration;
+        }
+
+        @Override
+        public String pyramidConfiguration() {
+            return pyramidConfiguration;
+        }
+
+        @Override
+        public void loadResources() {
+        }
+
+        @Override
+        public void freeResources() {
+        }
+
+        @Override
+        public PlanePyramidInformation readInformation() {
+            return new PlanePyramidInformation(3, 1000, 1000, byte.class);
+        }
+
+        @Override
+        public PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) {
+            final String content = "version " + DATA_LAST_MODIFIED_TIME.get();
+            // - the data depend on the modification time, like the data of a replaced file
+            return new PlanePyramidImageData(content.getBytes(StandardCharsets.UTF_8), this);
+        }
+
+        @Override
+        public PlanePyramidImageData readSpecialImage(PlanePyramidReadSpecialImageRequest specialImageRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isRawBytes() {
+            return true;
+        }
+
+        @Override
+        public String returnedDataFormat() {
+            return "bytes";
+        }
+
+        @Override
+        public boolean isTimeout() {
+            return false;
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+
+        @Override
+        public long dataLastModifiedTime() {
+            return DATA_LAST_MODIFIED_TIME.get();
+        }
+    }
+}
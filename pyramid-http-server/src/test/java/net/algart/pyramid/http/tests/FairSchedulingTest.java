@@ -0,0 +1,248 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.PlanePyramidFactory;
+import net.algart.pyramid.PlanePyramidImageData;
+import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidService;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidReadSpecialImageRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the latency of an interactive client, viewing one pyramid, while batch clients load another pyramid
+ * as quickly as possible. Should be run with different values of
+ * "net.algart.pyramid.http.readSchedulingFairness" system property ("none" and "pyramid") to compare.
+ * In "pyramid" mode, checks that the interactive client waits not more than about one reading of a batch client.
+ */
+public class FairSchedulingTest {
+    private static final AtomicLong COORDINATE = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port readingTimeInMs numberOfBatchThreads numberOfInteractiveRequests%n",
+                FairSchedulingTest.class.getName());
+            return;
+        }
+        final int port = Integer.parseInt(args[0]);
+        final long readingTime = Long.parseLong(args[1]);
+        final int numberOfBatchThreads = Integer.parseInt(args[2]);
+        final int numberOfInteractiveRequests = Integer.parseInt(args[3]);
+        final HttpPyramidService service = new HttpPyramidService(
+            new SlowPyramidFactory(readingTime),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final AtomicLong batchResponses = new AtomicLong();
+        final AtomicLong batchRejections = new AtomicLong();
+        final AtomicLong batchErrors = new AtomicLong();
+        try {
+            System.out.printf("Scheduling fairness: %s%n", HttpPyramidConstants.READ_SCHEDULING_FAIRNESS);
+            final Thread[] batchThreads = new Thread[numberOfBatchThreads];
+            for (int k = 0; k < batchThreads.length; k++) {
+                batchThreads[k] = new Thread(() -> {
+                    try {
+                        while (!finished.get()) {
+                            if (request(port, "batch") == 200) {
+                                batchResponses.incrementAndGet();
+                            } else {
+                                batchRejections.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        batchErrors.incrementAndGet();
+                        e.printStackTrace();
+                    }
+                });
+                batchThreads[k].start();
+            }
+            Thread.sleep(2 * readingTime + 500);
+            // - let the batch load fill the queue
+            final double[] latencies = new double[numberOfInteractiveRequests];
+            int rejected = 0;
+            for (int i = 0; i < numberOfInteractiveRequests; i++) {
+                long t1 = System.nanoTime();
+                if (request(port, "viewer") != 200) {
+                    rejected++;
+                }
+                long t2 = System.nanoTime();
+                latencies[i] = (t2 - t1) * 1e-6;
+            }
+            finished.set(true);
+            for (Thread thread : batchThreads) {
+                thread.join();
+            }
+            Arrays.sort(latencies);
+            System.out.printf(Locale.US,
+                "Interactive client: %d requests (%d rejected), latency median %.1f ms, 95%% %.1f ms, "
+                    + "99%% %.1f ms, max %.1f ms%n",
+                numberOfInteractiveRequests, rejected,
+                percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                latencies[latencies.length - 1]);
+            System.out.printf("Batch clients: %d responses, %d rejected%n",
+                batchResponses.get(), batchRejections.get());
+            if (batchErrors.get() > 0) {
+                throw new AssertionError(batchErrors.get() + " batch clients failed");
+            }
+            if ("pyramid".equals(HttpPyramidConstants.READ_SCHEDULING_FAIRNESS)) {
+                final double maxLatency = 2 * readingTime + 1000;
+                // - waiting for one of the current batch readings and reading itself, with a margin
+                if (rejected > 0) {
+                    throw new AssertionError(rejected + " interactive requests rejected");
+                }
+                if (percentile(latencies, 0.95) > maxLatency) {
+                    throw new AssertionError("Interactive client is delayed by batch clients: 95% latency "
+                        + percentile(latencies, 0.95) + " ms > " + maxLatency + " ms");
+                }
+            }
+        } finally {
+            service.finish();
+        }
+    }
+
+    private static int request(int port, String pyramidId) throws IOException {
+        final long x = COORDINATE.getAndIncrement();
+        // - different coordinates: every request is really read
+        final URL url = new URL("http://localhost:" + port
+            + "/pp-read-rectangle?pyramidId=" + pyramidId + "&compression=1"
+            + "&fromX=" + x + "&fromY=0&toX=" + (x + 1) + "&toY=1");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        final int responseCode = connection.getResponseCode();
+        try (InputStream input = responseCode == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (input != null) {
+                final byte[] buffer = new byte[1024];
+                while (input.read(buffer) >= 0) {
+                }
+            }
+        }
+        return responseCode;
+    }
+
+    private static double percentile(double[] sortedValues, double level) {
+        return sortedValues[Math.min(sortedValues.length - 1, (int) (level * sortedValues.length))];
+    }
+
+    public static class SlowPyramidFactory implements PlanePyramidFactory {
+        private final long readingTime;
+
+        SlowPyramidFactory(long readingTime) {
+            this.readingTime = readingTime;
+        }
+
+        @Override
+        public void initializeConfiguration(Object factoryConfiguration) {
+        }
+
+        @Override
+        public PlanePyramid newPyramid(String pyramidConfiguration) {
+            return new SlowPyramid(pyramidConfiguration, readingTime);
+        }
+    }
+
+    private static class SlowPyramid implements PlanePyramid {
+        private final String pyramidConfiguration;
+        private final long readingTime;
+
+        SlowPyramid(String pyramidConfiguration, long readingTime) {
+            this.pyramidConfiguration = pyramidConfiguration;
+            this.readingTime = readingTime;
+        }
+
+        @Override
+        public String pyramidConfiguration() {
+            return pyramidConfiguration;
+        }
+
+        @Override
+        public void loadResources() {
+        }
+
+        @Override
+        public void freeResources() {
+        }
+
+        @Override
+        public PlanePyramidInformation readInformation() {
+            return new PlanePyramidInformation(3, 1000000, 1000, byte.class);
+        }
+
+        @Override
+        public PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) {
+            try {
+                Thread.sleep(readingTime);
+                // - emulation of slow storage
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PlanePyramidImageData(new byte[1024], this);
+        }
+
+        @Override
+        public PlanePyramidImageData readSpecialImage(PlanePyramidReadSpecialImageRequest specialImageRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isRawBytes() {
+            return true;
+        }
+
+        @Override
+        public String returnedDataFormat() {
+            return "bytes";
+        }
+
+        @Override
+        public boolean isTimeout() {
+            return false;
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the time of loading a viewport (many tiles at once) over HTTP/1.1 with 6 connections
+ * (like in a browser) and over HTTP/2 with one connection. Should be run with
+ * "net.algart.pyramid.http.http2" system property "true" and, for slow storage emulation,
+ * "net.algart.pyramid.http.readThreadPoolMode" property "io".
+ * Requires curl 7.66+ with HTTP/2 support: Java 8 has no HTTP/2 client.
+ * Fails if HTTP/1.1 connections are served with delays after HTTP/2 traffic (this was a problem
+ * with Grizzly HTTP/2 add-on) or if HTTP/2 is not faster than HTTP/1.1.
+ */
+public class Http2ViewportTest {
+    private static final int BROWSER_CONNECTIONS_PER_HOST = 6;
+    private static final long MIN_READING_TIME = 100;
+    // - with quicker reading, the gain of HTTP/2 can be hidden by the overhead of curl (h2c upgrade etc.)
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port readingTimeInMs numberOfTilesInViewport numberOfViewports%n",
+                Http2ViewportTest.class.getName());
+            return;
+        }
+        final int port = Integer.parseInt(args[0]);
+        final long readingTime = Long.parseLong(args[1]);
+        final int numberOfTiles = Integer.parseInt(args[2]);
+        final int numberOfViewports = Integer.parseInt(args[3]);
+        if (readingTime < MIN_READING_TIME) {
+            throw new IllegalArgumentException("Too short reading time for comparing HTTP/1.1 and HTTP/2 ("
+                + MIN_READING_TIME + " ms or more)");
+        }
+        if (!HttpPyramidConstants.HTTP2_ENABLED) {
+            System.out.println("HTTP/2 is disabled: please set -Dnet.algart.pyramid.http.http2=true");
+            return;
+        }
+        final HttpPyramidService service = new HttpPyramidService(
+            new FairSchedulingTest.SlowPyramidFactory(readingTime),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        final double maxHttp1Time = 4.0 * readingTime
+            * ((numberOfTiles + BROWSER_CONNECTIONS_PER_HOST - 1) / BROWSER_CONNECTIONS_PER_HOST) + 2000.0;
+        // - with enough reading threads, it is about readingTime * numberOfTiles / BROWSER_CONNECTIONS_PER_HOST;
+        // the stalled connection is served only after the idle timeout ~30 seconds
+        try {
+            System.out.printf("Thread pool mode: %s%n", HttpPyramidConstants.READ_THREAD_POOL_MODE);
+            long x = 0;
+            // - different coordinates: every tile is really read
+            for (int test = 1; test <= numberOfViewports; test++) {
+                final double http1Time = loadViewport(port, x, numberOfTiles, false);
+                x += numberOfTiles;
+                final double http2Time = loadViewport(port, x, numberOfTiles, true);
+                x += numberOfTiles;
+                System.out.printf(Locale.US, "Viewport #%d, %d tiles: HTTP/1.1 %.1f ms, HTTP/2 %.1f ms%n",
+                    test, numberOfTiles, http1Time, http2Time);
+                if (http1Time > maxHttp1Time) {
+                    throw new AssertionError(String.format(Locale.US,
+                        "HTTP/1.1 viewport #%d is loaded too slowly: %.1f ms > %.1f ms",
+                        test, http1Time, maxHttp1Time));
+                }
+                if (http2Time >= http1Time) {
+                    throw new AssertionError(String.format(Locale.US,
+                        "HTTP/2 viewport #%d is not faster than HTTP/1.1: %.1f ms >= %.1f ms",
+                        test, http2Time, http1Time));
+                }
+            }
+        } finally {
+            service.finish();
+        }
+    }
+
+    private static double loadViewport(int port, long firstX, int numberOfTiles, boolean http2)
+        throws IOException, InterruptedException
+    {
+        final List<String> command = new ArrayList<>(Arrays.asList(
+            "curl", "--silent", "--show-error", "--fail", "--parallel",
+            "--parallel-max", String.valueOf(http2 ? numberOfTiles : BROWSER_CONNECTIONS_PER_HOST),
+            http2 ? "--http2" : "--http1.1"));
+        // - "--http2" means h2c via "Upgrade" header: the following requests are multiplexed in one connection
+        for (long x = firstX; x < firstX + numberOfTiles; x++) {
+            command.add("http://localhost:" + port
+                + "/pp-read-rectangle?pyramidId=viewer&compression=1"
+                + "&fromX=" + x + "&fromY=0&toX=" + (x + 1) + "&toY=1");
+            command.add("--output");
+            command.add("/dev/null");
+        }
+        final long t1 = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (InputStream input = process.getInputStream()) {
+            final byte[] buffer = new byte[1024];
+            int len;
+            while ((len = input.read(buffer)) >= 0) {
+                System.out.write(buffer, 0, len);
+            }
+        }
+        final int exitCode = process.waitFor();
+        final long t2 = System.nanoTime();
+        if (exitCode != 0) {
+            throw new IOException("curl failed with exit code " + exitCode);
+        }
+        return (t2 - t1) * 1e-6;
+    }
+}
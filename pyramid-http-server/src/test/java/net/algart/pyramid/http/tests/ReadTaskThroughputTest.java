@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.PlanePyramid;
+import net.algart.pyramid.PlanePyramidFactory;
+import net.algart.pyramid.PlanePyramidImageData;
+import net.algart.pyramid.PlanePyramidInformation;
+import net.algart.pyramid.http.server.HttpPyramidService;
+import net.algart.pyramid.requests.PlanePyramidReadImageRequest;
+import net.algart.pyramid.requests.PlanePyramidReadSpecialImageRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the speed of sending data by the pyramid service: the data are always taken from the server cache,
+ * so this test measures network throughput and CPU time, spent by the server per every sent byte.
+ * It also checks that every response is received completely.
+ */
+public class ReadTaskThroughputTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port responseSizeInBytes numberOfClientThreads numberOfRequestsPerThread%n",
+                ReadTaskThroughputTest.class.getName());
+            return;
+        }
+        final int port = Integer.parseInt(args[0]);
+        final int responseSize = Integer.parseInt(args[1]);
+        final int numberOfThreads = Integer.parseInt(args[2]);
+        final int numberOfRequests = Integer.parseInt(args[3]);
+        final HttpPyramidService service = new HttpPyramidService(
+            new FixedDataPyramidFactory(responseSize),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return pyramidId;
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.OperatingSystemMXBean osMXBean =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        try {
+            for (int test = 1; test <= 5; test++) {
+                final AtomicLong receivedBytes = new AtomicLong();
+                final AtomicLong numberOfErrors = new AtomicLong();
+                final AtomicLong clientCpuTime = new AtomicLong();
+                final CountDownLatch finish = new CountDownLatch(numberOfThreads);
+                final long cpu1 = osMXBean.getProcessCpuTime();
+                long t1 = System.nanoTime();
+                for (int k = 0; k < numberOfThreads; k++) {
+                    final int threadIndex = k;
+                    new Thread(() -> {
+                        final long threadCpu1 = threadMXBean.getCurrentThreadCpuTime();
+                        try {
+                            final byte[] buffer = new byte[65536];
+                            for (int i = 0; i < numberOfRequests; i++) {
+                                final URL url = new URL("http://localhost:" + port
+                                    + "/pp-read-rectangle?pyramidId=test&compression=1"
+                                    + "&fromX=0&fromY=0&toX=" + (threadIndex % 4 + 1) + "&toY=1");
+                                final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                                connection.setReadTimeout(10000);
+                                // - a response, which is stalled until the idle timeout of the server, is an error
+                                if (connection.getResponseCode() != 200) {
+                                    throw new IOException("Invalid response: " + connection.getResponseCode());
+                                }
+                                try (InputStream input = connection.getInputStream()) {
+                                    int len;
+                                    while ((len = input.read(buffer)) >= 0) {
+                                        receivedBytes.addAndGet(len);
+                                    }
+                                }
+                            }
+                        } catch (IOException e) {
+                            numberOfErrors.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                        clientCpuTime.addAndGet(threadMXBean.getCurrentThreadCpuTime() - threadCpu1);
+                        finish.countDown();
+                    }).start();
+                }
+                finish.await();
+                long t2 = System.nanoTime();
+                final long serverCpuTime = osMXBean.getProcessCpuTime() - cpu1 - clientCpuTime.get();
+                System.out.printf(Locale.US,
+                    "Test #%d: %d bytes received in %.3f ms, %.3f MB/sec, "
+                        + "%.1f ms CPU time of server (%.3f ns/byte)%n",
+                    test, receivedBytes.get(), (t2 - t1) * 1e-6,
+                    receivedBytes.get() / 1048576.0 / ((t2 - t1) * 1e-9),
+                    serverCpuTime * 1e-6, serverCpuTime / (double) receivedBytes.get());
+                if (numberOfErrors.get() > 0) {
+                    throw new AssertionError(numberOfErrors.get() + " client threads failed");
+                }
+                final long expectedBytes = (long) numberOfThreads * numberOfRequests * responseSize;
+                if (receivedBytes.get() != expectedBytes) {
+                    throw new AssertionError(receivedBytes.get() + " bytes received instead of " + expectedBytes);
+                }
+            }
+        } finally {
+            service.finish();
+        }
+    }
+
+    public static class FixedDataPyramidFactory implements PlanePyramidFactory {
+        private final int responseSize;
+
+        FixedDataPyramidFactory(int responseSize) {
+            this.responseSize = responseSize;
+        }
+
+        @Override
+        public void initializeConfiguration(Object factoryConfiguration) {
+        }
+
+        @Override
+        public PlanePyramid newPyramid(String pyramidConfiguration) {
+            return new FixedDataPyramid(responseSize);
+        }
+    }
+
+    private static class FixedDataPyramid implements PlanePyramid {
+        private final byte[] data;
+
+        FixedDataPyramid(int responseSize) {
+            this.data = new byte[responseSize];
+            new Random(0).nextBytes(data);
+        }
+
+        @Override
+        public String pyramidConfiguration() {
+            return "test";
+        }
+
+        @Override
+        public void loadResources() {
+        }
+
+        @Override
+        public void freeResources() {
+        }
+
+        @Override
+        public PlanePyramidInformation readInformation() {
+            return new PlanePyramidInformation(3, 1000, 1000, byte.class);
+        }
+
+        @Override
+        public PlanePyramidImageData readImage(PlanePyramidReadImageRequest imageRequest) {
+            return new PlanePyramidImageData(data, this);
+        }
+
+        @Override
+        public PlanePyramidImageData readSpecialImage(PlanePyramidReadSpecialImageRequest specialImageRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isRawBytes() {
+            return true;
+        }
+
+        @Override
+        public String returnedDataFormat() {
+            return "bytes";
+        }
+
+        @Override
+        public boolean isTimeout() {
+            return false;
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+    }
+}
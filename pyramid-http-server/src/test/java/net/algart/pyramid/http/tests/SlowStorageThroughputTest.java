@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the pyramid service (responses per second) when every reading
+ * is blocked on slow storage (emulated by a delay). Should be run with different values of
+ * "net.algart.pyramid.http.readThreadPoolMode" system property ("fixed", "io" and "virtual")
+ * and, maybe, "net.algart.pyramid.http.readThreadPoolSize" to compare.
+ * Checks that the best throughput is not less than a half of the ideal one for the number of reading threads
+ * (but not more than {@link #MAX_CHECKED_PARALLELISM}).
+ */
+public class SlowStorageThroughputTest {
+    private static final AtomicLong COORDINATE = new AtomicLong();
+    private static final int MAX_CHECKED_PARALLELISM = 8;
+    // - with more parallel readings, the throughput can be limited by CPU (of both the server and the clients)
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port readingTimeInMs numberOfClientThreads numberOfRequestsPerThread%n",
+                SlowStorageThroughputTest.class.getName());
+            return;
+        }
+        final int port = Integer.parseInt(args[0]);
+        final long readingTime = Long.parseLong(args[1]);
+        final int numberOfThreads = Integer.parseInt(args[2]);
+        final int numberOfRequests = Integer.parseInt(args[3]);
+        final HttpPyramidService service = new HttpPyramidService(
+            new FairSchedulingTest.SlowPyramidFactory(readingTime),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        try {
+            System.out.printf("Read thread pool mode: %s, pool size %d, %d processors%n",
+                HttpPyramidConstants.READ_THREAD_POOL_MODE, HttpPyramidConstants.READ_THREAD_POOL_SIZE,
+                Runtime.getRuntime().availableProcessors());
+            final int numberOfReadingThreads = Math.min(numberOfThreads,
+                "fixed".equals(HttpPyramidConstants.READ_THREAD_POOL_MODE) ?
+                    Runtime.getRuntime().availableProcessors() :
+                    HttpPyramidConstants.READ_THREAD_POOL_SIZE);
+            final double idealSpeed = numberOfReadingThreads * 1000.0 / readingTime;
+            final double minSpeed =
+                0.5 * Math.min(numberOfReadingThreads, MAX_CHECKED_PARALLELISM) * 1000.0 / readingTime;
+            double bestSpeed = 0.0;
+            for (int test = 1; test <= 3; test++) {
+                final AtomicLong responses = new AtomicLong();
+                final AtomicLong rejections = new AtomicLong();
+                final AtomicLong errors = new AtomicLong();
+                final CountDownLatch finish = new CountDownLatch(numberOfThreads);
+                long t1 = System.nanoTime();
+                for (int k = 0; k < numberOfThreads; k++) {
+                    new Thread(() -> {
+                        try {
+                            for (int i = 0; i < numberOfRequests; i++) {
+                                if (request(port) == 200) {
+                                    responses.incrementAndGet();
+                                } else {
+                                    rejections.incrementAndGet();
+                                }
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                        finish.countDown();
+                    }).start();
+                }
+                finish.await();
+                long t2 = System.nanoTime();
+                final double speed = responses.get() / ((t2 - t1) * 1e-9);
+                System.out.printf(Locale.US,
+                    "Test #%d: %d responses (%d rejected) in %.3f ms, %.1f responses/sec "
+                        + "(ideal for one thread: %.1f, for %d threads: %.1f)%n",
+                    test, responses.get(), rejections.get(), (t2 - t1) * 1e-6,
+                    speed, 1000.0 / readingTime, numberOfReadingThreads, idealSpeed);
+                if (errors.get() > 0) {
+                    throw new AssertionError(errors.get() + " client threads failed");
+                }
+                bestSpeed = Math.max(bestSpeed, speed);
+            }
+            if (bestSpeed < minSpeed) {
+                throw new AssertionError(String.format(Locale.US,
+                    "Too low throughput: %.1f responses/sec < %.1f", bestSpeed, minSpeed));
+            }
+        } finally {
+            service.finish();
+        }
+    }
+
+    private static int request(int port) throws IOException {
+        final long x = COORDINATE.getAndIncrement();
+        // - different coordinates: every request is really read
+        final URL url = new URL("http://localhost:" + port
+            + "/pp-read-rectangle?pyramidId=slow&compression=1"
+            + "&fromX=" + x + "&fromY=0&toX=" + (x + 1) + "&toY=1");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        final int responseCode = connection.getResponseCode();
+        try (InputStream input = responseCode == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (input != null) {
+                final byte[] buffer = new byte[1024];
+                while (input.read(buffer) >= 0) {
+                }
+            }
+        }
+        return responseCode;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2017 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.algart.pyramid.http.tests;
+
+import net.algart.pyramid.api.http.HttpPyramidConstants;
+import net.algart.pyramid.http.server.HttpPyramidService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a pan/zoom trace of a tile viewer (TMS protocol) and measures time-to-full-viewport:
+ * the time from the moment, when the user stops at some viewport, until all tiles of this viewport
+ * are received. Like a viewer, the client requests tiles of the current and previous (coarser) zoom levels,
+ * sends all requests at once (as through HTTP/2) and never requests a tile twice (as with a browser cache).
+ * Should be run with different values of "net.algart.pyramid.http.tileScheduling" system property
+ * ("fifo" and "viewport") to compare. Checks that all tiles are received and, in "viewport" mode,
+ * that the rough view (previous zoom level) of every final viewport appears not later than the full one.
+ *
+ * <p>With "overload" argument, checks that an overloaded queue drops the oldest tiles, not the tiles
+ * of the current viewport, in the given tile scheduling mode ("fifo" or "viewport"). The old tiles belong
+ * to two different levels, so in "viewport" mode the oldest tile is not the tile, which would be served last.</p>
+ */
+public class TileSchedulingTest {
+    private static final int VIEWPORT_WIDTH = 1280;
+    private static final int VIEWPORT_HEIGHT = 768;
+    private static final int TILE_DIM = 256;
+    private static final int NUMBER_OF_CLIENT_CONNECTIONS = 64;
+    private static final int MOVES_PER_BURST = 6;
+    private static final long TIME_BETWEEN_MOVES = 80;
+    private static final long TIME_BETWEEN_BURSTS = 2500;
+    private static final int OVERLOAD_QUEUE_CAPACITY = 8;
+    private static final int OVERLOAD_NEW_TILES = 4;
+    private static final long OVERLOAD_TIME_BETWEEN_REQUESTS = 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.printf("Usage:%n");
+            System.out.printf("    %s port readingTimeInMs numberOfBursts [randSeed]%n",
+                TileSchedulingTest.class.getName());
+            System.out.printf("    %s port readingTimeInMs overload fifo|viewport%n",
+                TileSchedulingTest.class.getName());
+            return;
+        }
+        final int port = Integer.parseInt(args[0]);
+        final long readingTime = Long.parseLong(args[1]);
+        if (args[2].equals("overload")) {
+            checkOverload(port, readingTime, args.length > 3 ? args[3] : "viewport");
+            return;
+        }
+        final int numberOfBursts = Integer.parseInt(args[2]);
+        final long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        final List<Viewport> trace = trace(numberOfBursts, new Random(seed));
+        final HttpPyramidService service = new HttpPyramidService(
+            new FairSchedulingTest.SlowPyramidFactory(readingTime),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        final ExecutorService client = Executors.newFixedThreadPool(NUMBER_OF_CLIENT_CONNECTIONS);
+        final Set<Tile> requested = ConcurrentHashMap.newKeySet();
+        final Map<Tile, Long> received = new ConcurrentHashMap<>();
+        final AtomicInteger errors = new AtomicInteger();
+        try {
+            System.out.printf("Tile scheduling: %s, %d viewports%n",
+                HttpPyramidConstants.TILE_SCHEDULING, trace.size());
+            final long start = System.nanoTime();
+            for (Viewport viewport : trace) {
+                final long delay = viewport.time - (System.nanoTime() - start) / 1000000;
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                viewport.requestTime = System.nanoTime();
+                for (Tile tile : viewport.tiles()) {
+                    if (requested.add(tile)) {
+                        client.submit(() -> {
+                            try {
+                                request(port, tile);
+                                received.put(tile, System.nanoTime());
+                            } catch (IOException e) {
+                                errors.incrementAndGet();
+                                e.printStackTrace();
+                            }
+                        });
+                    }
+                }
+            }
+            client.shutdown();
+            client.awaitTermination(1, TimeUnit.HOURS);
+        } finally {
+            service.finish();
+        }
+        if (errors.get() > 0 || received.size() != requested.size()) {
+            throw new AssertionError((requested.size() - received.size()) + " tiles are not received");
+        }
+        final List<Double> fullTimes = new ArrayList<>();
+        final List<Double> roughTimes = new ArrayList<>();
+        int roughLater = 0;
+        for (Viewport viewport : trace) {
+            if (viewport.isFinal) {
+                final double fullTime = timeToReceive(viewport, viewport.tiles(viewport.z), received);
+                final double roughTime = timeToReceive(viewport, viewport.tiles(viewport.z - 1), received);
+                fullTimes.add(fullTime);
+                roughTimes.add(roughTime);
+                if (roughTime > fullTime) {
+                    roughLater++;
+                }
+            }
+        }
+        System.out.printf(Locale.US, "%d tiles read%n", received.size());
+        System.out.printf(Locale.US, "Time to rough viewport: %s%n", statistics(roughTimes));
+        System.out.printf(Locale.US, "Time to full viewport:  %s%n", statistics(fullTimes));
+        System.out.printf("Rough view appears after the full one in %d of %d final viewports%n",
+            roughLater, fullTimes.size());
+        if ("viewport".equals(HttpPyramidConstants.TILE_SCHEDULING) && roughLater > 0) {
+            throw new AssertionError("Coarser tiles are read after the tiles of the current zoom level");
+        }
+    }
+
+    private static void checkOverload(int port, long readingTime, String tileScheduling) throws Exception {
+        final int numberOfTiles = 1 + OVERLOAD_QUEUE_CAPACITY + OVERLOAD_NEW_TILES;
+        // - the 1st tile occupies the only reading thread, the next ones fill the queue,
+        // the last ones (the current viewport) overload it
+        if (readingTime < 4 * numberOfTiles * OVERLOAD_TIME_BETWEEN_REQUESTS) {
+            throw new IllegalArgumentException("Too short reading time for overload check: all requests must be "
+                + "sent while reading the 1st tile (" + 4 * numberOfTiles * OVERLOAD_TIME_BETWEEN_REQUESTS
+                + " ms or more)");
+        }
+        System.setProperty("net.algart.pyramid.http.tileScheduling", tileScheduling);
+        System.setProperty("net.algart.pyramid.http.readQueueCapacity", String.valueOf(OVERLOAD_QUEUE_CAPACITY));
+        System.setProperty("net.algart.pyramid.http.readThreadPoolSize", "1");
+        if (!HttpPyramidConstants.TILE_SCHEDULING.equals(tileScheduling)
+            || HttpPyramidConstants.READ_QUEUE_CAPACITY != OVERLOAD_QUEUE_CAPACITY
+            || HttpPyramidConstants.READ_THREAD_POOL_SIZE != 1)
+        {
+            throw new IllegalStateException("Cannot set system properties for overload check");
+        }
+        final HttpPyramidService service = new HttpPyramidService(
+            new FairSchedulingTest.SlowPyramidFactory(readingTime),
+            port,
+            Files.createTempDirectory("pyramid-commands"))
+        {
+            @Override
+            public String pyramidIdToConfiguration(String pyramidId) throws IOException {
+                return "{\"pyramidId\":\"" + pyramidId + "\"}";
+            }
+        };
+        service.addStandardHandlers();
+        service.start();
+        final ExecutorService client = Executors.newFixedThreadPool(numberOfTiles);
+        final int[] responseCodes = new int[numberOfTiles];
+        try {
+            responseCode(port, new Tile(8, 0, 1));
+            // - warming up: opening the pyramid, starting threads etc.
+            for (int k = 0; k < numberOfTiles; k++) {
+                final int index = k;
+                final Tile tile = new Tile(k > OVERLOAD_QUEUE_CAPACITY ? 9 : 8 + k % 2, k, 0);
+                // - old tiles of two levels; the tiles of the current viewport belong to the finer level
+                client.submit(() -> {
+                    try {
+                        responseCodes[index] = responseCode(port, tile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                Thread.sleep(k == 0 ? readingTime / 4 : OVERLOAD_TIME_BETWEEN_REQUESTS);
+                // - the server should receive the requests in this order
+            }
+            client.shutdown();
+            client.awaitTermination(1, TimeUnit.HOURS);
+        } finally {
+            service.finish();
+        }
+        System.out.printf("Response codes: %s%n", Arrays.toString(responseCodes));
+        for (int k = 0; k < numberOfTiles; k++) {
+            final int expected = k >= 1 && k <= OVERLOAD_NEW_TILES ? 503 : 200;
+            // - the oldest tiles in the queue must be dropped
+            if (responseCodes[k] != expected) {
+                throw new AssertionError("Tile #" + k + ": response " + responseCodes[k]
+                    + " instead of " + expected);
+            }
+        }
+        System.out.printf("O'k: the oldest tiles are dropped in \"%s\" mode%n", tileScheduling);
+    }
+
+    private static List<Viewport> trace(int numberOfBursts, Random random) {
+        final List<Viewport> result = new ArrayList<>();
+        int z = 6;
+        double centerX = TILE_DIM << (z - 1);
+        double centerY = TILE_DIM << (z - 1);
+        long time = 0;
+        for (int burst = 0; burst < numberOfBursts; burst++) {
+            for (int k = 0; k < MOVES_PER_BURST; k++) {
+                if (random.nextDouble() < 0.3) {
+                    final boolean zoomIn = z <= 2 || (z < 12 && random.nextBoolean());
+                    z += zoomIn ? 1 : -1;
+                    centerX = zoomIn ? centerX * 2 : centerX / 2;
+                    centerY = zoomIn ? centerY * 2 : centerY / 2;
+                } else {
+                    centerX += (random.nextDouble() - 0.5) * 800;
+                    centerY += (random.nextDouble() - 0.5) * 800;
+                }
+                centerX = Math.max(centerX, VIEWPORT_WIDTH);
+                centerY = Math.max(centerY, VIEWPORT_HEIGHT);
+                result.add(new Viewport(time, z, centerX, centerY, k == MOVES_PER_BURST - 1));
+                time += TIME_BETWEEN_MOVES;
+            }
+            time += TIME_BETWEEN_BURSTS - TIME_BETWEEN_MOVES;
+        }
+        return result;
+    }
+
+    private static void request(int port, Tile tile) throws IOException {
+        final URL url = new URL("http://localhost:" + port + HttpPyramidConstants.CommandPrefixes.TMS
+            + "/viewer/" + tile.z + "/" + tile.x + "/" + tile.y + ".png");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("Invalid response: " + connection.getResponseCode());
+        }
+        try (InputStream input = connection.getInputStream()) {
+            final byte[] buffer = new byte[1024];
+            while (input.read(buffer) >= 0) {
+            }
+        }
+    }
+
+    private static int responseCode(int port, Tile tile) throws IOException {
+        final URL url = new URL("http://localhost:" + port + HttpPyramidConstants.CommandPrefixes.TMS
+            + "/viewer/" + tile.z + "/" + tile.x + "/" + tile.y + ".png");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        final int result = connection.getResponseCode();
+        try (InputStream input = result == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (input != null) {
+                final byte[] buffer = new byte[1024];
+                while (input.read(buffer) >= 0) {
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double timeToReceive(Viewport viewport, List<Tile> tiles, Map<Tile, Long> received) {
+        long result = 0;
+        for (Tile tile : tiles) {
+            result = Math.max(result, received.get(tile) - viewport.requestTime);
+        }
+        return result * 1e-6;
+    }
+
+    private static String statistics(List<Double> times) {
+        final double[] values = times.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        return String.format(Locale.US, "median %.1f ms, mean %.1f ms, max %.1f ms",
+            values[values.length / 2], Arrays.stream(values).average().orElse(0.0), values[values.length - 1]);
+    }
+
+    private static class Viewport {
+        final long time;
+        final int z;
+        final double centerX;
+        final double centerY;
+        final boolean isFinal;
+        volatile long requestTime;
+
+        Viewport(long time, int z, double centerX, double centerY, boolean isFinal) {
+            this.time = time;
+            this.z = z;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.isFinal = isFinal;
+        }
+
+        List<Tile> tiles() {
+            final List<Tile> result = new ArrayList<>(tiles(z - 1));
+            result.addAll(tiles(z));
+            // - like usual viewers, coarser tiles are requested first
+            return result;
+        }
+
+        List<Tile> tiles(int level) {
+            final double scale = Math.pow(2.0, level - z);
+            final double halfWidth = 0.5 * VIEWPORT_WIDTH * scale;
+            final double halfHeight = 0.5 * VIEWPORT_HEIGHT * scale;
+            final int fromX = (int) Math.floor((centerX * scale - halfWidth) / TILE_DIM);
+            final int toX = (int) Math.floor((centerX * scale + halfWidth - 1) / TILE_DIM);
+            final int fromY = (int) Math.floor((centerY * scale - halfHeight) / TILE_DIM);
+            final int toY = (int) Math.floor((centerY * scale + halfHeight - 1) / TILE_DIM);
+            final List<Tile> result = new ArrayList<>();
+            for (int y = fromY; y <= toY; y++) {
+                for (int x = fromX; x <= toX; x++) {
+                    result.add(new Tile(level, x, y));
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class Tile {
+        final int z;
+        final int x;
+        final int y;
+
+        Tile(int z, int x, int y) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Tile tile = (Tile) o;
+            return z == tile.z && x == tile.x && y == tile.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * z + x) + y;
+        }
+    }
+}